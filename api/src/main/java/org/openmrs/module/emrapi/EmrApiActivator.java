@@ -15,6 +15,7 @@ package org.openmrs.module.emrapi;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
@@ -48,12 +49,19 @@ import org.openmrs.module.ModuleActivator;
 import org.openmrs.module.ModuleException;
 import org.openmrs.module.emrapi.account.AccountService;
 import org.openmrs.module.emrapi.adt.EmrApiVisitAssignmentHandler;
+import org.openmrs.module.emrapi.adt.EncounterTypetoVisitTypeMapper;
+import org.openmrs.module.emrapi.adt.RebuildInpatientStatusTask;
+import org.openmrs.module.emrapi.diagnosis.MigrateDiagnosis;
+import org.openmrs.module.emrapi.diagnosis.ObsGroupDiagnosisService;
 import org.openmrs.module.emrapi.event.PatientViewedEventListener;
 import org.openmrs.module.metadatamapping.MetadataSet;
 import org.openmrs.module.metadatamapping.MetadataSource;
 import org.openmrs.module.metadatamapping.MetadataTermMapping;
 import org.openmrs.module.metadatamapping.api.MetadataMappingService;
 import org.openmrs.module.metadatamapping.util.GlobalPropertyToMappingConverter;
+import org.openmrs.scheduler.SchedulerException;
+import org.openmrs.scheduler.SchedulerService;
+import org.openmrs.scheduler.TaskDefinition;
 import org.openmrs.util.OpenmrsConstants;
 
 /**
@@ -65,6 +73,10 @@ public class EmrApiActivator extends BaseModuleActivator implements DaemonTokenA
 
     private EventListener eventListener;
 
+    private EncounterTypetoVisitTypeMapper encounterTypetoVisitTypeMapper;
+
+    private ObsGroupDiagnosisService obsGroupDiagnosisService;
+
     private DaemonToken daemonToken;
 
     private AdministrationService administrationService;
@@ -143,8 +155,42 @@ public class EmrApiActivator extends BaseModuleActivator implements DaemonTokenA
         administrationService.setGlobalProperty(OpenmrsConstants.GP_VISIT_ASSIGNMENT_HANDLER, EmrApiVisitAssignmentHandler.class.getName());
         eventListener = new PatientViewedEventListener(daemonToken);
         Event.subscribe(EmrApiConstants.EVENT_TOPIC_NAME_PATIENT_VIEWED, eventListener);
+        MigrateDiagnosis.setDaemonToken(daemonToken);
+
+        // rebuild the encounter type to visit type mappings whenever the global property changes
+        encounterTypetoVisitTypeMapper = Context.getRegisteredComponents(EncounterTypetoVisitTypeMapper.class).get(0);
+        administrationService.addGlobalPropertyListener(encounterTypetoVisitTypeMapper);
+
+        // recompute the suppressed diagnosis concepts whenever their global properties change
+        obsGroupDiagnosisService = Context.getRegisteredComponents(ObsGroupDiagnosisService.class).get(0);
+        administrationService.addGlobalPropertyListener(obsGroupDiagnosisService);
 
         createPersonImageFolder();
+        registerRebuildInpatientStatusTask();
+    }
+
+    /**
+     * Schedules the {@link RebuildInpatientStatusTask} to run at startup and daily thereafter, unless it has already
+     * been registered (in which case any changes made to it by an administrator are kept)
+     */
+    private void registerRebuildInpatientStatusTask() {
+        SchedulerService schedulerService = Context.getSchedulerService();
+        if (schedulerService.getTaskByName(EmrApiConstants.TASK_REBUILD_INPATIENT_STATUS_NAME) != null) {
+            return;
+        }
+        TaskDefinition task = new TaskDefinition();
+        task.setName(EmrApiConstants.TASK_REBUILD_INPATIENT_STATUS_NAME);
+        task.setDescription("Reconciles the inpatient status of each open visit against its ADT encounters and dispositions");
+        task.setTaskClass(RebuildInpatientStatusTask.class.getName());
+        task.setStartTime(new Date());
+        task.setRepeatInterval(EmrApiConstants.TASK_REBUILD_INPATIENT_STATUS_INTERVAL_SECONDS);
+        task.setStartOnStartup(true);
+        schedulerService.saveTaskDefinition(task);
+        try {
+            schedulerService.scheduleTask(task);
+        } catch (SchedulerException e) {
+            log.error("Could not schedule task: " + task.getName(), e);
+        }
     }
 
     /**
@@ -358,6 +404,12 @@ public class EmrApiActivator extends BaseModuleActivator implements DaemonTokenA
         if (eventListener != null){
             Event.unsubscribe(EmrApiConstants.EVENT_TOPIC_NAME_PATIENT_VIEWED, eventListener);
         }
+        if (encounterTypetoVisitTypeMapper != null) {
+            Context.getAdministrationService().removeGlobalPropertyListener(encounterTypetoVisitTypeMapper);
+        }
+        if (obsGroupDiagnosisService != null) {
+            Context.getAdministrationService().removeGlobalPropertyListener(obsGroupDiagnosisService);
+        }
     }
 
     @Override
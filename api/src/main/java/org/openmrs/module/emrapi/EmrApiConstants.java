@@ -194,6 +194,12 @@ public class EmrApiConstants {
 
     public static final String GP_INPATIENT_VISIT_EXPIRE_HOURS = "emrapi.inpatientVisitExpireHours";
 
+    public static final String GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS = "emrapi.closeStaleVisitsTask.completedShards";
+
+    public static final String TASK_REBUILD_INPATIENT_STATUS_NAME = "EMR API - Rebuild Inpatient Statuses";
+
+    public static final long TASK_REBUILD_INPATIENT_STATUS_INTERVAL_SECONDS = 24 * 60 * 60;
+
     /*public static final String CONCEPT_CODE_DISPOSITION = "Disposition";
 
     public static final String CONCEPTDISPOSITION_ANSWER_ADMIT = "Admit";
@@ -37,6 +37,7 @@ import org.openmrs.api.LocationService;
 import org.openmrs.api.PersonService;
 import org.openmrs.api.ProviderService;
 import org.openmrs.api.UserService;
+import org.openmrs.module.emrapi.concept.ConceptChangeTracker;
 import org.openmrs.module.emrapi.diagnosis.DiagnosisMetadata;
 import org.openmrs.module.emrapi.disposition.Disposition;
 import org.openmrs.module.emrapi.disposition.DispositionDescriptor;
@@ -85,6 +86,11 @@ public class EmrApiProperties {
 	@Setter
 	private DispositionService dispositionService;
 
+	@Setter
+	private ConceptChangeTracker conceptChangeTracker = new ConceptChangeTracker();
+
+	private volatile ResolvedDiagnosisMetadata resolvedDiagnosisMetadata;
+
 	public String getMetadataSourceName() {
 		return EmrApiConstants.EMR_METADATA_SOURCE_NAME;
 	}
@@ -243,8 +249,17 @@ public class EmrApiProperties {
 		return getPatientIdentifierTypesByCode(EmrApiConstants.GP_EXTRA_PATIENT_IDENTIFIER_TYPES);
 	}
 
+	/**
+	 * Cached until concepts change, see {@link ConceptChangeTracker}
+	 */
 	public DiagnosisMetadata getDiagnosisMetadata() {
-		return new DiagnosisMetadata(conceptService, getEmrApiConceptSource());
+		ResolvedDiagnosisMetadata resolved = resolvedDiagnosisMetadata;
+		long conceptVersion = conceptChangeTracker.getVersion();
+		if (resolved == null || resolved.conceptVersion != conceptVersion) {
+			resolved = new ResolvedDiagnosisMetadata(new DiagnosisMetadata(conceptService, getEmrApiConceptSource()), conceptVersion);
+			resolvedDiagnosisMetadata = resolved;
+		}
+		return resolved.diagnosisMetadata;
 	}
 
 	public List<ConceptSource> getConceptSourcesForDiagnosisSearch() {
@@ -509,4 +524,17 @@ public class EmrApiProperties {
 
 		return result;
 	}
+
+	private static class ResolvedDiagnosisMetadata {
+
+		private final DiagnosisMetadata diagnosisMetadata;
+
+		private final long conceptVersion;
+
+		ResolvedDiagnosisMetadata(DiagnosisMetadata diagnosisMetadata, long conceptVersion) {
+			this.diagnosisMetadata = diagnosisMetadata;
+			this.conceptVersion = conceptVersion;
+		}
+	}
+
 }
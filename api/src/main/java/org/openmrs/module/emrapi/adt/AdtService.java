@@ -24,12 +24,14 @@ import org.openmrs.Visit;
 import org.openmrs.api.OpenmrsService;
 import org.openmrs.module.emrapi.adt.exception.ExistingVisitDuringTimePeriodException;
 import org.openmrs.module.emrapi.merge.PatientMergeAction;
+import org.openmrs.module.emrapi.merge.PatientMergePlan;
 import org.openmrs.module.emrapi.merge.VisitMergeAction;
 import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
 
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <pre>
@@ -159,12 +161,73 @@ public interface AdtService extends OpenmrsService {
      */
     List<VisitDomainWrapper> getActiveVisits(Location location);
 
+    /**
+     * Gets a page of the currently-active visits at the given location or any of its children, excluding visits of
+     * test patients, most recently started first
+     *
+     * @param location
+     * @param startIndex the index of the first visit to return, or null to start from the first
+     * @param limit the maximum number of visits to return, or null to return all
+     * @return
+     */
+    List<VisitDomainWrapper> getActiveVisits(Location location, Integer startIndex, Integer limit);
+
+    /**
+     * Same as {@link #getActiveVisits(Location, Integer, Integer)}, but only returns the visit ids, without loading
+     * the visits
+     */
+    List<Integer> getActiveVisitIds(Location location, Integer startIndex, Integer limit);
+
+    /**
+     * @param location
+     * @return the number of currently-active visits at the given location or any of its children, excluding visits of
+     * test patients
+     */
+    long getCountOfActiveVisits(Location location);
+
     /**
      * If any currently-open visits are now inactive per our business logic, close them
      */
     void closeInactiveVisits();
 
     /**
+     * Set-based alternative to {@link #closeInactiveVisits()}: a single aggregate query finds the candidate visits
+     * (see {@link #getInactiveVisitCandidateIds(Collection, Date)}), which are then closed in chunks of at most
+     * batchSize visits, each chunk in its own transaction
+     *
+     * @param batchSize the maximum number of visits to close per transaction
+     */
+    void closeInactiveVisits(int batchSize);
+
+    /**
+     * @return the visit locations whose open visits are considered by {@link #closeInactiveVisits()}
+     */
+    Collection<Location> getPossibleLocationsToCloseVisit();
+
+    /**
+     * Returns the ids of the open visits at the given visit locations whose last activity (the visit start, or the
+     * latest non-voided encounter) is old enough that they may need to be closed. Admitted visits, and visits whose
+     * most recent disposition keeps the visit open, are excluded unless they have also been inactive longer than the
+     * inpatient visit expiry. This is a pre-filter only; {@link #shouldBeClosed(Visit)} has the final say.
+     *
+     * @param visitLocations the visit locations to search
+     * @param now the date to measure inactivity against
+     * @return the candidate visit ids, in ascending order
+     */
+    List<Integer> getInactiveVisitCandidateIds(Collection<Location> visitLocations, Date now);
+
+    /**
+     * Closes each of the visits with the given ids that {@link #shouldBeClosed(Visit)}
+     *
+     * @param visitIds
+     * @return the number of visits that were closed
+     */
+    int closeInactiveVisits(Collection<Integer> visitIds);
+
+    /**
+     * Encounters whose type the authenticated user lacks the view privilege for are left out, here and in the counts
+     * and batch versions below, as EncounterService does.
+     *
      * @param patient
      * @return the most recent encounter for the given patient
      */
@@ -182,6 +245,31 @@ public interface AdtService extends OpenmrsService {
      */
     int getCountOfVisits(Patient patient);
 
+    /**
+     * Batch version of {@link #getLastEncounter(Patient)}
+     *
+     * @param patientIds
+     * @return the most recent non-voided encounter of each of the given patients, keyed by patient id; patients
+     * without encounters are not included
+     */
+    Map<Integer, Encounter> getLastEncounters(Collection<Integer> patientIds);
+
+    /**
+     * Batch version of {@link #getCountOfEncounters(Patient)}
+     *
+     * @param patientIds
+     * @return the number of non-voided encounters of each of the given patients, keyed by patient id
+     */
+    Map<Integer, Integer> getCountsOfEncounters(Collection<Integer> patientIds);
+
+    /**
+     * Batch version of {@link #getCountOfVisits(Patient)}
+     *
+     * @param patientIds
+     * @return the number of non-voided visits of each of the given patients, keyed by patient id
+     */
+    Map<Integer, Integer> getCountsOfVisits(Collection<Integer> patientIds);
+
     /**
      * @param v1
      * @param v2
@@ -204,6 +292,15 @@ public interface AdtService extends OpenmrsService {
      */
     void mergePatients(Patient preferred, Patient notPreferred);
 
+    /**
+     * Determines which visits {@link #mergePatients(Patient, Patient)} would merge together, without changing anything
+     *
+     * @param preferred
+     * @param notPreferred
+     * @return the visit merges, in the order in which they would be performed
+     */
+    PatientMergePlan getPatientMergePlan(Patient preferred, Patient notPreferred);
+
     /**
      * Allows another module to add a patient merge action to the list of actions to be performed
      * when a patient is merged; (ideally, this would just happen via @Autowired, but because @Autowired
@@ -307,6 +404,19 @@ public interface AdtService extends OpenmrsService {
     VisitDomainWrapper createRetrospectiveVisit(Patient patient, Location location, Date startDatetime, Date stopDatetime)
         throws ExistingVisitDuringTimePeriodException;
 
+    /**
+     * Creates many retrospective visits at once, e.g. when back-filling paper records. Each request is validated as in
+     * {@link #createRetrospectiveVisit(Patient, Location, Date, Date)}, and checked for overlaps against the existing
+     * visits of its patient (loaded with one query per chunk of patients) and against the visits created earlier in
+     * the same batch, and then with the visit validators. Requests that fail these checks do not prevent the others
+     * from being created; an unexpected error while saving a visit still fails the whole batch. Created visits are flushed
+     * and evicted from the session periodically, so they are detached when this method returns.
+     *
+     * @param requests
+     * @return one result per request, in the same order
+     */
+    List<RetrospectiveVisitResult> createRetrospectiveVisits(List<RetrospectiveVisitRequest> requests);
+
     /**
      * Gets all visits for the patient at the visit location associated with the specified location
      * during the specified datetime range
@@ -361,4 +471,45 @@ public interface AdtService extends OpenmrsService {
      * @return List<InpatientAdmission> of the matching InpatientAdmissions that match the criteria
      */
     List<InpatientAdmission> getInpatientAdmissions(InpatientAdmissionSearchCriteria criteria);
+
+    /**
+     * Returns the page of InpatientAdmissions that match the given search criteria, as determined by the startIndex and
+     * limit of the criteria, along with the total number of matching admissions.  Admissions are ordered by visit id.
+     * @param criteria - represents the criteria by which inpatient admissions are searched and returned
+     * @return InpatientAdmissionSearchResult containing the requested page of admissions and the total count
+     */
+    InpatientAdmissionSearchResult getInpatientAdmissionSearchResult(InpatientAdmissionSearchCriteria criteria);
+
+    /**
+     * Recomputes the InpatientStatus of the given visit from its ADT encounters and disposition obs, creating, updating
+     * or deleting its row in the emrapi_inpatient_status table as needed
+     * @param visit - the visit whose status should be updated
+     * @return the InpatientStatus of the visit, or null if it is not open or has no ADT encounters or inpatient requests
+     */
+    InpatientStatus updateInpatientStatus(Visit visit);
+
+    /**
+     * Recomputes the InpatientStatus of each of the given visits, as {@link #updateInpatientStatus(Visit)} does, with
+     * one set of queries for all of them. This is called just before a transaction that changes ADT encounters or
+     * disposition obs commits, for the visits of those encounters and obs.
+     * @param visitIds - the ids of the visits whose statuses should be updated
+     * @return the number of rows that were added, changed or removed
+     */
+    int updateInpatientStatuses(Collection<Integer> visitIds);
+
+    /**
+     * Returns the InpatientStatus of each open visit, as stored in the emrapi_inpatient_status table
+     * @param currentLocation - if not null, only visits of patients currently admitted at this location are returned
+     * @return List<InpatientStatus> ordered by visit id
+     */
+    List<InpatientStatus> getInpatientStatuses(Location currentLocation);
+
+    /**
+     * Reconciles the emrapi_inpatient_status table against the ADT encounters and disposition obs of all open visits,
+     * a page of visits at a time, each in its own transaction. Until this has completed once since startup, and
+     * whenever a change was made outside of a Spring-managed transaction since then, the inpatient admission and request
+     * lists are computed without the table.
+     * @return the number of rows that were added, changed or removed
+     */
+    int rebuildInpatientStatuses();
 }
@@ -45,20 +45,24 @@ import org.openmrs.module.emrapi.adt.exception.ExistingVisitDuringTimePeriodExce
 import org.openmrs.module.emrapi.adt.util.AdtUtil;
 import org.openmrs.module.emrapi.concept.EmrConceptService;
 import org.openmrs.module.emrapi.db.EmrApiDAO;
+import org.openmrs.module.emrapi.db.SingleClassDAO;
 import org.openmrs.module.emrapi.disposition.Disposition;
 import org.openmrs.module.emrapi.disposition.DispositionDescriptor;
 import org.openmrs.module.emrapi.disposition.DispositionService;
 import org.openmrs.module.emrapi.disposition.DispositionType;
 import org.openmrs.module.emrapi.domainwrapper.DomainWrapperFactory;
 import org.openmrs.module.emrapi.merge.PatientMergeAction;
+import org.openmrs.module.emrapi.merge.PatientMergePlan;
 import org.openmrs.module.emrapi.merge.VisitMergeAction;
-import org.openmrs.module.emrapi.patient.PatientDomainWrapper;
 import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
 import org.openmrs.serialization.SerializationException;
 import org.openmrs.util.OpenmrsUtil;
+import org.openmrs.validator.ValidateUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.validation.BindException;
+import org.springframework.validation.Errors;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -67,12 +71,15 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 
@@ -80,6 +87,16 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     private final Logger log = LoggerFactory.getLogger(getClass());
 
+    private static final int INPATIENT_STATUS_REBUILD_PAGE_SIZE = 500;
+
+    private static final int INPATIENT_STATUS_VISIT_CHUNK_SIZE = 1000;
+
+    private static final int RETROSPECTIVE_VISIT_PATIENT_CHUNK_SIZE = 1000;
+
+    private static final int VISIT_LOOKUP_CHUNK_SIZE = 1000;
+
+    private static final int RETROSPECTIVE_VISIT_FLUSH_SIZE = 100;
+
     private EmrApiProperties emrApiProperties;
 
     private PatientService patientService;
@@ -104,6 +121,14 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     private List<VisitMergeAction> visitMergeActions;
 
+    private LocationHierarchyCache locationHierarchyCache = new LocationHierarchyCache();
+
+    private final PatientLocks patientLocks = new PatientLocks();
+
+    private InpatientStatusTracker inpatientStatusTracker = new InpatientStatusTracker();
+
+    private SingleClassDAO<InpatientStatus> inpatientStatusDAO;
+
     public void setPatientService(PatientService patientService) {
         this.patientService = patientService;
     }
@@ -116,6 +141,18 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         this.emrApiDAO = emrApiDAO;
     }
 
+    public void setLocationHierarchyCache(LocationHierarchyCache locationHierarchyCache) {
+        this.locationHierarchyCache = locationHierarchyCache;
+    }
+
+    public void setInpatientStatusTracker(InpatientStatusTracker inpatientStatusTracker) {
+        this.inpatientStatusTracker = inpatientStatusTracker;
+    }
+
+    public void setInpatientStatusDAO(SingleClassDAO<InpatientStatus> inpatientStatusDAO) {
+        this.inpatientStatusDAO = inpatientStatusDAO;
+    }
+
     public void setDispositionService(DispositionService dispositionService) {
         this.dispositionService = dispositionService;
     }
@@ -162,10 +199,10 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
     public void closeInactiveVisits() {
         Collection<Location> possibleLocations = getPossibleLocationsToCloseVisit();
         List<Visit> openVisits = visitService.getVisits(null, null, possibleLocations, null, null, null, null, null, null, false, false);
-            for (Visit visit : openVisits) {
+            for (VisitDomainWrapper visit : wrapWithMostRecentDispositions(openVisits)) {
                 if (shouldBeClosed(visit)) {
                     try {
-                        closeAndSaveVisit(visit);
+                        closeAndSaveVisit(visit.getVisit());
                     } catch (Exception ex) {
                         log.warn("Failed to close inactive visit " + visit, ex);
                     }
@@ -173,7 +210,97 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         }
     }
 
-    private Collection<Location> getPossibleLocationsToCloseVisit() {
+    @Override
+    public void closeInactiveVisits(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        List<Integer> candidateIds = getInactiveVisitCandidateIds(getPossibleLocationsToCloseVisit(), new Date());
+        log.info("Found {} open visits that may need to be closed", candidateIds.size());
+
+        // go through the service proxy so that each chunk is closed in its own transaction
+        AdtService adtService = Context.getService(AdtService.class);
+        int closed = 0;
+        for (int i = 0; i < candidateIds.size(); i += batchSize) {
+            List<Integer> chunk = candidateIds.subList(i, Math.min(i + batchSize, candidateIds.size()));
+            closed += adtService.closeInactiveVisits(chunk);
+            // the chunk has already been committed, so there is nothing to flush
+            Context.clearSession();
+        }
+        log.info("Closed {} inactive visits", closed);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<Integer> getInactiveVisitCandidateIds(Collection<Location> visitLocations, Date now) {
+        if (visitLocations == null || visitLocations.isEmpty()) {
+            return new ArrayList<Integer>();
+        }
+
+        Set<Integer> candidateIds = new TreeSet<Integer>();
+        Integer inpatientVisitExpireHours = emrApiProperties.getInpatientVisitExpireHours();
+
+        // visits that are past the regular expiry, excluding those that the inpatient rules may keep open
+        Date inactiveSince = new DateTime(now).minusHours(emrApiProperties.getVisitExpireHours()).toDate();
+        candidateIds.addAll(getInactiveVisitCandidateIds(visitLocations, inactiveSince, true));
+
+        // visits that are past the inpatient expiry, if there is one, are candidates regardless
+        if (inpatientVisitExpireHours != null) {
+            Date inpatientInactiveSince = new DateTime(now).minusHours(inpatientVisitExpireHours).toDate();
+            candidateIds.addAll(getInactiveVisitCandidateIds(visitLocations, inpatientInactiveSince, false));
+        }
+
+        return new ArrayList<Integer>(candidateIds);
+    }
+
+    private List<Integer> getInactiveVisitCandidateIds(Collection<Location> visitLocations, Date inactiveSince, boolean excludeInpatient) {
+        List<Concept> keepsVisitOpenDispositions = null;
+        Concept dispositionConcept = null;
+        if (excludeInpatient && dispositionService.dispositionsSupported()) {
+            keepsVisitOpenDispositions = AdtUtil.getKeepsVisitOpenDispositionsConcepts(emrConceptService, dispositionService);
+            dispositionConcept = dispositionService.getDispositionDescriptor().getDispositionConcept();
+        }
+        boolean excludeKeepsVisitOpen = keepsVisitOpenDispositions != null && !keepsVisitOpenDispositions.isEmpty();
+
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("visitLocations", visitLocations);
+        parameters.put("inactiveSince", inactiveSince);
+        parameters.put("excludeAdmitted", excludeInpatient);
+        parameters.put("admissionEncounterType", emrApiProperties.getAdmissionEncounterType());
+        parameters.put("dischargeEncounterType", emrApiProperties.getExitFromInpatientEncounterType());
+        parameters.put("excludeKeepsVisitOpen", excludeKeepsVisitOpen);
+        parameters.put("dispositionConcept", dispositionConcept);
+        parameters.put("keepsVisitOpenDispositions", excludeKeepsVisitOpen ? keepsVisitOpenDispositions : null);
+        return emrApiDAO.executeHqlFromResource("hql/inactive_visit_candidates.hql", parameters, Integer.class);
+    }
+
+    @Override
+    @Transactional
+    public int closeInactiveVisits(Collection<Integer> visitIds) {
+        Map<Integer, Disposition> mostRecentDispositions = dispositionService.getMostRecentDispositionsByVisitId(visitIds);
+        int closed = 0;
+        for (Integer visitId : visitIds) {
+            Visit visit = visitService.getVisit(visitId);
+            if (visit == null) {
+                continue;
+            }
+            VisitDomainWrapper visitDomainWrapper = wrap(visit);
+            visitDomainWrapper.setMostRecentDisposition(mostRecentDispositions.get(visitId));
+            if (shouldBeClosed(visitDomainWrapper)) {
+                try {
+                    closeAndSaveVisit(visit);
+                    closed++;
+                } catch (Exception ex) {
+                    log.warn("Failed to close inactive visit " + visit, ex);
+                }
+            }
+        }
+        return closed;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Collection<Location> getPossibleLocationsToCloseVisit() {
         LocationTag visitLocationTag =  locationService.getLocationTagByName(EmrApiConstants.LOCATION_TAG_SUPPORTS_VISITS);
 
         return locationService.getLocationsByTag(visitLocationTag);
@@ -181,13 +308,16 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     @Override
     public boolean shouldBeClosed(Visit visit) {
+        return shouldBeClosed(domainWrapperFactory.newVisitDomainWrapper(visit));
+    }
+
+    private boolean shouldBeClosed(VisitDomainWrapper visitDomainWrapper) {
 
+        Visit visit = visitDomainWrapper.getVisit();
         if (visit.getStopDatetime() != null) {
             return false;  // already closed
         }
 
-        VisitDomainWrapper visitDomainWrapper = domainWrapperFactory.newVisitDomainWrapper(visit);
-
         Date now = new Date();
         Date lastActivity = getLastActivityDate(visit);
         long hoursInactive = TimeUnit.HOURS.convert(Math.abs(lastActivity.getTime() - now.getTime()), TimeUnit.MILLISECONDS);
@@ -227,14 +357,17 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     @Override
     public boolean visitsOverlap(Visit v1, Visit v2) {
-        Location where1 = v1.getLocation();
-        Location where2 = v2.getLocation();
+        return visitsOverlap(v1.getLocation(), v1.getStartDatetime(), v1.getStopDatetime(),
+                v2.getLocation(), v2.getStartDatetime(), v2.getStopDatetime());
+    }
+
+    private boolean visitsOverlap(Location where1, Date start1, Date stop1, Location where2, Date start2, Date stop2) {
         if ((where1 == null && where2 == null) ||
                 isSameOrAncestor(where1, where2) ||
                 isSameOrAncestor(where2, where1)) {
             // "same" location, so check if date ranges overlap (assuming startDatetime is never null)
-            return (OpenmrsUtil.compareWithNullAsLatest(v1.getStartDatetime(), v2.getStopDatetime()) <= 0)
-                    && (OpenmrsUtil.compareWithNullAsLatest(v2.getStartDatetime(), v1.getStopDatetime()) <= 0);
+            return (OpenmrsUtil.compareWithNullAsLatest(start1, stop2) <= 0)
+                    && (OpenmrsUtil.compareWithNullAsLatest(start2, stop1) <= 0);
         }
         return false;
     }
@@ -280,14 +413,16 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     @Override
     @Transactional
-    public Visit ensureActiveVisit(Patient patient, Location department) {
-        Visit activeVisit = getActiveVisitHelper(patient, department);
-        if (activeVisit == null) {
-            Date now = new Date();
-            activeVisit = buildVisit(patient, department, now);
-            visitService.saveVisit(activeVisit);
-        }
-        return activeVisit;
+    public Visit ensureActiveVisit(final Patient patient, final Location department) {
+        return patientLocks.runLocked(patient, () -> {
+            Visit activeVisit = getActiveVisitHelper(patient, department);
+            if (activeVisit == null) {
+                Date now = new Date();
+                activeVisit = buildVisit(patient, department, now);
+                visitService.saveVisit(activeVisit);
+            }
+            return activeVisit;
+        });
     }
 
     @Transactional
@@ -332,15 +467,23 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
     }
 
     /**
-     * This method is synchronized to prevent multiple check-ins in a row at the same location and during the same visit.
-     * See #579.
+     * Check-ins for the same patient are serialized (until the transaction completes) to prevent multiple check-ins in
+     * a row at the same location and during the same visit. See #579. Check-ins for different patients run in parallel.
      *
      * @see org.openmrs.module.emrapi.adt.AdtService#checkInPatient(org.openmrs.Patient, org.openmrs.Location, org.openmrs.Provider, java.util.List, java.util.List, boolean)
      */
     @Override
     @Transactional
-    public synchronized Encounter checkInPatient(Patient patient, Location where, Provider checkInClerk,
-                                    List<Obs> obsForCheckInEncounter, List<Order> ordersForCheckInEncounter, boolean newVisit) {
+    public Encounter checkInPatient(final Patient patient, final Location where, final Provider checkInClerk,
+                                    final List<Obs> obsForCheckInEncounter, final List<Order> ordersForCheckInEncounter,
+                                    final boolean newVisit) {
+        return patientLocks.runLocked(patient, () -> checkInPatientWhileLocked(patient, where, checkInClerk,
+                obsForCheckInEncounter, ordersForCheckInEncounter, newVisit));
+    }
+
+    private Encounter checkInPatientWhileLocked(Patient patient, Location where, Provider checkInClerk,
+                                                List<Obs> obsForCheckInEncounter, List<Order> ordersForCheckInEncounter,
+                                                boolean newVisit) {
         if (checkInClerk == null) {
             checkInClerk = getProvider(Context.getAuthenticatedUser());
         }
@@ -444,20 +587,50 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
      * @throws IllegalArgumentException if neither location nor its ancestors support visits
      */
     @Override
+    @Transactional(readOnly = true)
     public Location getLocationThatSupportsVisits(Location location) {
         if (location == null) {
             throw new IllegalArgumentException("Location does not support visits");
         } else if (location.hasTag(EmrApiConstants.LOCATION_TAG_SUPPORTS_VISITS)) {
             return location;
-        } else {
-            return getLocationThatSupportsVisits(location.getParentLocation());
         }
+        if (location.getLocationId() != null) {
+            LocationHierarchy hierarchy = getLocationHierarchy();
+            if (hierarchy.contains(location.getLocationId())) {
+                Integer visitLocationId = hierarchy.getLocationThatSupportsVisitsId(location.getLocationId());
+                if (visitLocationId == null) {
+                    throw new IllegalArgumentException("Location does not support visits");
+                }
+                return locationService.getLocation(visitLocationId);
+            }
+        }
+        return getLocationThatSupportsVisits(location.getParentLocation());
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<Location> getAllLocationsThatSupportVisits() {
-        return locationService.getLocationsByTag(emrApiProperties.getSupportsVisitsLocationTag());
+        List<Location> locations = new ArrayList<Location>();
+        for (Integer locationId : getLocationHierarchy().getLocationIdsThatSupportVisits()) {
+            locations.add(locationService.getLocation(locationId));
+        }
+        return locations;
+    }
+
+    private LocationHierarchy getLocationHierarchy() {
+        return locationHierarchyCache.get(this::loadLocationHierarchy);
+    }
+
+    private LocationHierarchy loadLocationHierarchy() {
+        LocationHierarchy.Builder builder = new LocationHierarchy.Builder(EmrApiConstants.LOCATION_TAG_SUPPORTS_VISITS);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        for (Object[] row : emrApiDAO.executeHqlFromResource("hql/location_hierarchy.hql", parameters, Object[].class)) {
+            builder.addLocation((Integer) row[0], (Integer) row[1], (String) row[2], Boolean.TRUE.equals(row[3]));
+        }
+        for (Object[] row : emrApiDAO.executeHqlFromResource("hql/location_tags.hql", parameters, Object[].class)) {
+            builder.addTag((Integer) row[0], (String) row[1]);
+        }
+        return builder.build();
     }
 
     /**
@@ -512,80 +685,208 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
      */
     @Override
     public List<VisitDomainWrapper> getActiveVisits(Location location) {
+        return getActiveVisits(location, null, null);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<VisitDomainWrapper> getActiveVisits(Location location, Integer startIndex, Integer limit) {
+        return wrapWithMostRecentDispositions(getVisitsByIds(getActiveVisitIds(location, startIndex, limit)));
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public List<Integer> getActiveVisitIds(Location location, Integer startIndex, Integer limit) {
+        return emrApiDAO.executeHqlFromResource("hql/active_visit_ids.hql", getActiveVisitParameters(location),
+                Integer.class, startIndex, limit);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public long getCountOfActiveVisits(Location location) {
+        List<Long> count = emrApiDAO.executeHqlFromResource("hql/active_visit_count.hql",
+                getActiveVisitParameters(location), Long.class);
+        return count.isEmpty() || count.get(0) == null ? 0 : count.get(0);
+    }
+
+    private Map<String, Object> getActiveVisitParameters(Location location) {
         if (location == null) {
             throw new IllegalArgumentException("Location is required");
         }
-        Set<Location> locations = getChildLocationsRecursively(location, null);
-        List<Visit> candidates = visitService.getVisits(null, null, locations, null, null, null, null, null, null, false,
-                false);
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("locationIds", getSelfAndDescendantLocationIds(location));
+        parameters.put("testPatientAttributeType", emrApiProperties.getTestPatientPersonAttributeType());
+        return parameters;
+    }
 
-        List<VisitDomainWrapper> active = new ArrayList<VisitDomainWrapper>();
-        for (Visit candidate : candidates) {
-            if (itBelongsToARealPatient(candidate)) {
-                active.add(wrap(candidate));
+    /**
+     * @return the visits wrapped, in the same order, with their most recent dispositions looked up in one go rather
+     * than one visit at a time
+     */
+    private List<VisitDomainWrapper> wrapWithMostRecentDispositions(List<Visit> visits) {
+        Map<Integer, Disposition> mostRecentDispositions = dispositionService.getMostRecentDispositions(visits);
+        List<VisitDomainWrapper> wrappers = new ArrayList<VisitDomainWrapper>();
+        for (Visit visit : visits) {
+            VisitDomainWrapper wrapper = wrap(visit);
+            if (visit.getVisitId() != null) {
+                wrapper.setMostRecentDisposition(mostRecentDispositions.get(visit.getVisitId()));
             }
+            wrappers.add(wrapper);
         }
+        return wrappers;
+    }
 
-        return active;
+    /**
+     * @return the visits with the given ids, in the same order as the ids
+     */
+    private List<Visit> getVisitsByIds(List<Integer> visitIds) {
+        List<Visit> visits = new ArrayList<Visit>();
+        if (visitIds.isEmpty()) {
+            return visits;
+        }
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        Map<Integer, Visit> visitsById = new HashMap<Integer, Visit>();
+        // chunked, since the list of ids passed in is unbounded and databases limit the size of an IN list
+        for (int i = 0; i < visitIds.size(); i += VISIT_LOOKUP_CHUNK_SIZE) {
+            parameters.put("visitIds", visitIds.subList(i, Math.min(i + VISIT_LOOKUP_CHUNK_SIZE, visitIds.size())));
+            for (Visit visit : emrApiDAO.executeHql("from Visit v where v.visitId in (:visitIds)", parameters, Visit.class)) {
+                visitsById.put(visit.getVisitId(), visit);
+            }
+        }
+        for (Integer visitId : visitIds) {
+            if (visitsById.containsKey(visitId)) {
+                visits.add(visitsById.get(visitId));
+            }
+        }
+        return visits;
     }
 
     @Override
+    @Transactional(readOnly = true)
     public List<VisitDomainWrapper> getInpatientVisits(Location visitLocation, Location ward) {
 
         if (visitLocation == null) {
             throw new IllegalArgumentException("Location is required");
         }
-        Set<Location> locations = getChildLocationsRecursively(visitLocation, null);
-        List<Visit> candidates = visitService.getVisits(null, null, locations, null, null, null, null, null, null, false,
-                false);
-
-        List<VisitDomainWrapper> inpatientVisits = new ArrayList<VisitDomainWrapper>();
-        for (Visit candidate : candidates) {
-            VisitDomainWrapper visitDomainWrapper = wrap(candidate);
-            if (itBelongsToARealPatient(candidate)
-                    && visitDomainWrapper.isAdmitted()) {
-                if(ward!=null){
-                    Encounter latestAdtEncounter = visitDomainWrapper.getLatestAdtEncounter();
-                    if(latestAdtEncounter!=null &&
-                            ( latestAdtEncounter.getLocation().getId().compareTo(ward.getId())==0 )){
-                        inpatientVisits.add(visitDomainWrapper);
-                    }
-                }else{
-                    inpatientVisits.add(visitDomainWrapper);
-                }
-            }
-        }
-
-        return inpatientVisits;
-    }
+        Map<String, Object> parameters = getActiveVisitParameters(visitLocation);
+        parameters.put("ward", ward);
+        parameters.put("admissionEncounterType", emrApiProperties.getAdmissionEncounterType());
+        parameters.put("transferEncounterType", emrApiProperties.getTransferWithinHospitalEncounterType());
+        parameters.put("dischargeEncounterType", emrApiProperties.getExitFromInpatientEncounterType());
+        List<Integer> visitIds = emrApiDAO.executeHqlFromResource("hql/inpatient_visit_ids.hql", parameters, Integer.class);
 
-    private boolean itBelongsToARealPatient(Visit candidate) {
-        Patient patient = candidate.getPatient();
-        PatientDomainWrapper domainWrapper = new PatientDomainWrapper(patient, emrApiProperties, null, null, null, null, null);
-        return !domainWrapper.isTestPatient();
+        return wrapWithMostRecentDispositions(getVisitsByIds(visitIds));
     }
 
     @Override
+    @Transactional(readOnly = true)
     public Encounter getLastEncounter(Patient patient) {
-        // speed this up by implementing it directly in a DAO
-        List<Encounter> byPatient = encounterService.getEncountersByPatient(patient);
-        if (byPatient.isEmpty()) {
+        if (patient.getPatientId() == null) {
             return null;
-        } else {
-            return byPatient.get(byPatient.size() - 1);
         }
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("patientId", patient.getPatientId());
+        addEncounterTypeViewPrivilegeParameters(parameters);
+        List<Encounter> encounters = emrApiDAO.executeHqlFromResource("hql/latest_patient_encounter.hql", parameters,
+                Encounter.class, 0, 1);
+        return encounters.isEmpty() ? null : encounters.get(0);
     }
 
     @Override
+    @Transactional(readOnly = true)
     public int getCountOfEncounters(Patient patient) {
-        // speed this up by implementing it directly in a DAO
-        return encounterService.getEncountersByPatient(patient).size();
+        if (patient.getPatientId() == null) {
+            return 0;
+        }
+        return getCountsOfEncounters(Collections.singletonList(patient.getPatientId())).get(patient.getPatientId());
     }
 
     @Override
+    @Transactional(readOnly = true)
     public int getCountOfVisits(Patient patient) {
-        // speed this up by implementing it directly in a DAO
-        return visitService.getVisitsByPatient(patient, true, false).size();
+        if (patient.getPatientId() == null) {
+            return 0;
+        }
+        return getCountsOfVisits(Collections.singletonList(patient.getPatientId())).get(patient.getPatientId());
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Integer, Encounter> getLastEncounters(Collection<Integer> patientIds) {
+        Map<Integer, Encounter> lastEncounters = new HashMap<Integer, Encounter>();
+        if (patientIds == null || patientIds.isEmpty()) {
+            return lastEncounters;
+        }
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("patientIds", patientIds);
+        addEncounterTypeViewPrivilegeParameters(parameters);
+        for (Encounter encounter : emrApiDAO.executeHqlFromResource("hql/latest_encounter_per_patient.hql", parameters, Encounter.class)) {
+            lastEncounters.put(encounter.getPatient().getPatientId(), encounter);
+        }
+        return lastEncounters;
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Integer, Integer> getCountsOfEncounters(Collection<Integer> patientIds) {
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        addEncounterTypeViewPrivilegeParameters(parameters);
+        return getCountsPerPatient("hql/encounter_count_per_patient.hql", parameters, patientIds);
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Integer, Integer> getCountsOfVisits(Collection<Integer> patientIds) {
+        return getCountsPerPatient("hql/visit_count_per_patient.hql", new HashMap<String, Object>(), patientIds);
+    }
+
+    private Map<Integer, Integer> getCountsPerPatient(String resource, Map<String, Object> parameters, Collection<Integer> patientIds) {
+        Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+        if (patientIds == null || patientIds.isEmpty()) {
+            return counts;
+        }
+        for (Integer patientId : patientIds) {
+            counts.put(patientId, 0);
+        }
+        parameters.put("patientIds", patientIds);
+        for (Object[] row : emrApiDAO.executeHqlFromResource(resource, parameters, Object[].class)) {
+            counts.put((Integer) row[0], ((Number) row[1]).intValue());
+        }
+        return counts;
+    }
+
+    /**
+     * Leaves out the encounters whose type the authenticated user lacks the view privilege for, as
+     * EncounterService does when getting the encounters of a patient
+     */
+    private void addEncounterTypeViewPrivilegeParameters(Map<String, Object> parameters) {
+        List<Integer> excludedEncounterTypeIds = new ArrayList<Integer>();
+        for (EncounterType encounterType : emrApiDAO.executeHqlFromResource("hql/encounter_types_with_view_privilege.hql",
+                new HashMap<String, Object>(), EncounterType.class)) {
+            if (!Context.hasPrivilege(encounterType.getViewPrivilege().getPrivilege())) {
+                excludedEncounterTypeIds.add(encounterType.getEncounterTypeId());
+            }
+        }
+        parameters.put("excludedEncounterTypeIds", excludedEncounterTypeIds.isEmpty() ? null : excludedEncounterTypeIds);
+        parameters.put("excludeEncounterTypes", !excludedEncounterTypeIds.isEmpty());
+    }
+
+    /**
+     * @return the ids of the location and all its descendants, from the cached location hierarchy where possible
+     */
+    private Set<Integer> getSelfAndDescendantLocationIds(Location location) {
+        if (location.getLocationId() != null) {
+            LocationHierarchy hierarchy = getLocationHierarchy();
+            if (hierarchy.contains(location.getLocationId())) {
+                return hierarchy.getSelfAndDescendantIds(location.getLocationId());
+            }
+        }
+        // not yet known to the hierarchy, e.g. unsaved
+        Set<Integer> locationIds = new LinkedHashSet<Integer>();
+        for (Location l : getChildLocationsRecursively(location, null)) {
+            locationIds.add(l.getLocationId());
+        }
+        return locationIds;
     }
 
     /**
@@ -628,38 +929,8 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
             }
         }
 
-        List<Visit> preferredVisits = visitService.getVisitsByPatient(preferred, true, false);
-        List<Visit> notPreferredVisits = visitService.getVisitsByPatient(notPreferred, true, false);
-
-        // if the non-preferred patient has any visits that overlap with visits of the preferred patient, we need to merge them together
-        for (Visit losing : notPreferredVisits) {
-            if (!losing.isVoided()) {
-                for (Visit winning : preferredVisits) {
-                    if (!winning.isVoided() && visitsOverlap(losing, winning)) {
-                        mergeVisits(winning, losing);
-                        break;
-                    }
-                }
-            }
-        }
-
-        // merging in visits from the non-preferred patient (and extending visit durations) may have caused preferred-patient visits to overlap
-        Collections.sort(preferredVisits, new Comparator<Visit>() {
-            @Override
-            public int compare(Visit left, Visit right) {
-                return OpenmrsUtil.compareWithNullAsEarliest(left.getStartDatetime(), right.getStartDatetime());
-            }
-        });
-        for (int i = 0; i < preferredVisits.size(); ++i) {
-            Visit visit = preferredVisits.get(i);
-            if (!visit.isVoided()) {
-                for (int j = i + 1; j < preferredVisits.size(); ++j) {
-                    Visit candidate = preferredVisits.get(j);
-                    if (!candidate.isVoided() && visitsOverlap(visit, candidate)) {
-                        mergeVisits(visit, candidate);
-                    }
-                }
-            }
+        for (PatientMergePlan.VisitMerge visitMerge : getPatientMergePlan(preferred, notPreferred).getVisitMerges()) {
+            mergeVisits(visitMerge.getPreferred(), visitMerge.getNotPreferred());
         }
 
         try {
@@ -681,6 +952,91 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
 
     }
 
+    /**
+     * Plans the visit merges by sweeping through the visits of both patients in order of start datetime, keeping only
+     * the visits that have not ended before the current one starts, since no later visit can overlap any other.  When
+     * two of these overlap, a visit of the preferred patient absorbs a visit of the non-preferred patient, and of two
+     * visits of the preferred patient the one that started first absorbs the other.  Visits of the non-preferred patient
+     * are never merged with each other.
+     */
+    @Override
+    @Transactional(readOnly = true)
+    public PatientMergePlan getPatientMergePlan(Patient preferred, Patient notPreferred) {
+        List<VisitMergeCandidate> candidates = new ArrayList<VisitMergeCandidate>();
+        for (Visit visit : visitService.getVisitsByPatient(preferred, true, false)) {
+            if (!visit.isVoided()) {
+                candidates.add(new VisitMergeCandidate(visit, true));
+            }
+        }
+        for (Visit visit : visitService.getVisitsByPatient(notPreferred, true, false)) {
+            if (!visit.isVoided()) {
+                candidates.add(new VisitMergeCandidate(visit, false));
+            }
+        }
+        // stable sort, so visits with the same start datetime are taken preferred patient first, in the order returned
+        candidates.sort(Comparator.comparing((VisitMergeCandidate c) -> c.startDatetime, OpenmrsUtil::compareWithNullAsEarliest)
+                .thenComparing(c -> !c.preferred));
+
+        PatientMergePlan plan = new PatientMergePlan(preferred, notPreferred);
+        List<VisitMergeCandidate> active = new ArrayList<VisitMergeCandidate>();
+        for (VisitMergeCandidate next : candidates) {
+            active.removeIf(c -> c.stopDatetime != null && next.startDatetime != null && c.stopDatetime.before(next.startDatetime));
+            active.add(next);
+            VisitMergeCandidate changed = next;
+            while (changed != null) {
+                VisitMergeCandidate other = null;
+                for (VisitMergeCandidate c : active) {
+                    if (c != changed && (c.preferred || changed.preferred) && visitsOverlap(c.visit.getLocation(),
+                            c.startDatetime, c.stopDatetime, changed.visit.getLocation(), changed.startDatetime, changed.stopDatetime)) {
+                        other = c;
+                        break;
+                    }
+                }
+                if (other == null) {
+                    changed = null;
+                }
+                else {
+                    boolean otherWins = other.preferred && (!changed.preferred || active.indexOf(other) < active.indexOf(changed));
+                    VisitMergeCandidate winner = otherWins ? other : changed;
+                    VisitMergeCandidate loser = otherWins ? changed : other;
+                    winner.absorb(loser);
+                    active.remove(loser);
+                    plan.getVisitMerges().add(new PatientMergePlan.VisitMerge(winner.visit, loser.visit, winner.startDatetime, winner.stopDatetime));
+                    changed = winner;
+                }
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * The date range a visit will have at a given point of a merge plan
+     */
+    private static class VisitMergeCandidate {
+
+        private final Visit visit;
+        private final boolean preferred;
+        private Date startDatetime;
+        private Date stopDatetime;
+
+        VisitMergeCandidate(Visit visit, boolean preferred) {
+            this.visit = visit;
+            this.preferred = preferred;
+            this.startDatetime = visit.getStartDatetime();
+            this.stopDatetime = visit.getStopDatetime();
+        }
+
+        // extends the date range in the same way as mergeVisits
+        void absorb(VisitMergeCandidate other) {
+            if (OpenmrsUtil.compareWithNullAsEarliest(other.startDatetime, startDatetime) < 0) {
+                startDatetime = other.startDatetime;
+            }
+            if (stopDatetime != null && OpenmrsUtil.compareWithNullAsLatest(stopDatetime, other.stopDatetime) < 0) {
+                stopDatetime = other.stopDatetime;
+            }
+        }
+    }
+
     private void removeAttributeOfUnknownPatient(Patient preferred) {
         PersonAttributeType unknownPatientPersonAttributeType = emrApiProperties.getUnknownPatientPersonAttributeType();
         PersonAttribute attribute = preferred.getAttribute(unknownPatientPersonAttributeType);
@@ -885,6 +1241,185 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         return wrap(visitService.saveVisit(visit));
     }
 
+    @Override
+    @Transactional
+    public List<RetrospectiveVisitResult> createRetrospectiveVisits(List<RetrospectiveVisitRequest> requests) {
+        Date now = new Date();
+        List<RetrospectiveVisitResult> results = new ArrayList<RetrospectiveVisitResult>();
+
+        // validate each request, and build the visits for the valid ones
+        List<RetrospectiveVisitResult> pending = new ArrayList<RetrospectiveVisitResult>();
+        List<Visit> visits = new ArrayList<Visit>();
+        for (RetrospectiveVisitRequest request : requests) {
+            RetrospectiveVisitResult result = new RetrospectiveVisitResult(request);
+            results.add(result);
+            result.setErrorCode(validateRetrospectiveVisit(request, now));
+            if (result.getErrorCode() == null) {
+                Visit visit;
+                try {
+                    visit = buildVisit(request.getPatient(), request.getLocation(), request.getStartDatetime());
+                }
+                catch (IllegalArgumentException e) {
+                    result.setErrorCode("emrapi.retrospectiveVisit.locationDoesNotSupportVisits");
+                    continue;
+                }
+                visit.setStopDatetime(request.getStopDatetime());
+                pending.add(result);
+                visits.add(visit);
+            }
+        }
+
+        // check for overlaps with existing visits, and with visits earlier in this batch, in memory
+        Map<Integer, List<RetrospectiveVisitInterval>> intervalsByPatientId = getRetrospectiveVisitIntervals(visits);
+        List<Visit> created = new ArrayList<Visit>();
+        for (int i = 0; i < visits.size(); i++) {
+            Visit visit = visits.get(i);
+            RetrospectiveVisitInterval interval = new RetrospectiveVisitInterval(visit.getLocation().getLocationId(),
+                    visit.getStartDatetime(), visit.getStopDatetime());
+            List<RetrospectiveVisitInterval> intervals = intervalsByPatientId.get(visit.getPatient().getPatientId());
+            if (intervals == null) {
+                intervals = new ArrayList<RetrospectiveVisitInterval>();
+                intervalsByPatientId.put(visit.getPatient().getPatientId(), intervals);
+            }
+            if (interval.overlapsAny(intervals)) {
+                pending.get(i).setErrorCode("emrapi.retrospectiveVisit.patientAlreadyHasVisit");
+                continue;
+            }
+            String validationError = validateVisit(visit);
+            if (validationError != null) {
+                pending.get(i).setErrorCode(validationError);
+                continue;
+            }
+            intervals.add(interval);
+            pending.get(i).setVisit(visitService.saveVisit(visit));
+            created.add(visit);
+            if (created.size() >= RETROSPECTIVE_VISIT_FLUSH_SIZE) {
+                emrApiDAO.flushAndEvict(created);
+                created.clear();
+            }
+        }
+        if (!created.isEmpty()) {
+            emrApiDAO.flushAndEvict(created);
+        }
+        return results;
+    }
+
+    /**
+     * @return the message code of the reason the request is invalid, or null if it is valid
+     */
+    private String validateRetrospectiveVisit(RetrospectiveVisitRequest request, Date now) {
+        if (request.getPatient() == null || request.getPatient().getPatientId() == null
+                || request.getLocation() == null || request.getStartDatetime() == null) {
+            return "emrapi.retrospectiveVisit.patientLocationAndStartDateRequired";
+        }
+        if (request.getStartDatetime().after(now)) {
+            return "emrapi.retrospectiveVisit.startDateCannotBeInFuture";
+        }
+        if (request.getStopDatetime() != null && request.getStopDatetime().after(now)) {
+            return "emrapi.retrospectiveVisit.stopDateCannotBeInFuture";
+        }
+        if (request.getStopDatetime() != null && request.getStartDatetime().after(request.getStopDatetime())) {
+            return "emrapi.retrospectiveVisit.endDateBeforeStartDateMessage";
+        }
+        return null;
+    }
+
+    /**
+     * Runs the visit validators, as saving the visit would, so that an invalid visit (e.g. one that starts before the
+     * patient's birthdate) is reported on its own row rather than failing the save and rolling back the whole batch
+     *
+     * @return the message code of the first validation error, or null if the visit is valid
+     */
+    private String validateVisit(Visit visit) {
+        Errors errors = new BindException(visit, "visit");
+        ValidateUtil.validate(visit, errors);
+        return errors.hasErrors() ? errors.getAllErrors().get(0).getCode() : null;
+    }
+
+    /**
+     * @return the location and datetimes of the existing visits, of the patients of the given visits, that could
+     * overlap any of them, loaded one chunk of patients at a time
+     */
+    private Map<Integer, List<RetrospectiveVisitInterval>> getRetrospectiveVisitIntervals(List<Visit> visits) {
+        Map<Integer, List<RetrospectiveVisitInterval>> intervalsByPatientId = new HashMap<Integer, List<RetrospectiveVisitInterval>>();
+        if (visits.isEmpty()) {
+            return intervalsByPatientId;
+        }
+        Set<Integer> patientIds = new LinkedHashSet<Integer>();
+        Set<Integer> locationIds = new HashSet<Integer>();
+        Date minStartDatetime = null;
+        Date maxStopDatetime = null;
+        boolean openEnded = false;
+        for (Visit visit : visits) {
+            patientIds.add(visit.getPatient().getPatientId());
+            locationIds.add(visit.getLocation().getLocationId());
+            if (minStartDatetime == null || visit.getStartDatetime().before(minStartDatetime)) {
+                minStartDatetime = visit.getStartDatetime();
+            }
+            if (visit.getStopDatetime() == null) {
+                openEnded = true;
+            }
+            else if (maxStopDatetime == null || visit.getStopDatetime().after(maxStopDatetime)) {
+                maxStopDatetime = visit.getStopDatetime();
+            }
+        }
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("visitType", emrApiProperties.getAtFacilityVisitType());
+        parameters.put("locationIds", locationIds);
+        parameters.put("minStartDatetime", minStartDatetime);
+        parameters.put("maxStopDatetime", openEnded ? null : maxStopDatetime);
+        List<Integer> allPatientIds = new ArrayList<Integer>(patientIds);
+        for (int i = 0; i < allPatientIds.size(); i += RETROSPECTIVE_VISIT_PATIENT_CHUNK_SIZE) {
+            parameters.put("patientIds", allPatientIds.subList(i, Math.min(i + RETROSPECTIVE_VISIT_PATIENT_CHUNK_SIZE, allPatientIds.size())));
+            for (Object[] row : emrApiDAO.executeHqlFromResource("hql/retrospective_visit_overlaps.hql", parameters, Object[].class)) {
+                Integer patientId = (Integer) row[0];
+                List<RetrospectiveVisitInterval> intervals = intervalsByPatientId.get(patientId);
+                if (intervals == null) {
+                    intervals = new ArrayList<RetrospectiveVisitInterval>();
+                    intervalsByPatientId.put(patientId, intervals);
+                }
+                intervals.add(new RetrospectiveVisitInterval((Integer) row[1], (Date) row[2], (Date) row[3]));
+            }
+        }
+        return intervalsByPatientId;
+    }
+
+    /**
+     * The location and datetimes of a visit, for checking retrospective visits for overlaps; as in
+     * {@link #hasVisitDuring(Patient, Location, Date, Date)} two visits overlap if they are at the same visit location
+     * and their (inclusive) time ranges intersect, a null stop datetime meaning an open-ended visit
+     */
+    private static class RetrospectiveVisitInterval {
+
+        private final Integer locationId;
+
+        private final Date startDatetime;
+
+        private final Date stopDatetime;
+
+        RetrospectiveVisitInterval(Integer locationId, Date startDatetime, Date stopDatetime) {
+            this.locationId = locationId;
+            this.startDatetime = startDatetime;
+            this.stopDatetime = stopDatetime;
+        }
+
+        boolean overlaps(RetrospectiveVisitInterval other) {
+            return OpenmrsUtil.nullSafeEquals(locationId, other.locationId)
+                    && (other.stopDatetime == null || startDatetime.compareTo(other.stopDatetime) <= 0)
+                    && (stopDatetime == null || stopDatetime.compareTo(other.startDatetime) >= 0);
+        }
+
+        boolean overlapsAny(List<RetrospectiveVisitInterval> intervals) {
+            for (RetrospectiveVisitInterval interval : intervals) {
+                if (overlaps(interval)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<VisitDomainWrapper> getVisits(Patient patient, Location location, Date startDatetime, Date endDatetime) {
@@ -929,12 +1464,32 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         parameters.put("denyAdmissionConcept", emrApiProperties.getDenyAdmissionConcept());
         parameters.put("patientIds", patientIds);
         parameters.put("visitIds", visitIds);
-        return emrApiDAO.executeHqlFromResource("hql/visits_awaiting_admission.hql", parameters, Visit.class);
+        if (!inpatientStatusTracker.isUpToDate()) {
+            return emrApiDAO.executeHqlFromResource("hql/visits_awaiting_admission.hql", parameters, Visit.class);
+        }
+
+        // A visit awaiting admission has a pending admission request, or ADT encounters that have since left it without
+        // one, so either way it has an inpatient status, and only the visits that do need to be checked
+        List<Integer> candidateVisitIds = getInpatientStatusVisitIds(new HashMap<>(), visitIds == null ? null : new ArrayList<>(visitIds));
+        List<Visit> ret = new ArrayList<>();
+        for (int i = 0; i < candidateVisitIds.size(); i += INPATIENT_STATUS_VISIT_CHUNK_SIZE) {
+            parameters.put("visitIds", candidateVisitIds.subList(i, Math.min(i + INPATIENT_STATUS_VISIT_CHUNK_SIZE, candidateVisitIds.size())));
+            ret.addAll(emrApiDAO.executeHqlFromResource("hql/visits_awaiting_admission.hql", parameters, Visit.class));
+        }
+        return ret;
     }
 
     @Override
     @Transactional(readOnly = true)
     public List<InpatientRequest> getInpatientRequests(InpatientRequestSearchCriteria criteria) {
+        return getInpatientRequests(criteria, inpatientStatusTracker.isUpToDate());
+    }
+
+    /**
+     * @param fromInpatientStatuses whether to only look at the visits whose inpatient status has a pending request of
+     * one of the given types, which must not be used while the statuses are being computed
+     */
+    private List<InpatientRequest> getInpatientRequests(InpatientRequestSearchCriteria criteria, boolean fromInpatientStatuses) {
 
         DispositionDescriptor descriptor = dispositionService.getDispositionDescriptor();
 
@@ -992,32 +1547,195 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         parameters.put("visitIds", criteria.getVisitIds());
         parameters.put("limitByVisit", criteria.getVisitIds() != null);
 
+        if (fromInpatientStatuses) {
+            Map<String, Object> statusParameters = new HashMap<>();
+            statusParameters.put("patientIds", criteria.getPatientIds());
+            statusParameters.put("pendingRequestTypes", dispositionTypes);
+            List<Integer> candidateVisitIds = getInpatientStatusVisitIds(statusParameters, criteria.getVisitIds());
+            if (candidateVisitIds.isEmpty()) {
+                return new ArrayList<>();
+            }
+            // beyond a single chunk, the query is left to find the visits itself
+            if (candidateVisitIds.size() <= INPATIENT_STATUS_VISIT_CHUNK_SIZE) {
+                parameters.put("visitIds", candidateVisitIds);
+                parameters.put("limitByVisit", true);
+            }
+        }
+
+        if (criteria.isSinglePassQuery()) {
+            return getInpatientRequestsFromLatestDispositions(parameters, descriptor, dispositionValuesToType, dispositionLocationIds);
+        }
+
         List<?> reqs = emrApiDAO.executeHqlFromResource("hql/inpatient_requests.hql", parameters, List.class);
         List<InpatientRequest> ret = new ArrayList<>();
         for (Object req : reqs) {
             Object[] o = (Object[]) req;
-            InpatientRequest r = new InpatientRequest();
-            r.setVisit((Visit)o[0]);
-            r.setPatient((Patient)o[1]);
-            r.setDispositionEncounter((Encounter)o[2]);
-            r.setDispositionObsGroup((Obs)o[3]);
-            Obs dispositionObs = (Obs)o[4];
-            if (dispositionObs != null) {
-                r.setDisposition(dispositionObs.getValueCoded());
-                r.setDispositionType(dispositionValuesToType.get(dispositionObs.getValueCoded()));
-            }
             Obs locationObs = (Obs)(o[5] != null ? o[5] : o[6]);
-            if (locationObs != null) {
-                r.setDispositionLocation(locationService.getLocation(Integer.parseInt(locationObs.getValueText())));
+            ret.add(buildInpatientRequest((Visit)o[0], (Patient)o[1], (Encounter)o[2], (Obs)o[3], (Obs)o[4], locationObs, dispositionValuesToType));
+        }
+        return ret;
+    }
+
+    /**
+     * Alternative to hql/inpatient_requests.hql, which avoids evaluating correlated subqueries for each candidate
+     * disposition.  The latest disposition for each matching visit is determined from a single ordered query, and is
+     * then checked against the latest ADT encounter and latest admission denial for each of those visits, each of which
+     * is retrieved in a single grouped query.
+     */
+    private List<InpatientRequest> getInpatientRequestsFromLatestDispositions(Map<String, Object> parameters,
+                                                                             DispositionDescriptor descriptor,
+                                                                             Map<Concept, DispositionType> dispositionValuesToType,
+                                                                             List<String> dispositionLocationIds) {
+        if (dispositionValuesToType.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        // Rows are ordered by visit, then by obsDatetime and obsId, so the last row for each visit is its latest disposition
+        List<?> rows = emrApiDAO.executeHqlFromResource("hql/inpatient_request_dispositions.hql", parameters, List.class);
+        Map<Integer, Object[]> latestDispositions = new LinkedHashMap<>();
+        for (Object row : rows) {
+            Object[] o = (Object[]) row;
+            latestDispositions.put(((Visit) o[0]).getVisitId(), o);
+        }
+        for (Iterator<Object[]> i = latestDispositions.values().iterator(); i.hasNext(); ) {
+            Object[] o = i.next();
+            Encounter dispoEncounter = (Encounter) o[1];
+            Obs dispo = (Obs) o[2];
+            if (dispoEncounter.getVoided() || dispo.getPerson().getDead() || !dispositionValuesToType.containsKey(dispo.getValueCoded())) {
+                i.remove();
             }
-            ret.add(r);
+        }
+        if (latestDispositions.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        Map<String, Object> visitParameters = new HashMap<>();
+        visitParameters.put("visitIds", new ArrayList<>(latestDispositions.keySet()));
+        visitParameters.put("adtEncounterTypes", parameters.get("adtEncounterTypes"));
+        Map<Integer, Date> latestAdtEncounters = getDatesByVisitId("hql/inpatient_request_latest_adt_encounters.hql", visitParameters);
+
+        visitParameters.remove("adtEncounterTypes");
+        visitParameters.put("adtDecisionConcept", parameters.get("adtDecisionConcept"));
+        visitParameters.put("denyConcept", parameters.get("denyConcept"));
+        Map<Integer, Date> latestDenials = getDatesByVisitId("hql/inpatient_request_latest_denials.hql", visitParameters);
+
+        for (Iterator<Map.Entry<Integer, Object[]>> i = latestDispositions.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Integer, Object[]> entry = i.next();
+            Encounter dispoEncounter = (Encounter) entry.getValue()[1];
+            Obs dispo = (Obs) entry.getValue()[2];
+            Date latestAdtEncounter = latestAdtEncounters.get(entry.getKey());
+            Date latestDenial = latestDenials.get(entry.getKey());
+            if (latestAdtEncounter != null && latestAdtEncounter.getTime() >= dispo.getObsDatetime().getTime()) {
+                i.remove();
+            }
+            else if (latestDenial != null && latestDenial.getTime() > dispoEncounter.getEncounterDatetime().getTime()) {
+                i.remove();
+            }
+        }
+
+        // Retrieve the members of the remaining disposition groups, which contain any disposition locations
+        Map<Integer, List<Obs>> groupMembers = new HashMap<>();
+        for (Object[] o : latestDispositions.values()) {
+            Obs group = ((Obs) o[2]).getObsGroup();
+            if (group != null) {
+                groupMembers.put(group.getObsId(), new ArrayList<>());
+            }
+        }
+        if (!groupMembers.isEmpty()) {
+            Map<String, Object> groupParameters = new HashMap<>();
+            groupParameters.put("obsGroupIds", new ArrayList<>(groupMembers.keySet()));
+            List<Obs> members = emrApiDAO.executeHqlFromResource("hql/inpatient_request_group_members.hql", groupParameters, Obs.class);
+            for (Obs member : members) {
+                groupMembers.get(member.getObsGroup().getObsId()).add(member);
+            }
+        }
+
+        Map<Integer, InpatientRequest> ret = new TreeMap<>();
+        for (Object[] o : latestDispositions.values()) {
+            Visit visit = (Visit) o[0];
+            Encounter dispoEncounter = (Encounter) o[1];
+            Obs dispo = (Obs) o[2];
+            Obs group = dispo.getObsGroup();
+            List<Obs> members = group == null ? Collections.emptyList() : groupMembers.get(group.getObsId());
+
+            boolean matchesDispositionLocation = dispositionLocationIds == null;
+            Obs admitLocation = null;
+            Obs transferLocation = null;
+            for (Obs member : members) {
+                if (dispositionLocationIds != null && dispositionLocationIds.contains(member.getValueText())) {
+                    matchesDispositionLocation = true;
+                }
+                if (!member.getVoided()) {
+                    if (member.getConcept().equals(descriptor.getAdmissionLocationConcept())) {
+                        admitLocation = member;
+                    }
+                    else if (member.getConcept().equals(descriptor.getInternalTransferLocationConcept())) {
+                        transferLocation = member;
+                    }
+                }
+            }
+            if (matchesDispositionLocation) {
+                Obs locationObs = admitLocation != null ? admitLocation : transferLocation;
+                ret.put(dispo.getObsId(), buildInpatientRequest(visit, dispoEncounter.getPatient(), dispoEncounter, group, dispo, locationObs, dispositionValuesToType));
+            }
+        }
+        return new ArrayList<>(ret.values());
+    }
+
+    private Map<Integer, Date> getDatesByVisitId(String resource, Map<String, Object> parameters) {
+        Map<Integer, Date> ret = new HashMap<>();
+        List<?> rows = emrApiDAO.executeHqlFromResource(resource, parameters, List.class);
+        for (Object row : rows) {
+            Object[] o = (Object[]) row;
+            ret.put((Integer) o[0], (Date) o[1]);
         }
         return ret;
     }
 
+    private InpatientRequest buildInpatientRequest(Visit visit, Patient patient, Encounter dispositionEncounter, Obs dispositionObsGroup,
+                                                   Obs dispositionObs, Obs locationObs, Map<Concept, DispositionType> dispositionValuesToType) {
+        InpatientRequest r = new InpatientRequest();
+        r.setVisit(visit);
+        r.setPatient(patient);
+        r.setDispositionEncounter(dispositionEncounter);
+        r.setDispositionObsGroup(dispositionObsGroup);
+        if (dispositionObs != null) {
+            r.setDisposition(dispositionObs.getValueCoded());
+            r.setDispositionType(dispositionValuesToType.get(dispositionObs.getValueCoded()));
+        }
+        if (locationObs != null) {
+            r.setDispositionLocation(locationService.getLocation(Integer.parseInt(locationObs.getValueText())));
+        }
+        return r;
+    }
+
     @Override
     @Transactional(readOnly = true)
     public List<InpatientAdmission> getInpatientAdmissions(InpatientAdmissionSearchCriteria criteria) {
+        return getInpatientAdmissionSearchResult(criteria).getAdmissions();
+    }
+
+    @Override
+    @Transactional(readOnly = true)
+    public InpatientAdmissionSearchResult getInpatientAdmissionSearchResult(InpatientAdmissionSearchCriteria criteria) {
+        return getInpatientAdmissionSearchResult(criteria, inpatientStatusTracker.isUpToDate(), true);
+    }
+
+    /**
+     * @param fromInpatientStatuses whether to find the visits of admissions that have not been discharged from their
+     * inpatient statuses, which must not be used while the statuses are being computed
+     * @param withRequests whether to set the current inpatient request of each admission
+     */
+    private InpatientAdmissionSearchResult getInpatientAdmissionSearchResult(InpatientAdmissionSearchCriteria criteria,
+                                                                             boolean fromInpatientStatuses, boolean withRequests) {
+        InpatientAdmissionSearchResult result = new InpatientAdmissionSearchResult();
+        result.setTotalCount(0L);
+
+        // No admission can have a current inpatient location within an empty list of locations
+        List<Location> currentInpatientLocations = criteria.getCurrentInpatientLocations();
+        if (currentInpatientLocations != null && currentInpatientLocations.isEmpty()) {
+            return result;
+        }
 
         // Determine whether to filter visits at a particular location
         Location visitLocation = null ;
@@ -1025,10 +1743,8 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
             visitLocation = getLocationThatSupportsVisits(criteria.getVisitLocation());
         }
 
-        EncounterType admissionEncounterType = emrApiProperties.getAdmissionEncounterType();
-        EncounterType transferEncounterType = emrApiProperties.getTransferWithinHospitalEncounterType();
-        EncounterType dischargeEncounterType = emrApiProperties.getExitFromInpatientEncounterType();
-
+        // Find the matching visits, filtering by current location and discharge status in the database. Only their ids
+        // are fetched, so the total count is taken from the same query and the requested page is cut from it here
         Map<String, Object> parameters = new HashMap<>();
         parameters.put("visitLocation", visitLocation);
         parameters.put("admissionEncounterType", emrApiProperties.getAdmissionEncounterType());
@@ -1038,20 +1754,60 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
         parameters.put("limitByPatient", criteria.getPatientIds() != null);
         parameters.put("visitIds", criteria.getVisitIds());
         parameters.put("limitByVisit", criteria.getVisitIds() != null);
+        parameters.put("currentInpatientLocations", currentInpatientLocations);
+        parameters.put("limitByCurrentLocation", currentInpatientLocations != null);
+        parameters.put("excludeDischarged", !criteria.isIncludeDischarged() || currentInpatientLocations != null);
+
+        List<Integer> visitIds;
+        if (fromInpatientStatuses && (Boolean) parameters.get("excludeDischarged")) {
+            Map<String, Object> statusParameters = new HashMap<>();
+            statusParameters.put("visitLocation", visitLocation);
+            statusParameters.put("patientIds", criteria.getPatientIds());
+            statusParameters.put("admittedOnly", true);
+            statusParameters.put("excludeVoidedPatients", true);
+            statusParameters.put("currentInpatientLocations", currentInpatientLocations);
+            visitIds = getInpatientStatusVisitIds(statusParameters, criteria.getVisitIds());
+        }
+        else {
+            visitIds = emrApiDAO.executeHqlFromResource("hql/inpatient_admission_visit_ids.hql", parameters, Integer.class);
+        }
+        result.setTotalCount((long) visitIds.size());
+
+        int fromIndex = criteria.getStartIndex() == null ? 0 : Math.min(Math.max(criteria.getStartIndex(), 0), visitIds.size());
+        int toIndex = criteria.getLimit() == null ? visitIds.size() : Math.min(fromIndex + Math.max(criteria.getLimit(), 0), visitIds.size());
+        visitIds = visitIds.subList(fromIndex, toIndex);
+        if (visitIds.isEmpty()) {
+            return result;
+        }
 
-        List<?> l = emrApiDAO.executeHqlFromResource("hql/inpatient_admissions.hql", parameters, List.class);
-        Map<Visit, InpatientAdmission> m = new LinkedHashMap<>();
+        // Load the ADT encounters for the matching visits only
+        EncounterType admissionEncounterType = emrApiProperties.getAdmissionEncounterType();
+        EncounterType transferEncounterType = emrApiProperties.getTransferWithinHospitalEncounterType();
+        EncounterType dischargeEncounterType = emrApiProperties.getExitFromInpatientEncounterType();
+
+        Map<String, Object> encounterParameters = new HashMap<>();
+        encounterParameters.put("visitLocation", null);
+        encounterParameters.put("admissionEncounterType", admissionEncounterType);
+        encounterParameters.put("transferEncounterType", transferEncounterType);
+        encounterParameters.put("dischargeEncounterType", dischargeEncounterType);
+        encounterParameters.put("patientIds", null);
+        encounterParameters.put("limitByPatient", false);
+        encounterParameters.put("visitIds", visitIds);
+        encounterParameters.put("limitByVisit", true);
+
+        List<?> l = emrApiDAO.executeHqlFromResource("hql/inpatient_admissions.hql", encounterParameters, List.class);
+        Map<Integer, InpatientAdmission> m = new HashMap<>();
         for (Object req : l) {
             Object[] o = (Object[]) req;
             Visit visit = (Visit)o[0];
             Patient patient = (Patient)o[1];
             Encounter encounter = (Encounter)o[2];
-            InpatientAdmission admission = m.get(visit);
+            InpatientAdmission admission = m.get(visit.getVisitId());
             if (admission == null) {
                 admission = new InpatientAdmission();
                 admission.setVisit(visit);
                 admission.setPatient(patient);
-                m.put(visit, admission);
+                m.put(visit.getVisitId(), admission);
             }
             if (encounter.getEncounterType().equals(admissionEncounterType)) {
                 admission.getAdmissionEncounters().add(encounter);
@@ -1064,32 +1820,216 @@ public class AdtServiceImpl extends BaseOpenmrsService implements AdtService {
             }
         }
 
-        // Filter out any admissions that do not match the search criteria
-        List<Integer> visitIds = new ArrayList<>();
-        for (Iterator<Map.Entry<Visit, InpatientAdmission>> i = m.entrySet().iterator(); i.hasNext(); ) {
-            InpatientAdmission admission = i.next().getValue();
-            if (criteria.getCurrentInpatientLocations() != null && !criteria.getCurrentInpatientLocations().contains(admission.getCurrentInpatientLocation())) {
-                i.remove();
+        // Retrieve InpatientRequests associated with these admissions prior to returning them
+        if (withRequests) {
+            InpatientRequestSearchCriteria requestCriteria = new InpatientRequestSearchCriteria();
+            requestCriteria.setVisitIds(visitIds);
+            List<InpatientRequest> requests = getInpatientRequests(requestCriteria, false);
+            for (InpatientRequest r : requests) {
+                InpatientAdmission admission = m.get(r.getVisit().getVisitId());
+                if (admission != null) {
+                    admission.setCurrentInpatientRequest(r);
+                }
             }
-            else if (!criteria.isIncludeDischarged() && admission.isDischarged()) {
-                i.remove();
+        }
+
+        for (Integer visitId : visitIds) {
+            InpatientAdmission admission = m.get(visitId);
+            if (admission != null) {
+                result.getAdmissions().add(admission);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    @Transactional
+    public InpatientStatus updateInpatientStatus(Visit visit) {
+        updateInpatientStatuses(Collections.singletonList(visit.getVisitId()));
+        return getInpatientStatusesByVisitId(Collections.singletonList(visit.getVisitId())).get(visit.getVisitId());
+    }
+
+    @Override
+    @Transactional
+    public int updateInpatientStatuses(Collection<Integer> visitIds) {
+        if (visitIds == null || visitIds.isEmpty()) {
+            return 0;
+        }
+        List<Integer> ids = new ArrayList<>(visitIds);
+        Map<Integer, InpatientStatus> existing = getInpatientStatusesByVisitId(ids);
+
+        InpatientAdmissionSearchCriteria admissionCriteria = new InpatientAdmissionSearchCriteria();
+        admissionCriteria.setVisitIds(ids);
+        admissionCriteria.setIncludeDischarged(true);
+        Map<Integer, InpatientAdmission> admissions = new HashMap<>();
+        for (InpatientAdmission admission : getInpatientAdmissionSearchResult(admissionCriteria, false, false).getAdmissions()) {
+            admissions.put(admission.getVisit().getVisitId(), admission);
+        }
+        Map<Integer, InpatientRequest> requests = new HashMap<>();
+        if (dispositionService.dispositionsSupported()) {
+            InpatientRequestSearchCriteria requestCriteria = new InpatientRequestSearchCriteria();
+            requestCriteria.setVisitIds(ids);
+            for (InpatientRequest request : getInpatientRequests(requestCriteria, false)) {
+                requests.put(request.getVisit().getVisitId(), request);
+            }
+        }
+
+        // visits that are closed, voided or gone have neither, so their statuses are removed
+        int changed = 0;
+        for (Integer visitId : ids) {
+            InpatientAdmission admission = admissions.get(visitId);
+            InpatientRequest request = requests.get(visitId);
+            InpatientStatus status = existing.get(visitId);
+            if (admission == null && request == null) {
+                if (status != null) {
+                    inpatientStatusDAO.delete(status);
+                    changed++;
+                }
             }
-            else {
-                visitIds.add(admission.getVisit().getVisitId());
+            else if (reconcileInpatientStatus(status, admission == null ? request.getVisit() : admission.getVisit(), admission, request)) {
+                changed++;
             }
         }
+        return changed;
+    }
 
-        // Retrieve InpatientRequests associated with these admissions prior to returning them
-        InpatientRequestSearchCriteria requestCriteria = new InpatientRequestSearchCriteria();
-        requestCriteria.setVisitIds(visitIds);
-        List<InpatientRequest> requests = getInpatientRequests(requestCriteria);
-        for (InpatientRequest r : requests) {
-            InpatientAdmission admission = m.get(r.getVisit());
-            if (admission != null) {
-                admission.setCurrentInpatientRequest(r);
+    @Override
+    @Transactional(readOnly = true)
+    public List<InpatientStatus> getInpatientStatuses(Location currentLocation) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("currentLocation", currentLocation);
+        return emrApiDAO.executeHqlFromResource("hql/inpatient_statuses.hql", parameters, InpatientStatus.class);
+    }
+
+    @Override
+    public int rebuildInpatientStatuses() {
+        // every row is recomputed below, so whatever was stale until now no longer is
+        inpatientStatusTracker.clear();
+
+        // the visits with ADT encounters or pending requests, and those that have a status that may no longer apply
+        Set<Integer> visitIds = new TreeSet<>();
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("visitLocation", null);
+        parameters.put("admissionEncounterType", emrApiProperties.getAdmissionEncounterType());
+        parameters.put("transferEncounterType", emrApiProperties.getTransferWithinHospitalEncounterType());
+        parameters.put("dischargeEncounterType", emrApiProperties.getExitFromInpatientEncounterType());
+        parameters.put("patientIds", null);
+        parameters.put("limitByPatient", false);
+        parameters.put("visitIds", null);
+        parameters.put("limitByVisit", false);
+        parameters.put("currentInpatientLocations", null);
+        parameters.put("limitByCurrentLocation", false);
+        parameters.put("excludeDischarged", false);
+        visitIds.addAll(emrApiDAO.executeHqlFromResource("hql/inpatient_admission_visit_ids.hql", parameters, Integer.class));
+        if (dispositionService.dispositionsSupported()) {
+            for (InpatientRequest request : getInpatientRequests(new InpatientRequestSearchCriteria(), false)) {
+                visitIds.add(request.getVisit().getVisitId());
             }
         }
+        visitIds.addAll(emrApiDAO.executeHqlFromResource("hql/inpatient_status_all_visit_ids.hql", new HashMap<>(), Integer.class));
+        Context.clearSession();
 
-        return new ArrayList<>(m.values());
+        // go through the service proxy so that each page is updated in its own transaction
+        AdtService adtService = Context.getService(AdtService.class);
+        List<Integer> ids = new ArrayList<>(visitIds);
+        int changed = 0;
+        for (int i = 0; i < ids.size(); i += INPATIENT_STATUS_REBUILD_PAGE_SIZE) {
+            changed += adtService.updateInpatientStatuses(ids.subList(i, Math.min(i + INPATIENT_STATUS_REBUILD_PAGE_SIZE, ids.size())));
+            // the page has already been committed, so there is nothing to flush
+            Context.clearSession();
+        }
+        inpatientStatusTracker.rebuildCompleted();
+        return changed;
+    }
+
+    /**
+     * @param parameters any of visitLocation, patientIds, admittedOnly, excludeVoidedPatients, currentInpatientLocations
+     * and pendingRequestTypes to filter the open visits by, the rest being left out
+     * @param visitIds if not null, only these visits are looked at
+     * @return the ids of the open visits whose inpatient status matches
+     */
+    private List<Integer> getInpatientStatusVisitIds(Map<String, Object> parameters, List<Integer> visitIds) {
+        Object patientIds = parameters.get("patientIds");
+        Object currentInpatientLocations = parameters.get("currentInpatientLocations");
+        Object pendingRequestTypes = parameters.get("pendingRequestTypes");
+        parameters.putIfAbsent("visitLocation", null);
+        parameters.put("patientIds", patientIds);
+        parameters.put("limitByPatient", patientIds != null);
+        parameters.put("visitIds", visitIds);
+        parameters.put("limitByVisit", visitIds != null);
+        parameters.put("admittedOnly", Boolean.TRUE.equals(parameters.get("admittedOnly")));
+        parameters.put("excludeVoidedPatients", Boolean.TRUE.equals(parameters.get("excludeVoidedPatients")));
+        parameters.put("currentInpatientLocations", currentInpatientLocations);
+        parameters.put("limitByCurrentLocation", currentInpatientLocations != null);
+        parameters.put("pendingRequestTypes", pendingRequestTypes);
+        parameters.put("limitByPendingRequestType", pendingRequestTypes != null);
+        return emrApiDAO.executeHqlFromResource("hql/inpatient_status_visit_ids.hql", parameters, Integer.class);
+    }
+
+    private boolean reconcileInpatientStatus(InpatientStatus status, Visit visit, InpatientAdmission admission, InpatientRequest request) {
+        if (status == null) {
+            status = new InpatientStatus();
+        }
+        boolean changed = applyInpatientStatus(status, visit, admission, request);
+        if (changed) {
+            inpatientStatusDAO.saveOrUpdate(status);
+        }
+        return changed;
+    }
+
+    /**
+     * Sets the fields of the given status from the given admission and request, either of which may be null
+     * @return true if any field of the status was changed
+     */
+    private boolean applyInpatientStatus(InpatientStatus status, Visit visit, InpatientAdmission admission, InpatientRequest request) {
+        boolean admitted = admission != null && !admission.isDischarged();
+        Location currentLocation = admission == null ? null : admission.getCurrentInpatientLocation();
+        Encounter firstAdmission = admission == null ? null : admission.getFirstAdmissionOrTransferEncounter();
+        Date admissionDatetime = firstAdmission == null ? null : firstAdmission.getEncounterDatetime();
+        Date transferDatetime = null;
+        if (admission != null) {
+            for (Encounter transfer : admission.getTransferEncounters()) {
+                transferDatetime = transfer.getEncounterDatetime();
+            }
+        }
+        DispositionType pendingRequestType = request == null ? null : request.getDispositionType();
+        Location pendingRequestLocation = request == null ? null : request.getDispositionLocation();
+
+        boolean changed = status.getInpatientStatusId() == null
+                || !OpenmrsUtil.nullSafeEquals(status.getVisit(), visit)
+                || !OpenmrsUtil.nullSafeEquals(status.getPatient(), visit.getPatient())
+                || status.isAdmitted() != admitted
+                || !OpenmrsUtil.nullSafeEquals(status.getCurrentLocation(), currentLocation)
+                || !sameTime(status.getAdmissionDatetime(), admissionDatetime)
+                || !sameTime(status.getTransferDatetime(), transferDatetime)
+                || status.getPendingRequestType() != pendingRequestType
+                || !OpenmrsUtil.nullSafeEquals(status.getPendingRequestLocation(), pendingRequestLocation);
+        if (changed) {
+            status.setVisit(visit);
+            status.setPatient(visit.getPatient());
+            status.setAdmitted(admitted);
+            status.setCurrentLocation(currentLocation);
+            status.setAdmissionDatetime(admissionDatetime);
+            status.setTransferDatetime(transferDatetime);
+            status.setPendingRequestType(pendingRequestType);
+            status.setPendingRequestLocation(pendingRequestLocation);
+            status.setDateUpdated(new Date());
+        }
+        return changed;
+    }
+
+    private boolean sameTime(Date d1, Date d2) {
+        return d1 == null ? d2 == null : d2 != null && d1.getTime() == d2.getTime();
+    }
+
+    private Map<Integer, InpatientStatus> getInpatientStatusesByVisitId(List<Integer> visitIds) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("visitIds", visitIds);
+        parameters.put("limitByVisit", visitIds != null);
+        Map<Integer, InpatientStatus> ret = new LinkedHashMap<>();
+        for (InpatientStatus status : emrApiDAO.executeHqlFromResource("hql/inpatient_statuses_for_visits.hql", parameters, InpatientStatus.class)) {
+            ret.put(status.getVisit().getVisitId(), status);
+        }
+        return ret;
     }
 }
@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Progress and counters for a single execution of the {@link CloseStaleVisitsTask}
+ */
+@Getter
+public class CloseStaleVisitsRun {
+
+    /**
+     * the id of the run, shared with the interrupted run that this one resumed, if any
+     */
+    private final String runId;
+
+    private final List<CloseStaleVisitsShard> shards;
+
+    /**
+     * the number of shards that were skipped because a previous, interrupted run had already completed them
+     */
+    private final int resumedShards;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private volatile long endTime;
+
+    public CloseStaleVisitsRun(String runId, List<CloseStaleVisitsShard> shards, int resumedShards) {
+        this.runId = runId;
+        this.shards = Collections.unmodifiableList(shards);
+        this.resumedShards = resumedShards;
+    }
+
+    public void finish() {
+        endTime = System.currentTimeMillis();
+    }
+
+    public boolean isFinished() {
+        return endTime != 0;
+    }
+
+    public long getElapsedMillis() {
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    public int getCompletedShards() {
+        int completed = 0;
+        for (CloseStaleVisitsShard shard : shards) {
+            if (shard.isFinished()) {
+                completed++;
+            }
+        }
+        return completed;
+    }
+
+    public int getVisitsScanned() {
+        int scanned = 0;
+        for (CloseStaleVisitsShard shard : shards) {
+            scanned += shard.getVisitsScanned().get();
+        }
+        return scanned;
+    }
+
+    public int getVisitsClosed() {
+        int closed = 0;
+        for (CloseStaleVisitsShard shard : shards) {
+            closed += shard.getVisitsClosed().get();
+        }
+        return closed;
+    }
+
+    public int getFailures() {
+        int failures = 0;
+        for (CloseStaleVisitsShard shard : shards) {
+            failures += shard.getFailures().get();
+        }
+        return failures;
+    }
+
+    @Override
+    public String toString() {
+        return "run=" + runId + ", shards=" + getCompletedShards() + "/" + shards.size() + " (" + resumedShards + " resumed)"
+                + ", scanned=" + getVisitsScanned() + ", closed=" + getVisitsClosed() + ", failures=" + getFailures()
+                + ", elapsed=" + getElapsedMillis() + "ms";
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A unit of work for the {@link CloseStaleVisitsTask}: the candidate visits at one visit location whose ids fall
+ * within a fixed range. Because the range boundaries do not depend on the data, the same shard has the same key on
+ * every run, which is what allows a run to be resumed from its checkpoint.
+ */
+@Getter
+public class CloseStaleVisitsShard {
+
+    private final Integer locationId;
+
+    private final int minVisitId;
+
+    private final int maxVisitId;
+
+    private final List<Integer> visitIds;
+
+    private final AtomicInteger visitsScanned = new AtomicInteger();
+
+    private final AtomicInteger visitsClosed = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile long startTime;
+
+    private volatile long endTime;
+
+    public CloseStaleVisitsShard(Integer locationId, int minVisitId, int maxVisitId, List<Integer> visitIds) {
+        this.locationId = locationId;
+        this.minVisitId = minVisitId;
+        this.maxVisitId = maxVisitId;
+        this.visitIds = Collections.unmodifiableList(visitIds);
+    }
+
+    /**
+     * @return the key under which this shard is recorded in the checkpoint, e.g. "3:10000-19999"
+     */
+    public String getKey() {
+        return locationId + ":" + minVisitId + "-" + maxVisitId;
+    }
+
+    public void start() {
+        startTime = System.currentTimeMillis();
+    }
+
+    public void finish() {
+        endTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the time spent processing this shard in milliseconds, so far if it has not finished yet
+     */
+    public long getElapsedMillis() {
+        if (startTime == 0) {
+            return 0;
+        }
+        return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+    }
+
+    public boolean isFinished() {
+        return endTime != 0;
+    }
+
+    public boolean isSuccessful() {
+        return isFinished() && failures.get() == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + getKey() + ": scanned=" + visitsScanned.get() + ", closed=" + visitsClosed.get()
+                + ", failures=" + failures.get() + ", elapsed=" + getElapsedMillis() + "ms";
+    }
+
+}
@@ -14,17 +14,297 @@
 
 package org.openmrs.module.emrapi.adt;
 
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.openmrs.Location;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.UserContext;
+import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.scheduler.tasks.AbstractTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Closes stale visits using the set-based queries of {@link AdtService}. The work is split into shards by visit
+ * location and by fixed visit-id ranges (see {@link CloseStaleVisitsShard}), which are processed on a bounded pool of
+ * threads. The id and start time of the run, and the key of each shard it has completed, are saved to the
+ * {@link EmrApiConstants#GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS} global property, so a run that is interrupted (e.g. by
+ * a restart) is resumed where it left off by the next one, as long as it started less than
+ * {@link #CHECKPOINT_MAX_AGE_HOURS} hours ago. The checkpoint is discarded whenever a run finishes, whether or not some
+ * of its shards failed, so failed or newly stale visits are always picked up again by the next run.
+ * <p>
+ * Supported task properties: "batchSize" (visits closed per transaction), "threads" (shards processed concurrently)
+ * and "shardSize" (width of the visit-id range of each shard).
+ *
  * @see org.openmrs.module.emrapi.adt.AdtService#closeInactiveVisits()
  */
 public class CloseStaleVisitsTask extends AbstractTask {
 
+    private static final Logger log = LoggerFactory.getLogger(CloseStaleVisitsTask.class);
+
+    public static final String BATCH_SIZE_PROPERTY = "batchSize";
+
+    public static final String THREADS_PROPERTY = "threads";
+
+    public static final String SHARD_SIZE_PROPERTY = "shardSize";
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final int DEFAULT_THREADS = 2;
+
+    public static final int DEFAULT_SHARD_SIZE = 10000;
+
+    public static final int CHECKPOINT_MAX_AGE_HOURS = 24;
+
+    private static volatile CloseStaleVisitsRun lastRun;
+
+    /**
+     * @return the counters of the current run if one is in progress, otherwise of the last run, or null if the task
+     * has not run since startup
+     */
+    public static CloseStaleVisitsRun getLastRun() {
+        return lastRun;
+    }
+
     @Override
     public void execute() {
-        Context.getService(AdtService.class).closeInactiveVisits();
+        closeStaleVisits(getIntProperty(BATCH_SIZE_PROPERTY, DEFAULT_BATCH_SIZE),
+                getIntProperty(THREADS_PROPERTY, DEFAULT_THREADS),
+                getIntProperty(SHARD_SIZE_PROPERTY, DEFAULT_SHARD_SIZE));
+    }
+
+    /**
+     * Closes the stale visits of all shards that are not yet in the checkpoint. With a single thread the shards are
+     * processed in the calling thread.
+     *
+     * @param batchSize the maximum number of visits to close per transaction
+     * @param threads the maximum number of shards to process concurrently
+     * @param shardSize the width of the visit-id range of each shard
+     * @return the counters for this run
+     */
+    public CloseStaleVisitsRun closeStaleVisits(int batchSize, int threads, int shardSize) {
+        if (batchSize < 1 || threads < 1 || shardSize < 1) {
+            throw new IllegalArgumentException("batchSize, threads and shardSize must be at least 1");
+        }
+        AdtService adtService = Context.getService(AdtService.class);
+        Checkpoint checkpoint = getCheckpoint();
+        Date now = new Date();
+
+        List<CloseStaleVisitsShard> shards = new ArrayList<CloseStaleVisitsShard>();
+        int resumedShards = 0;
+        for (Location location : adtService.getPossibleLocationsToCloseVisit()) {
+            Map<Integer, List<Integer>> visitIdsByRange = new TreeMap<Integer, List<Integer>>();
+            for (Integer visitId : adtService.getInactiveVisitCandidateIds(Collections.singletonList(location), now)) {
+                int minVisitId = (visitId / shardSize) * shardSize;
+                if (!visitIdsByRange.containsKey(minVisitId)) {
+                    visitIdsByRange.put(minVisitId, new ArrayList<Integer>());
+                }
+                visitIdsByRange.get(minVisitId).add(visitId);
+            }
+            for (Map.Entry<Integer, List<Integer>> range : visitIdsByRange.entrySet()) {
+                CloseStaleVisitsShard shard = new CloseStaleVisitsShard(location.getLocationId(), range.getKey(),
+                        range.getKey() + shardSize - 1, range.getValue());
+                if (checkpoint.completedShards.contains(shard.getKey())) {
+                    resumedShards++;
+                } else {
+                    shards.add(shard);
+                }
+            }
+        }
+
+        CloseStaleVisitsRun run = new CloseStaleVisitsRun(checkpoint.runId, shards, resumedShards);
+        lastRun = run;
+        log.info("Closing stale visits in {} shards, {} already completed by run {} that was interrupted", shards.size(),
+                resumedShards, checkpoint.runId);
+        saveCheckpoint(checkpoint);
+
+        boolean interrupted = false;
+        try {
+            interrupted = threads == 1 ?
+                    !processInCurrentThread(shards, batchSize, checkpoint) :
+                    !processConcurrently(shards, batchSize, threads, checkpoint);
+        } finally {
+            if (!interrupted) {
+                // the run is over, so the next one starts afresh, whether or not some shards failed
+                saveCheckpoint(null);
+            }
+            run.finish();
+            log.info("Finished closing stale visits: {}", run);
+        }
+        return run;
+    }
+
+    /**
+     * @return false if the thread was interrupted before all shards were processed
+     */
+    private boolean processInCurrentThread(List<CloseStaleVisitsShard> shards, int batchSize, Checkpoint checkpoint) {
+        for (CloseStaleVisitsShard shard : shards) {
+            if (Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            processShard(shard, batchSize);
+            checkpoint(shard, checkpoint);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the thread was interrupted before all shards were processed
+     */
+    private boolean processConcurrently(List<CloseStaleVisitsShard> shards, final int batchSize, int threads,
+                                        Checkpoint checkpoint) {
+        final UserContext userContext = Context.getUserContext();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, shards.size())));
+        CompletionService<CloseStaleVisitsShard> completionService = new ExecutorCompletionService<CloseStaleVisitsShard>(executor);
+        try {
+            for (final CloseStaleVisitsShard shard : shards) {
+                completionService.submit(() -> {
+                    Context.openSession();
+                    try {
+                        Context.setUserContext(userContext);
+                        processShard(shard, batchSize);
+                        return shard;
+                    } finally {
+                        Context.closeSession();
+                    }
+                });
+            }
+            // checkpoints are saved from this thread only, as each shard completes
+            for (int i = 0; i < shards.size(); i++) {
+                try {
+                    checkpoint(completionService.take().get(), checkpoint);
+                } catch (ExecutionException e) {
+                    log.error("Failed to process a shard of stale visits", e.getCause());
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while closing stale visits, the next run will resume from the last checkpoint");
+            return false;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Closes the stale visits of the shard, a chunk of batchSize visits per transaction
+     */
+    void processShard(CloseStaleVisitsShard shard, int batchSize) {
+        AdtService adtService = Context.getService(AdtService.class);
+        List<Integer> visitIds = shard.getVisitIds();
+        shard.start();
+        try {
+            for (int i = 0; i < visitIds.size(); i += batchSize) {
+                List<Integer> chunk = visitIds.subList(i, Math.min(i + batchSize, visitIds.size()));
+                try {
+                    shard.getVisitsClosed().addAndGet(adtService.closeInactiveVisits(chunk));
+                } catch (Exception e) {
+                    log.warn("Failed to close visits " + chunk + " of " + shard.getKey(), e);
+                    shard.getFailures().addAndGet(chunk.size());
+                }
+                shard.getVisitsScanned().addAndGet(chunk.size());
+                // each chunk has been committed by closeInactiveVisits, so there is nothing to flush
+                Context.clearSession();
+            }
+        } finally {
+            shard.finish();
+        }
+        log.debug("Processed {}", shard);
+    }
+
+    /**
+     * Records the shard as completed, unless some of its visits failed, in which case it is left for the next run
+     */
+    private void checkpoint(CloseStaleVisitsShard shard, Checkpoint checkpoint) {
+        if (shard.isSuccessful()) {
+            checkpoint.completedShards.add(shard.getKey());
+            saveCheckpoint(checkpoint);
+        }
+    }
+
+    /**
+     * @return the checkpoint of the last run, if it was interrupted less than {@link #CHECKPOINT_MAX_AGE_HOURS} ago,
+     * otherwise a new one
+     */
+    private Checkpoint getCheckpoint() {
+        String value = Context.getAdministrationService().getGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS);
+        Checkpoint checkpoint = Checkpoint.parse(value);
+        long maxAge = TimeUnit.HOURS.toMillis(CHECKPOINT_MAX_AGE_HOURS);
+        if (checkpoint == null || System.currentTimeMillis() - checkpoint.startTime > maxAge) {
+            if (StringUtils.isNotBlank(value)) {
+                log.info("Discarding the checkpoint of an earlier run of closing stale visits: {}", value);
+            }
+            checkpoint = new Checkpoint(UUID.randomUUID().toString(), System.currentTimeMillis(), new TreeSet<String>());
+        }
+        return checkpoint;
+    }
+
+    private void saveCheckpoint(Checkpoint checkpoint) {
+        AdministrationService administrationService = Context.getAdministrationService();
+        administrationService.setGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS,
+                checkpoint == null ? "" : checkpoint.format());
+    }
+
+    private int getIntProperty(String property, int defaultValue) {
+        String value = getTaskDefinition() != null ? getTaskDefinition().getProperty(property) : null;
+        return Math.max(1, NumberUtils.toInt(value, defaultValue));
+    }
+
+    /**
+     * The id and start time of a run, and the keys of the shards it has completed, saved as "runId|startTime|key,key"
+     */
+    static class Checkpoint {
+
+        private final String runId;
+
+        private final long startTime;
+
+        private final Set<String> completedShards;
+
+        Checkpoint(String runId, long startTime, Set<String> completedShards) {
+            this.runId = runId;
+            this.startTime = startTime;
+            this.completedShards = completedShards;
+        }
+
+        /**
+         * @return the checkpoint, or null if there is none or it is not in the expected format
+         */
+        static Checkpoint parse(String value) {
+            String[] parts = StringUtils.split(StringUtils.defaultString(value), "|");
+            if (parts.length < 2 || !NumberUtils.isDigits(parts[1].trim())) {
+                return null;
+            }
+            Set<String> completedShards = new TreeSet<String>();
+            if (parts.length > 2) {
+                for (String key : StringUtils.split(parts[2], ",")) {
+                    completedShards.add(key.trim());
+                }
+            }
+            return new Checkpoint(parts[0].trim(), Long.parseLong(parts[1].trim()), completedShards);
+        }
+
+        String format() {
+            return runId + "|" + startTime + "|" + StringUtils.join(completedShards, ",");
+        }
     }
 
 }
@@ -18,6 +18,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateUtils;
 import org.joda.time.DateTime;
 import org.openmrs.Encounter;
+import org.openmrs.Location;
 import org.openmrs.Order;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
@@ -31,6 +32,7 @@ import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.util.OpenmrsUtil;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -81,8 +83,11 @@ public class EmrApiVisitAssignmentHandler extends BaseEncounterVisitHandler impl
     @Override
     public void beforeCreateEncounter(Encounter encounter) {
 
+        VisitAssignmentCache cache = VisitAssignmentCache.current();
+
         // do nothing if disabled
-        if ("true".equalsIgnoreCase(administrationService.getGlobalProperty(EmrApiConstants.GP_DISABLE_VISIT_ASSIGMENT_HANDLER))) {
+        if ("true".equalsIgnoreCase(cache.get(EmrApiConstants.GP_DISABLE_VISIT_ASSIGMENT_HANDLER,
+                () -> administrationService.getGlobalProperty(EmrApiConstants.GP_DISABLE_VISIT_ASSIGMENT_HANDLER)))) {
             return;
         }
 
@@ -105,17 +110,24 @@ public class EmrApiVisitAssignmentHandler extends BaseEncounterVisitHandler impl
             return;
         }
 
-        List<Patient> patient = Collections.singletonList(encounter.getPatient());
+        final Patient patient = encounter.getPatient();
+        final Location location = encounter.getLocation();
+        final Date startOfDay = new DateTime(when).withTimeAtStartOfDay().toDate();
+        final Date endOfDay = new DateTime(when).withTime(23, 59, 59, 999).toDate();
+
+        // visits that overlap the encounter date, at the encounter location or one of its ancestors
+        List<Visit> candidates = cache.getVisitCandidates(patient, location, startOfDay.getTime(),
+                () -> getVisitCandidates(patient, location, startOfDay, endOfDay), visitService::getVisit);
 
-        // visits that have started by end of day on the encounter date
-        List<Visit> candidates = visitService.getVisits(null, patient, null, null, null,
-                new DateTime(when).withTime(23, 59, 59, 999).toDate(), null, null, null, true, false);
+        boolean adjustEncounterTimeOfDayIfNecessary = Boolean.TRUE.equals(cache.get(
+                EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ADJUST_ENCOUNTER_TIME_OF_DAY_IF_NECESSARY,
+                () -> emrApiProperties.getVisitAssignmentHandlerAdjustEncounterTimeOfDayIfNecessary()));
 
         if (candidates != null) {
             for (Visit candidate : candidates) {
 
-                if (emrApiProperties.getVisitAssignmentHandlerAdjustEncounterTimeOfDayIfNecessary()) {
-                    if (adtService.isSuitableVisitIgnoringTime(candidate, encounter.getLocation(), when)) {
+                if (adjustEncounterTimeOfDayIfNecessary) {
+                    if (adtService.isSuitableVisitIgnoringTime(candidate, location, when)) {
                         if (when.before(candidate.getStartDatetime())) {
                             updateDateActivatedOfOrdersIfNecessary(encounter.getOrders(), when, candidate.getStartDatetime());
                             encounter.setEncounterDatetime(candidate.getStartDatetime());
@@ -129,7 +141,7 @@ public class EmrApiVisitAssignmentHandler extends BaseEncounterVisitHandler impl
                     }
                 }
                 else {
-                    if (adtService.isSuitableVisit(candidate, encounter.getLocation(), when)) {
+                    if (adtService.isSuitableVisit(candidate, location, when)) {
                         candidate.addEncounter(encounter);
                         return;
                     }
@@ -137,7 +149,8 @@ public class EmrApiVisitAssignmentHandler extends BaseEncounterVisitHandler impl
             }
         }
         // there is no suitable visit so create one if there is a mapping encounter type to the visit type via the Global property
-        if (StringUtils.isNotBlank(administrationService.getGlobalProperty(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP))) {
+        if (StringUtils.isNotBlank(cache.<String>get(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP,
+                () -> administrationService.getGlobalProperty(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP)))) {
             VisitType visitType = getEncounterTypetoVisitTypeMapper().getVisitTypeForEncounter(encounter);
             // only process a visit if there is a matching visitType
             if (visitType != null) {
@@ -151,6 +164,7 @@ public class EmrApiVisitAssignmentHandler extends BaseEncounterVisitHandler impl
                     visit.setStopDatetime(OpenmrsUtil.getLastMomentOfDay(encounter.getEncounterDatetime()));
                 }
                 visit.addEncounter(encounter);
+                cache.evictVisitCandidates(patient);
             }
         }
 
@@ -158,6 +172,19 @@ public class EmrApiVisitAssignmentHandler extends BaseEncounterVisitHandler impl
         // throw new IllegalStateException("Cannot create an encounter outside of a visit");
     }
 
+    /**
+     * Only visits that overlap the day of the encounter, and are at the encounter location or one of its ancestors,
+     * can be suitable for it, so we restrict the query to those rather than loading the patient's whole visit history
+     */
+    private List<Visit> getVisitCandidates(Patient patient, Location location, Date startOfDay, Date endOfDay) {
+        List<Location> locations = new ArrayList<Location>();
+        for (Location candidateLocation = location; candidateLocation != null; candidateLocation = candidateLocation.getParentLocation()) {
+            locations.add(candidateLocation);
+        }
+        return visitService.getVisits(null, Collections.singletonList(patient), locations, null, null, endOfDay,
+                startOfDay, null, null, true, false);
+    }
+
     /**
      * If an encounter contains orders, and those orders have `dateActivated` that equals the encounter's datetime,
      * then if the encounter's datetime is changed, the order dateActivated values should be changed accordingly
@@ -3,12 +3,20 @@ package org.openmrs.module.emrapi.adt;
 import org.apache.commons.lang.StringUtils;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterType;
+import org.openmrs.GlobalProperty;
 import org.openmrs.VisitType;
 import org.openmrs.api.AdministrationService;
+import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.VisitService;
 import org.openmrs.module.emrapi.EmrApiConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Provides a mapping between encounter types and visit types from a comma delimited list of mappings of the following format
@@ -20,10 +28,13 @@ import org.springframework.stereotype.Component;
  *
  * Any specific mapping will override the default mapping
  *
- *
+ * The mapping is parsed once, and parsed again whenever the global property changes. Only the visit type ids and uuids
+ * are kept, and they are resolved on every call, so no visit type is ever held beyond the session it was loaded in. As
+ * the global property listeners are called before the change is committed, the mapping is parsed again from the stored
+ * value once the transaction completes, in case it was rolled back.
  */
 @Component
-public class EncounterTypetoVisitTypeMapper {
+public class EncounterTypetoVisitTypeMapper implements GlobalPropertyListener {
 	
 	@Autowired
 	private VisitService visitService;
@@ -31,61 +42,34 @@ public class EncounterTypetoVisitTypeMapper {
 	@Autowired
 	private AdministrationService adminService;
 	
-	private String mappingString;
+	private volatile String mappingString;
+	
+	private volatile Mappings mappings;
 	
 	public VisitType getVisitTypeForEncounter(Encounter encounter) {
 		return getVisitTypeForEncounterType(encounter.getEncounterType());
 	}
 	
 	public VisitType getVisitTypeForEncounterType(EncounterType encounterType) {
-		updateMappings();
-		
-		if (StringUtils.isBlank(mappingString)) {
-			return null;
-		}
-			
-		String[] mappings = mappingString.split(",");
-		VisitType defaultVisitType = null;
-		VisitType visitType = null;
-		for (String mapping : mappings) {
-			int index = mapping.indexOf(':');
-			if (index > 0) {
-				String mappedEncounterTypeIdOrUuid = mapping.substring(0, index).trim();
-				if ("default".equals(mappedEncounterTypeIdOrUuid) ||
-						encounterType.getId().toString().equals(mappedEncounterTypeIdOrUuid)
-						|| encounterType.getUuid().equals(mappedEncounterTypeIdOrUuid)) {
-					
-					String visitTypeIdOrUuid = mapping.substring(index + 1).trim();
-					if (StringUtils.isNumeric(visitTypeIdOrUuid)) {
-						if ("default".equals(mappedEncounterTypeIdOrUuid)) {
-							defaultVisitType = visitService.getVisitType(Integer.parseInt(visitTypeIdOrUuid));
-						} else {
-							visitType = visitService.getVisitType(Integer.parseInt(visitTypeIdOrUuid));
-						}
-					} else {
-						if ("default".equals(mappedEncounterTypeIdOrUuid)) {
-							defaultVisitType = visitService.getVisitTypeByUuid(visitTypeIdOrUuid);
-						} else {
-							visitType = visitService.getVisitTypeByUuid(visitTypeIdOrUuid);
-						}
-					}
-					
-				}
-			}
+		Mappings current = mappings;
+		if (current == null) {
+			updateMappings();
+			current = mappings;
 		}
 		// Return any mapped visit type over the default
-		if (visitType == null) {
-			return defaultVisitType;
-		}  else {
-			return visitType;
-		}
+		VisitType visitType = getVisitType(current.getMappedVisitType(encounterType));
+		return visitType == null ? getVisitType(current.defaultVisitType) : visitType;
 	}
 	
 	public String getMappingString() {
 		return mappingString;
 	}
 	
+	/**
+	 * Parses the given mapping string, and replaces the current mappings
+	 */
 	public void setMappingString(String mappingString) {
+		this.mappings = parseMappings(mappingString);
 		this.mappingString = mappingString;
 	}
 	
@@ -105,9 +89,99 @@ public class EncounterTypetoVisitTypeMapper {
 		this.adminService = adminService;
 	}
 	
+	/**
+	 * Rebuilds the mappings from the current value of the global property
+	 */
 	public void updateMappings() {
-		if (StringUtils.isBlank(mappingString)) {
-			mappingString = adminService.getGlobalProperty(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP);
+		setMappingString(adminService.getGlobalProperty(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP));
+	}
+	
+	@Override
+	public boolean supportsPropertyName(String propertyName) {
+		return EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP.equals(propertyName);
+	}
+	
+	@Override
+	public void globalPropertyChanged(GlobalProperty newValue) {
+		setMappingString(newValue.getPropertyValue());
+		reloadMappingsAfterCompletion();
+	}
+	
+	@Override
+	public void globalPropertyDeleted(String propertyName) {
+		setMappingString(null);
+		reloadMappingsAfterCompletion();
+	}
+	
+	private void reloadMappingsAfterCompletion() {
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					mappings = null;
+				}
+			});
+		}
+	}
+	
+	private VisitType getVisitType(String visitTypeIdOrUuid) {
+		if (visitTypeIdOrUuid == null) {
+			return null;
+		}
+		return StringUtils.isNumeric(visitTypeIdOrUuid) ?
+				visitService.getVisitType(Integer.parseInt(visitTypeIdOrUuid)) :
+				visitService.getVisitTypeByUuid(visitTypeIdOrUuid);
+	}
+	
+	private Mappings parseMappings(String mappingString) {
+		Map<Integer, String> byEncounterTypeId = new HashMap<Integer, String>();
+		Map<String, String> byEncounterTypeUuid = new HashMap<String, String>();
+		String defaultVisitType = null;
+		if (StringUtils.isNotBlank(mappingString)) {
+			for (String mapping : mappingString.split(",")) {
+				int index = mapping.indexOf(':');
+				if (index > 0) {
+					String mappedEncounterTypeIdOrUuid = mapping.substring(0, index).trim();
+					String visitTypeIdOrUuid = mapping.substring(index + 1).trim();
+					if (StringUtils.isBlank(visitTypeIdOrUuid)) {
+						continue;
+					}
+					if ("default".equals(mappedEncounterTypeIdOrUuid)) {
+						defaultVisitType = visitTypeIdOrUuid;
+					} else if (StringUtils.isNumeric(mappedEncounterTypeIdOrUuid)) {
+						byEncounterTypeId.put(Integer.valueOf(mappedEncounterTypeIdOrUuid), visitTypeIdOrUuid);
+					} else {
+						byEncounterTypeUuid.put(mappedEncounterTypeIdOrUuid, visitTypeIdOrUuid);
+					}
+				}
+			}
+		}
+		return new Mappings(byEncounterTypeId, byEncounterTypeUuid, defaultVisitType);
+	}
+	
+	/**
+	 * Immutable, parsed form of the mapping string, holding the visit type ids and uuids it refers to
+	 */
+	private static class Mappings {
+		
+		private final Map<Integer, String> byEncounterTypeId;
+		
+		private final Map<String, String> byEncounterTypeUuid;
+		
+		private final String defaultVisitType;
+		
+		Mappings(Map<Integer, String> byEncounterTypeId, Map<String, String> byEncounterTypeUuid, String defaultVisitType) {
+			this.byEncounterTypeId = Collections.unmodifiableMap(byEncounterTypeId);
+			this.byEncounterTypeUuid = Collections.unmodifiableMap(byEncounterTypeUuid);
+			this.defaultVisitType = defaultVisitType;
+		}
+		
+		/**
+		 * @return the id or uuid of the visit type mapped to the given encounter type, or null if there is none
+		 */
+		String getMappedVisitType(EncounterType encounterType) {
+			String visitType = byEncounterTypeId.get(encounterType.getId());
+			return visitType == null ? byEncounterTypeUuid.get(encounterType.getUuid()) : visitType;
 		}
 	}
 }
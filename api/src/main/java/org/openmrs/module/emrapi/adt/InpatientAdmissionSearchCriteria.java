@@ -17,6 +17,8 @@ public class InpatientAdmissionSearchCriteria {
     private boolean includeDischarged = false;
     private List<Integer> patientIds;
     private List<Integer> visitIds;
+    private Integer startIndex;
+    private Integer limit;
 
     public void addCurrentInpatientLocation(Location location) {
         if (currentInpatientLocations == null) {
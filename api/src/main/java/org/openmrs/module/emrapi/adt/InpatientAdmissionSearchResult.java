@@ -0,0 +1,15 @@
+package org.openmrs.module.emrapi.adt;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Represents a single page of InpatientAdmissions, along with the total number of matching admissions
+ */
+@Data
+public class InpatientAdmissionSearchResult {
+    Long totalCount;
+    List<InpatientAdmission> admissions = new ArrayList<>();
+}
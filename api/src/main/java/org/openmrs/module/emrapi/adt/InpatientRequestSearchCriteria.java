@@ -20,6 +20,13 @@ public class InpatientRequestSearchCriteria {
     private List<Integer> patientIds;
     private List<Integer> visitIds;
 
+    /**
+     * If true, requests are found by first retrieving the latest disposition for each visit, rather than by
+     * evaluating hql/inpatient_requests.hql.  Both return the same requests; the former tends to perform better on
+     * large obs tables.
+     */
+    private boolean singlePassQuery = false;
+
     public void addDispositionLocation(Location location) {
         if (dispositionLocations == null) {
             dispositionLocations = new ArrayList<>();
@@ -0,0 +1,85 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.openmrs.module.emrapi.disposition.DispositionType;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToOne;
+import javax.persistence.Table;
+import java.util.Date;
+
+/**
+ * The current ADT state of an open visit, as derived from its ADT encounters and disposition obs by
+ * {@link AdtService#updateInpatientStatus(Visit)}. A row exists only for visits that have an admission, transfer or
+ * discharge encounter, or a pending inpatient request.
+ */
+@Getter
+@Setter
+@Entity
+@Table(name = "emrapi_inpatient_status")
+public class InpatientStatus {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @Column(name = "inpatient_status_id")
+    private Integer inpatientStatusId;
+
+    @OneToOne
+    @JoinColumn(name = "visit_id", nullable = false, unique = true)
+    private Visit visit;
+
+    @ManyToOne
+    @JoinColumn(name = "patient_id", nullable = false)
+    private Patient patient;
+
+    @Column(name = "admitted", nullable = false)
+    private boolean admitted;
+
+    @ManyToOne
+    @JoinColumn(name = "current_location_id")
+    private Location currentLocation;
+
+    @Column(name = "admission_datetime")
+    private Date admissionDatetime;
+
+    @Column(name = "transfer_datetime")
+    private Date transferDatetime;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "pending_request_type", length = 50)
+    private DispositionType pendingRequestType;
+
+    @ManyToOne
+    @JoinColumn(name = "pending_request_location_id")
+    private Location pendingRequestLocation;
+
+    @Column(name = "date_updated", nullable = false)
+    private Date dateUpdated;
+
+}
@@ -0,0 +1,215 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.openmrs.Concept;
+import org.openmrs.Encounter;
+import org.openmrs.EncounterType;
+import org.openmrs.Obs;
+import org.openmrs.Visit;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.disposition.DispositionDescriptor;
+import org.openmrs.module.emrapi.disposition.DispositionService;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Holds the encounters and obs that are saved, voided or deleted in the current transaction, along with the visit,
+ * encounter type or concept they had before, and the visits that are reopened or unvoided. Just before the transaction
+ * commits, the visits of the admission, transfer and discharge encounters and of the disposition obs among them have
+ * their {@link InpatientStatus} updated within that transaction, so the emrapi_inpatient_status table changes along with
+ * the data it is derived from. Any other encounters and obs are ignored. If the update fails, the transaction is rolled
+ * back along with it.
+ */
+class InpatientStatusChanges {
+
+    private final Map<Object, Set<Object>> changedEntities = new IdentityHashMap<Object, Set<Object>>();
+
+    private final Set<Integer> changedVisitIds = new HashSet<Integer>();
+
+    /**
+     * @return the instance bound to the current transaction, binding a new one if necessary, or null if there is no
+     * Spring-managed transaction
+     */
+    static InpatientStatusChanges current() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return null;
+        }
+        InpatientStatusChanges changes = (InpatientStatusChanges) TransactionSynchronizationManager.getResource(InpatientStatusChanges.class);
+        if (changes == null) {
+            final InpatientStatusChanges newChanges = new InpatientStatusChanges();
+            TransactionSynchronizationManager.bindResource(InpatientStatusChanges.class, newChanges);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void suspend() {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(InpatientStatusChanges.class);
+                }
+
+                @Override
+                public void resume() {
+                    TransactionSynchronizationManager.bindResource(InpatientStatusChanges.class, newChanges);
+                }
+
+                @Override
+                public void beforeCommit(boolean readOnly) {
+                    if (!readOnly) {
+                        newChanges.updateInpatientStatuses();
+                    }
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(InpatientStatusChanges.class);
+                }
+            });
+            changes = newChanges;
+        }
+        return changes;
+    }
+
+    /**
+     * @param entity an encounter or obs that has been saved, voided or deleted
+     * @param previousValues the visit and encounter type, or encounter and concept, it had before, if known
+     */
+    void entityChanged(Object entity, Object... previousValues) {
+        Set<Object> values = changedEntities.get(entity);
+        if (values == null) {
+            values = new HashSet<Object>();
+            changedEntities.put(entity, values);
+        }
+        for (Object value : previousValues) {
+            if (value != null) {
+                values.add(value);
+            }
+        }
+    }
+
+    void visitChanged(Visit visit) {
+        if (visit.getVisitId() != null) {
+            changedVisitIds.add(visit.getVisitId());
+        }
+    }
+
+    private void updateInpatientStatuses() {
+        // flushing first lets the interceptor see every change, and may add more while the statuses are updated
+        Context.flushSession();
+        while (!changedEntities.isEmpty() || !changedVisitIds.isEmpty()) {
+            Map<Object, Set<Object>> entities = new IdentityHashMap<Object, Set<Object>>(changedEntities);
+            Set<Integer> visitIds = new TreeSet<Integer>(changedVisitIds);
+            changedEntities.clear();
+            changedVisitIds.clear();
+            visitIds.addAll(getVisitIdsOfAdtChanges(entities));
+            if (!visitIds.isEmpty()) {
+                Context.getService(AdtService.class).updateInpatientStatuses(visitIds);
+            }
+            Context.flushSession();
+        }
+    }
+
+    private Set<Integer> getVisitIdsOfAdtChanges(Map<Object, Set<Object>> entities) {
+        Set<Integer> visitIds = new TreeSet<Integer>();
+        if (entities.isEmpty()) {
+            return visitIds;
+        }
+        EmrApiProperties emrApiProperties = Context.getRegisteredComponents(EmrApiProperties.class).get(0);
+        Set<EncounterType> adtEncounterTypes = new HashSet<EncounterType>();
+        adtEncounterTypes.add(emrApiProperties.getAdmissionEncounterType());
+        adtEncounterTypes.add(emrApiProperties.getTransferWithinHospitalEncounterType());
+        adtEncounterTypes.add(emrApiProperties.getExitFromInpatientEncounterType());
+        adtEncounterTypes.remove(null);
+
+        Set<Concept> adtConcepts = new HashSet<Concept>();
+        Concept dispositionSetConcept = null;
+        DispositionService dispositionService = Context.getService(DispositionService.class);
+        if (dispositionService.dispositionsSupported()) {
+            DispositionDescriptor descriptor = dispositionService.getDispositionDescriptor();
+            dispositionSetConcept = descriptor.getDispositionSetConcept();
+            adtConcepts.add(dispositionSetConcept);
+            adtConcepts.add(descriptor.getDispositionConcept());
+            adtConcepts.add(descriptor.getAdmissionLocationConcept());
+            adtConcepts.add(descriptor.getInternalTransferLocationConcept());
+            try {
+                // denying an admission cancels the request, and voiding the denial restores it
+                adtConcepts.add(emrApiProperties.getAdmissionDecisionConcept());
+            }
+            catch (IllegalStateException ex) {
+                // not configured, so admissions cannot be denied
+            }
+        }
+        adtConcepts.remove(null);
+
+        for (Map.Entry<Object, Set<Object>> entry : entities.entrySet()) {
+            Object entity = entry.getKey();
+            boolean adtChange = false;
+            if (entity instanceof Encounter) {
+                EncounterType encounterType = ((Encounter) entity).getEncounterType();
+                adtChange = adtEncounterTypes.contains(encounterType) || containsAny(adtEncounterTypes, entry.getValue());
+            }
+            else if (entity instanceof Obs) {
+                Obs obs = (Obs) entity;
+                adtChange = adtConcepts.contains(obs.getConcept()) || containsAny(adtConcepts, entry.getValue())
+                        || (obs.getObsGroup() != null && dispositionSetConcept != null
+                        && dispositionSetConcept.equals(obs.getObsGroup().getConcept()));
+            }
+            if (adtChange) {
+                addVisitIds(visitIds, entity, entry.getValue());
+            }
+        }
+        return visitIds;
+    }
+
+    private boolean containsAny(Set<?> set, Set<Object> values) {
+        for (Object value : values) {
+            if (set.contains(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the ids of the current and previous visits of the given encounter or obs
+     */
+    private void addVisitIds(Set<Integer> visitIds, Object entity, Set<Object> previousValues) {
+        Set<Visit> visits = new HashSet<Visit>();
+        if (entity instanceof Encounter) {
+            visits.add(((Encounter) entity).getVisit());
+        }
+        else if (entity instanceof Obs && ((Obs) entity).getEncounter() != null) {
+            visits.add(((Obs) entity).getEncounter().getVisit());
+        }
+        for (Object value : previousValues) {
+            if (value instanceof Visit) {
+                visits.add((Visit) value);
+            }
+            else if (value instanceof Encounter) {
+                visits.add(((Encounter) value).getVisit());
+            }
+        }
+        for (Visit visit : visits) {
+            if (visit != null && visit.getVisitId() != null) {
+                visitIds.add(visit.getVisitId());
+            }
+        }
+    }
+
+}
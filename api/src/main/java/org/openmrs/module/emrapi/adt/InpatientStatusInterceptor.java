@@ -0,0 +1,155 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.resource.transaction.spi.TransactionStatus;
+import org.hibernate.type.Type;
+import org.openmrs.Encounter;
+import org.openmrs.Obs;
+import org.openmrs.Visit;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Passes the encounters and obs that are saved, voided or deleted, and the visits that are reopened or unvoided, to the
+ * {@link InpatientStatusChanges} of the current transaction, which updates the inpatient statuses of the visits of
+ * those that are ADT encounters or disposition obs just before the transaction commits. When an encounter is moved to
+ * another visit, or an obs to another encounter, the visit it was moved from is updated as well. Changes made outside
+ * of a Spring-managed transaction are not filtered, and the visits they touch are marked as stale in the
+ * {@link InpatientStatusTracker} once the transaction is committed.
+ */
+public class InpatientStatusInterceptor extends EmptyInterceptor {
+
+    private final InpatientStatusTracker inpatientStatusTracker;
+
+    // only used outside of Spring-managed transactions
+    private final ThreadLocal<Set<Integer>> changedVisitIds = new ThreadLocal<Set<Integer>>();
+
+    public InpatientStatusInterceptor(InpatientStatusTracker inpatientStatusTracker) {
+        this.inpatientStatusTracker = inpatientStatusTracker;
+    }
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+                                String[] propertyNames, Type[] types) {
+        if (entity instanceof Visit) {
+            Visit visit = (Visit) entity;
+            if (previousState != null && isReopened(visit, previousState, propertyNames)) {
+                InpatientStatusChanges changes = InpatientStatusChanges.current();
+                if (changes != null) {
+                    changes.visitChanged(visit);
+                }
+                else {
+                    addVisit(visit);
+                }
+            }
+        }
+        else if (previousState != null && entity instanceof Encounter) {
+            entityChanged(entity, getProperty("visit", previousState, propertyNames),
+                    getProperty("encounterType", previousState, propertyNames));
+        }
+        else if (previousState != null && entity instanceof Obs) {
+            entityChanged(entity, getProperty("encounter", previousState, propertyNames),
+                    getProperty("concept", previousState, propertyNames));
+        }
+        else {
+            checkEntity(entity);
+        }
+        return false;
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        Set<Integer> visitIds = changedVisitIds.get();
+        if (visitIds != null && tx != null && tx.getStatus() == TransactionStatus.COMMITTED) {
+            inpatientStatusTracker.markStale(visitIds);
+        }
+        changedVisitIds.remove();
+    }
+
+    private void checkEntity(Object entity) {
+        if (entity instanceof Encounter || entity instanceof Obs) {
+            entityChanged(entity);
+        }
+    }
+
+    private void entityChanged(Object entity, Object... previousValues) {
+        InpatientStatusChanges changes = InpatientStatusChanges.current();
+        if (changes != null) {
+            changes.entityChanged(entity, previousValues);
+            return;
+        }
+        if (entity instanceof Encounter) {
+            addVisit(((Encounter) entity).getVisit());
+        }
+        else if (((Obs) entity).getEncounter() != null) {
+            addVisit(((Obs) entity).getEncounter().getVisit());
+        }
+        for (Object previousValue : previousValues) {
+            if (previousValue instanceof Visit) {
+                addVisit((Visit) previousValue);
+            }
+            else if (previousValue instanceof Encounter) {
+                addVisit(((Encounter) previousValue).getVisit());
+            }
+        }
+    }
+
+    private void addVisit(Visit visit) {
+        if (visit != null && visit.getVisitId() != null) {
+            Set<Integer> visitIds = changedVisitIds.get();
+            if (visitIds == null) {
+                visitIds = new HashSet<>();
+                changedVisitIds.set(visitIds);
+            }
+            visitIds.add(visit.getVisitId());
+        }
+    }
+
+    /**
+     * A closed or voided visit is left out when reading the statuses, so only a visit that is reopened or unvoided
+     * needs its status updated
+     */
+    private boolean isReopened(Visit visit, Object[] previousState, String[] propertyNames) {
+        boolean wasClosed = getProperty("stopDatetime", previousState, propertyNames) != null;
+        boolean wasVoided = Boolean.TRUE.equals(getProperty("voided", previousState, propertyNames));
+        return (wasClosed && visit.getStopDatetime() == null) || (wasVoided && !visit.getVoided());
+    }
+
+    private Object getProperty(String propertyName, Object[] state, String[] propertyNames) {
+        for (int i = 0; i < propertyNames.length; i++) {
+            if (propertyName.equals(propertyNames[i])) {
+                return state[i];
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,62 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tells whether the emrapi_inpatient_status table can be trusted. Its rows are updated within the transactions that
+ * change ADT encounters or disposition obs (see {@link InpatientStatusInterceptor}), except for changes made outside of
+ * a Spring-managed transaction, whose visits are marked as stale here instead. The table is up
+ * to date once it has been rebuilt since startup and while no visit is stale, and until then the ADT lists are computed
+ * from the encounters and obs alone. Every {@link AdtService#rebuildInpatientStatuses() rebuild} starts by clearing
+ * this tracker.
+ */
+public class InpatientStatusTracker {
+
+    private final Set<Integer> staleVisitIds = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean rebuilt = false;
+
+    public void markStale(Collection<Integer> visitIds) {
+        staleVisitIds.addAll(visitIds);
+    }
+
+    /**
+     * Forgets the stale visits, and that the table has been rebuilt, as a rebuild is about to recompute every row
+     */
+    public void clear() {
+        rebuilt = false;
+        staleVisitIds.clear();
+    }
+
+    public void rebuildCompleted() {
+        rebuilt = true;
+    }
+
+    /**
+     * @return true if the table has been rebuilt since startup, and no visit has been marked as stale since then
+     */
+    public boolean isUpToDate() {
+        return rebuilt && staleVisitIds.isEmpty();
+    }
+
+    public int getStaleVisitCount() {
+        return staleVisitIds.size();
+    }
+
+}
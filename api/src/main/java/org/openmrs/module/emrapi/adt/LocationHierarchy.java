@@ -0,0 +1,200 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the location hierarchy, keyed by location id, so that the descendants of a location, the
+ * nearest ancestor that supports visits, and the tags of a location can be looked up without walking the hierarchy.
+ * Instances are created with a {@link Builder} and cached by {@link LocationHierarchyCache}.
+ */
+public class LocationHierarchy {
+
+    private final Map<Integer, Set<Integer>> selfAndDescendantIds;
+
+    private final Map<Integer, Integer> locationThatSupportsVisitsIds;
+
+    private final Map<Integer, Set<String>> tagNames;
+
+    private final List<Integer> locationIdsThatSupportVisits;
+
+    private LocationHierarchy(Map<Integer, Set<Integer>> selfAndDescendantIds,
+                              Map<Integer, Integer> locationThatSupportsVisitsIds,
+                              Map<Integer, Set<String>> tagNames,
+                              List<Integer> locationIdsThatSupportVisits) {
+        this.selfAndDescendantIds = selfAndDescendantIds;
+        this.locationThatSupportsVisitsIds = locationThatSupportsVisitsIds;
+        this.tagNames = tagNames;
+        this.locationIdsThatSupportVisits = locationIdsThatSupportVisits;
+    }
+
+    /**
+     * @return true if the location with the given id was part of the hierarchy when it was built
+     */
+    public boolean contains(Integer locationId) {
+        return selfAndDescendantIds.containsKey(locationId);
+    }
+
+    /**
+     * @return the id of the given location and of all its descendants, or an empty set if the location is unknown
+     */
+    public Set<Integer> getSelfAndDescendantIds(Integer locationId) {
+        Set<Integer> ids = selfAndDescendantIds.get(locationId);
+        return ids == null ? Collections.<Integer>emptySet() : ids;
+    }
+
+    /**
+     * @return the id of the given location if it supports visits, otherwise of its nearest ancestor that does, or
+     * null if there is none
+     */
+    public Integer getLocationThatSupportsVisitsId(Integer locationId) {
+        return locationThatSupportsVisitsIds.get(locationId);
+    }
+
+    public Set<String> getTagNames(Integer locationId) {
+        Set<String> names = tagNames.get(locationId);
+        return names == null ? Collections.<String>emptySet() : names;
+    }
+
+    public boolean hasTag(Integer locationId, String tagName) {
+        return getTagNames(locationId).contains(tagName);
+    }
+
+    /**
+     * @return the ids of the non-retired locations that support visits, ordered by name
+     */
+    public List<Integer> getLocationIdsThatSupportVisits() {
+        return locationIdsThatSupportVisits;
+    }
+
+    public static class Builder {
+
+        private final String supportsVisitsTagName;
+
+        private final Map<Integer, Integer> parentIds = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, String> names = new HashMap<Integer, String>();
+
+        private final Set<Integer> retiredIds = new HashSet<Integer>();
+
+        private final Map<Integer, Set<String>> tagNames = new HashMap<Integer, Set<String>>();
+
+        public Builder(String supportsVisitsTagName) {
+            this.supportsVisitsTagName = supportsVisitsTagName;
+        }
+
+        public Builder addLocation(Integer locationId, Integer parentLocationId, String name, boolean retired) {
+            parentIds.put(locationId, parentLocationId);
+            names.put(locationId, name);
+            if (retired) {
+                retiredIds.add(locationId);
+            }
+            return this;
+        }
+
+        public Builder addTag(Integer locationId, String tagName) {
+            if (!tagNames.containsKey(locationId)) {
+                tagNames.put(locationId, new HashSet<String>());
+            }
+            tagNames.get(locationId).add(tagName);
+            return this;
+        }
+
+        public LocationHierarchy build() {
+            Map<Integer, List<Integer>> childIds = new HashMap<Integer, List<Integer>>();
+            for (Map.Entry<Integer, Integer> entry : parentIds.entrySet()) {
+                if (entry.getValue() != null) {
+                    if (!childIds.containsKey(entry.getValue())) {
+                        childIds.put(entry.getValue(), new ArrayList<Integer>());
+                    }
+                    childIds.get(entry.getValue()).add(entry.getKey());
+                }
+            }
+
+            Map<Integer, Set<Integer>> selfAndDescendantIds = new HashMap<Integer, Set<Integer>>();
+            Map<Integer, Integer> locationThatSupportsVisitsIds = new HashMap<Integer, Integer>();
+            List<Integer> locationIdsThatSupportVisits = new ArrayList<Integer>();
+            for (Integer locationId : parentIds.keySet()) {
+                selfAndDescendantIds.put(locationId, Collections.unmodifiableSet(collectSelfAndDescendants(locationId, childIds)));
+                Integer visitLocationId = findLocationThatSupportsVisits(locationId);
+                if (visitLocationId != null) {
+                    locationThatSupportsVisitsIds.put(locationId, visitLocationId);
+                }
+                if (hasSupportsVisitsTag(locationId) && !retiredIds.contains(locationId)) {
+                    locationIdsThatSupportVisits.add(locationId);
+                }
+            }
+            Collections.sort(locationIdsThatSupportVisits, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer left, Integer right) {
+                    String leftName = names.get(left) == null ? "" : names.get(left);
+                    String rightName = names.get(right) == null ? "" : names.get(right);
+                    int result = leftName.compareTo(rightName);
+                    return result != 0 ? result : left.compareTo(right);
+                }
+            });
+
+            Map<Integer, Set<String>> immutableTagNames = new HashMap<Integer, Set<String>>();
+            for (Map.Entry<Integer, Set<String>> entry : tagNames.entrySet()) {
+                immutableTagNames.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<String>(entry.getValue())));
+            }
+
+            return new LocationHierarchy(Collections.unmodifiableMap(selfAndDescendantIds),
+                    Collections.unmodifiableMap(locationThatSupportsVisitsIds),
+                    Collections.unmodifiableMap(immutableTagNames),
+                    Collections.unmodifiableList(locationIdsThatSupportVisits));
+        }
+
+        private Set<Integer> collectSelfAndDescendants(Integer locationId, Map<Integer, List<Integer>> childIds) {
+            Set<Integer> found = new LinkedHashSet<Integer>();
+            List<Integer> toVisit = new ArrayList<Integer>();
+            toVisit.add(locationId);
+            while (!toVisit.isEmpty()) {
+                Integer id = toVisit.remove(toVisit.size() - 1);
+                if (found.add(id) && childIds.containsKey(id)) {
+                    toVisit.addAll(childIds.get(id));
+                }
+            }
+            return found;
+        }
+
+        private Integer findLocationThatSupportsVisits(Integer locationId) {
+            Set<Integer> visited = new HashSet<Integer>();
+            Integer id = locationId;
+            // the visited set guards against cycles in the parent chain
+            while (id != null && visited.add(id)) {
+                if (hasSupportsVisitsTag(id)) {
+                    return id;
+                }
+                id = parentIds.get(id);
+            }
+            return null;
+        }
+
+        private boolean hasSupportsVisitsTag(Integer locationId) {
+            return tagNames.containsKey(locationId) && tagNames.get(locationId).contains(supportsVisitsTagName);
+        }
+    }
+
+}
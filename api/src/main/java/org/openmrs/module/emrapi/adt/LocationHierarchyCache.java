@@ -0,0 +1,56 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Holds the current {@link LocationHierarchy}. The hierarchy is loaded lazily on first use and replaced atomically;
+ * {@link #invalidate()} is called by the {@link LocationHierarchyInterceptor} whenever a Location or LocationTag
+ * changes, so the next lookup loads a fresh one.
+ */
+public class LocationHierarchyCache {
+
+    private volatile LocationHierarchy hierarchy;
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * @param loader used to load the hierarchy if there is no current one
+     * @return the current hierarchy
+     */
+    public LocationHierarchy get(Supplier<LocationHierarchy> loader) {
+        LocationHierarchy current = hierarchy;
+        if (current != null) {
+            return current;
+        }
+        long loadedVersion = version.get();
+        LocationHierarchy loaded = loader.get();
+        synchronized (this) {
+            // don't publish a hierarchy that was loaded while locations were changing
+            if (version.get() == loadedVersion) {
+                hierarchy = loaded;
+            }
+        }
+        return loaded;
+    }
+
+    public synchronized void invalidate() {
+        version.incrementAndGet();
+        hierarchy = null;
+    }
+
+}
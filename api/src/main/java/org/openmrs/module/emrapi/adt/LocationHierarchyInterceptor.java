@@ -0,0 +1,96 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.type.Type;
+import org.openmrs.Location;
+import org.openmrs.LocationTag;
+
+import java.io.Serializable;
+
+/**
+ * Invalidates the {@link LocationHierarchyCache} whenever a Location or LocationTag is saved or deleted, or the tags of
+ * a Location change. The cache is invalidated again when a transaction that made such a change completes, whether it
+ * was committed or rolled back, so that a hierarchy loaded by another thread before the change was committed, or from
+ * changes that were never committed, is not kept.
+ */
+public class LocationHierarchyInterceptor extends EmptyInterceptor {
+
+    private final LocationHierarchyCache locationHierarchyCache;
+
+    private final ThreadLocal<Boolean> locationsChanged = new ThreadLocal<Boolean>();
+
+    public LocationHierarchyInterceptor(LocationHierarchyCache locationHierarchyCache) {
+        this.locationHierarchyCache = locationHierarchyCache;
+    }
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+                                String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+    }
+
+    @Override
+    public void onCollectionRecreate(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void onCollectionRemove(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void onCollectionUpdate(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        if (Boolean.TRUE.equals(locationsChanged.get())) {
+            locationHierarchyCache.invalidate();
+        }
+        locationsChanged.remove();
+    }
+
+    private void checkEntity(Object entity) {
+        if (entity instanceof Location || entity instanceof LocationTag) {
+            locationsChanged.set(true);
+            locationHierarchyCache.invalidate();
+        }
+    }
+
+    private void checkCollection(Object collection) {
+        if (collection instanceof PersistentCollection) {
+            checkEntity(((PersistentCollection) collection).getOwner());
+        }
+    }
+
+}
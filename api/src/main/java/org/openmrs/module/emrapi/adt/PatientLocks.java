@@ -0,0 +1,108 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A fixed set of locks, one of which is chosen by hashing the patient's uuid, so that work on the same patient (e.g.
+ * check-in) is serialized while work on different patients runs in parallel. Within a transaction the lock is held
+ * until the transaction completes, so that a second thread working on the same patient sees what the first one
+ * committed.
+ * <p>
+ * A transaction must lock at most one patient. Since the locks are only released when the transaction completes, two
+ * transactions that each lock a different pair of patients could take the same two stripes in opposite orders and
+ * wait on each other until one of them times out. Work that needs several patients should be split into a transaction
+ * per patient.
+ */
+public class PatientLocks {
+
+    public static final int DEFAULT_STRIPES = 256;
+
+    public static final long DEFAULT_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+    private final ReentrantLock[] stripes;
+
+    private final long timeoutMillis;
+
+    public PatientLocks() {
+        this(DEFAULT_STRIPES, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public PatientLocks(int stripes, long timeoutMillis) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be at least 1");
+        }
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Runs the given work while holding the lock for the given patient. Within a transaction, the lock is held until
+     * the transaction completes, so the transaction must not lock any other patient (see the class comment)
+     *
+     * @param patient
+     * @param work
+     * @return the result of the work
+     * @throws APIException if the lock could not be acquired within the timeout
+     */
+    public <T> T runLocked(Patient patient, Supplier<T> work) {
+        if (patient == null) {
+            return work.get();
+        }
+        final ReentrantLock lock = getLock(patient);
+        acquire(lock, patient);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    lock.unlock();
+                }
+            });
+            return work.get();
+        }
+        try {
+            return work.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    ReentrantLock getLock(Patient patient) {
+        return stripes[(patient.getUuid().hashCode() & Integer.MAX_VALUE) % stripes.length];
+    }
+
+    private void acquire(ReentrantLock lock, Patient patient) {
+        try {
+            if (!lock.tryLock(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new APIException("Timed out waiting for the lock on patient " + patient.getUuid());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new APIException("Interrupted while waiting for the lock on patient " + patient.getUuid(), e);
+        }
+    }
+
+}
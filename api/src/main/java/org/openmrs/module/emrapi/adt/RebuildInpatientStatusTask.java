@@ -0,0 +1,25 @@
+package org.openmrs.module.emrapi.adt;
+
+import org.openmrs.api.context.Context;
+import org.openmrs.scheduler.tasks.AbstractTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reconciles the emrapi_inpatient_status table against the ADT encounters and disposition obs of all open visits. The
+ * table is otherwise only updated for visits that changed while the server was running, so the module activator
+ * schedules this to run at startup and daily thereafter.
+ *
+ * @see AdtService#rebuildInpatientStatuses()
+ */
+public class RebuildInpatientStatusTask extends AbstractTask {
+
+    private static final Logger log = LoggerFactory.getLogger(RebuildInpatientStatusTask.class);
+
+    @Override
+    public void execute() {
+        int changed = Context.getService(AdtService.class).rebuildInpatientStatuses();
+        log.info("Rebuilt inpatient statuses, {} rows added, changed or removed", changed);
+    }
+
+}
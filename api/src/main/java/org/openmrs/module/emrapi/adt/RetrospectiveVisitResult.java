@@ -0,0 +1,36 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import lombok.Data;
+import org.openmrs.Visit;
+
+/**
+ * The outcome of a single {@link RetrospectiveVisitRequest}: either the visit that was created, or the message code
+ * of the reason it was not
+ */
+@Data
+public class RetrospectiveVisitResult {
+
+    private final RetrospectiveVisitRequest request;
+
+    private Visit visit;
+
+    private String errorCode;
+
+    public boolean isCreated() {
+        return visit != null;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Holds the global properties read by {@link EmrApiVisitAssignmentHandler}, and the ids of the candidate visits it has
+ * loaded, for the duration of the current transaction, so that saving many encounters in one transaction (e.g. a bulk
+ * import) does not repeat identical lookups. Only ids are held, so the visits themselves are always fetched from the
+ * current session, even after it has been cleared. The candidates of a patient are forgotten whenever one of their
+ * visits is saved or deleted (see {@link VisitAssignmentInterceptor}). Outside of a transaction every call to
+ * {@link #current()} returns a new, empty instance, i.e. nothing is cached.
+ */
+class VisitAssignmentCache {
+
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    private final Map<Integer, Map<String, List<Integer>>> visitCandidateIdsByPatientId = new HashMap<Integer, Map<String, List<Integer>>>();
+
+    /**
+     * @return the instance bound to the current transaction, binding a new one if necessary
+     */
+    static VisitAssignmentCache current() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            return new VisitAssignmentCache();
+        }
+        VisitAssignmentCache cache = (VisitAssignmentCache) TransactionSynchronizationManager.getResource(VisitAssignmentCache.class);
+        if (cache == null) {
+            final VisitAssignmentCache newCache = new VisitAssignmentCache();
+            TransactionSynchronizationManager.bindResource(VisitAssignmentCache.class, newCache);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void suspend() {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(VisitAssignmentCache.class);
+                }
+
+                @Override
+                public void resume() {
+                    TransactionSynchronizationManager.bindResource(VisitAssignmentCache.class, newCache);
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(VisitAssignmentCache.class);
+                }
+            });
+            cache = newCache;
+        }
+        return cache;
+    }
+
+    /**
+     * Forgets the candidate visits of the patient of the given visit in the cache bound to the current transaction, if
+     * any, because the visit has been created, changed or deleted
+     */
+    static void visitChanged(Visit visit) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            VisitAssignmentCache cache = (VisitAssignmentCache) TransactionSynchronizationManager.getResource(VisitAssignmentCache.class);
+            if (cache != null) {
+                cache.evictVisitCandidates(visit.getPatient());
+            }
+        }
+    }
+
+    /**
+     * @return the value cached under the given key, loading it (null included) the first time it is asked for
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(String key, Supplier<T> loader) {
+        if (!values.containsKey(key)) {
+            values.put(key, loader.get());
+        }
+        return (T) values.get(key);
+    }
+
+    /**
+     * @return the candidate visits of the patient for the given location and day, loading them the first time they
+     * are asked for and fetching them by id after that. Patients and locations that have not been saved yet are never
+     * cached, and neither are candidates that have not been saved yet.
+     */
+    List<Visit> getVisitCandidates(Patient patient, Location location, long startOfDay, Supplier<List<Visit>> loader,
+                                   Function<Integer, Visit> visitLoader) {
+        if (patient == null || patient.getPatientId() == null || location == null || location.getLocationId() == null) {
+            return loader.get();
+        }
+        Map<String, List<Integer>> candidateIds = visitCandidateIdsByPatientId.get(patient.getPatientId());
+        if (candidateIds == null) {
+            candidateIds = new HashMap<String, List<Integer>>();
+            visitCandidateIdsByPatientId.put(patient.getPatientId(), candidateIds);
+        }
+        String key = location.getLocationId() + ":" + startOfDay;
+        List<Integer> visitIds = candidateIds.get(key);
+        if (visitIds == null) {
+            List<Visit> candidates = loader.get();
+            visitIds = getVisitIds(candidates);
+            if (visitIds != null) {
+                candidateIds.put(key, visitIds);
+            }
+            return candidates;
+        }
+        List<Visit> candidates = new ArrayList<Visit>();
+        for (Integer visitId : visitIds) {
+            Visit candidate = visitLoader.apply(visitId);
+            if (candidate != null) {
+                candidates.add(candidate);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Forgets the candidate visits of the patient, e.g. because a new visit has been created for them
+     */
+    void evictVisitCandidates(Patient patient) {
+        if (patient != null && patient.getPatientId() != null) {
+            visitCandidateIdsByPatientId.remove(patient.getPatientId());
+        }
+    }
+
+    /**
+     * @return the ids of the given visits, or null if any of them has not been saved yet
+     */
+    private List<Integer> getVisitIds(List<Visit> visits) {
+        List<Integer> visitIds = new ArrayList<Integer>();
+        if (visits != null) {
+            for (Visit visit : visits) {
+                if (visit.getVisitId() == null) {
+                    return null;
+                }
+                visitIds.add(visit.getVisitId());
+            }
+        }
+        return visitIds;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.type.Type;
+import org.openmrs.Visit;
+
+import java.io.Serializable;
+
+/**
+ * Evicts the candidate visits of a patient from the {@link VisitAssignmentCache} of the current transaction whenever one
+ * of their visits is saved or deleted, so that encounters saved later in the same transaction see it.
+ */
+public class VisitAssignmentInterceptor extends EmptyInterceptor {
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+                                String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+    }
+
+    private void checkEntity(Object entity) {
+        if (entity instanceof Visit) {
+            VisitAssignmentCache.visitChanged((Visit) entity);
+        }
+    }
+
+}
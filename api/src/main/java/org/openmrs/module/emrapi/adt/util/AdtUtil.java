@@ -1,5 +1,6 @@
 package org.openmrs.module.emrapi.adt.util;
 
+import org.apache.commons.lang.BooleanUtils;
 import org.openmrs.Concept;
 import org.openmrs.module.emrapi.concept.EmrConceptService;
 import org.openmrs.module.emrapi.disposition.Disposition;
@@ -24,5 +25,21 @@ public class AdtUtil {
         return admissionDispositionConcepts;
     }
 
+    public static List<Concept> getKeepsVisitOpenDispositionsConcepts(EmrConceptService emrConceptService, DispositionService dispositionService) {
+
+        List<Concept> keepsVisitOpenDispositionConcepts = new ArrayList<Concept>();
+
+        List<Disposition> dispositions = dispositionService.getDispositions();
+        if (dispositions != null) {
+            for (Disposition disposition : dispositions) {
+                if (BooleanUtils.isTrue(disposition.getKeepsVisitOpen())) {
+                    keepsVisitOpenDispositionConcepts.add(emrConceptService.getConcept(disposition.getConceptCode()));
+                }
+            }
+        }
+
+        return keepsVisitOpenDispositionConcepts;
+    }
+
 
 }
@@ -0,0 +1,104 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.concept;
+
+import org.hibernate.EmptyInterceptor;
+import org.hibernate.Transaction;
+import org.hibernate.collection.spi.PersistentCollection;
+import org.hibernate.type.Type;
+import org.openmrs.Concept;
+import org.openmrs.ConceptAnswer;
+import org.openmrs.ConceptMap;
+import org.openmrs.ConceptName;
+import org.openmrs.ConceptReferenceTerm;
+import org.openmrs.ConceptReferenceTermMap;
+import org.openmrs.ConceptSet;
+import org.openmrs.ConceptSource;
+
+import java.io.Serializable;
+
+/**
+ * Notifies the {@link ConceptChangeTracker} whenever a concept, or one of its names, mappings, set members or answers,
+ * or a reference term or source, is saved or deleted. As with the location hierarchy, the tracker is notified again
+ * when a transaction that changed any of them completes, whether it was committed or rolled back, so that anything
+ * resolved by another thread before the change was committed, or from changes that were never committed, is not kept.
+ */
+public class ConceptChangeInterceptor extends EmptyInterceptor {
+
+    private final ConceptChangeTracker conceptChangeTracker;
+
+    private final ThreadLocal<Boolean> conceptsChanged = new ThreadLocal<Boolean>();
+
+    public ConceptChangeInterceptor(ConceptChangeTracker conceptChangeTracker) {
+        this.conceptChangeTracker = conceptChangeTracker;
+    }
+
+    @Override
+    public boolean onSave(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public boolean onFlushDirty(Object entity, Serializable id, Object[] currentState, Object[] previousState,
+                                String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+        return false;
+    }
+
+    @Override
+    public void onDelete(Object entity, Serializable id, Object[] state, String[] propertyNames, Type[] types) {
+        checkEntity(entity);
+    }
+
+    @Override
+    public void onCollectionRecreate(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void onCollectionRemove(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void onCollectionUpdate(Object collection, Serializable key) {
+        checkCollection(collection);
+    }
+
+    @Override
+    public void afterTransactionCompletion(Transaction tx) {
+        if (Boolean.TRUE.equals(conceptsChanged.get())) {
+            conceptChangeTracker.conceptsChanged();
+        }
+        conceptsChanged.remove();
+    }
+
+    private void checkEntity(Object entity) {
+        if (entity instanceof Concept || entity instanceof ConceptName || entity instanceof ConceptMap
+                || entity instanceof ConceptSet || entity instanceof ConceptAnswer || entity instanceof ConceptReferenceTerm
+                || entity instanceof ConceptReferenceTermMap || entity instanceof ConceptSource) {
+            conceptsChanged.set(true);
+            conceptChangeTracker.conceptsChanged();
+        }
+    }
+
+    private void checkCollection(Object collection) {
+        if (collection instanceof PersistentCollection) {
+            checkEntity(((PersistentCollection) collection).getOwner());
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.concept;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts changes to concepts, their names, set members, mappings and concept sources, so that anything resolved
+ * from concepts (e.g. the disposition concepts) can be cached along with the version it was resolved at, and
+ * resolved again once the version moves on. A cached value is therefore shared between callers, and must not be
+ * modified. {@link #conceptsChanged()} is called by the {@link ConceptChangeInterceptor}.
+ */
+public class ConceptChangeTracker {
+
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * @return the current version; read this before resolving anything from concepts, so that a change made while
+     * resolving makes the result stale
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    public void conceptsChanged() {
+        version.incrementAndGet();
+    }
+
+}
@@ -1,5 +1,11 @@
 package org.openmrs.module.emrapi.db;
 
+import org.openmrs.Diagnosis;
+import org.openmrs.Obs;
+import org.openmrs.User;
+
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
 
@@ -9,4 +15,34 @@ public interface EmrApiDAO {
 
     <T> List<T> executeHqlFromResource(String resource, Map<String, Object> parameters, Class<T> clazz);
 
+    /**
+     * Executes the given query, returning at most maxResults rows starting at firstResult, if these are not null
+     */
+    <T> List<T> executeHql(String queryString, Map<String, Object> parameters, Class<T> clazz, Integer firstResult, Integer maxResults);
+
+    /**
+     * Executes the query in the given resource, returning at most maxResults rows starting at firstResult, if these are not null
+     */
+    <T> List<T> executeHqlFromResource(String resource, Map<String, Object> parameters, Class<T> clazz, Integer firstResult, Integer maxResults);
+
+    /**
+     * Flushes the current session, then evicts the given entities from it, so that large batches of inserts do not
+     * accumulate in the session
+     */
+    void flushAndEvict(Collection<?> entities);
+
+    /**
+     * Inserts the given diagnoses into the encounter_diagnosis table with a single JDBC batch, bypassing Hibernate
+     * (whose ids for this table are generated by the database, which stops Hibernate from batching inserts). The
+     * diagnoses are not added to the session, and their ids are not set.
+     * @throws IllegalArgumentException if any of the diagnoses has no rank
+     */
+    void insertEncounterDiagnoses(List<Diagnosis> diagnoses);
+
+    /**
+     * Voids the given obs with bulk updates, rather than one update per obs, and then does the same to the instances in
+     * the session, which are made read-only so that they are not written again when the session is flushed.
+     */
+    void voidObs(Collection<Obs> obs, User voidedBy, Date dateVoided, String voidReason);
+
 }
@@ -5,26 +5,162 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.hibernate.Query;
+import org.openmrs.CodedOrFreeText;
+import org.openmrs.Diagnosis;
+import org.openmrs.Obs;
+import org.openmrs.OpenmrsObject;
+import org.openmrs.User;
+import org.openmrs.api.db.hibernate.DbSession;
 import org.openmrs.api.db.hibernate.DbSessionFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class EmrApiDAOImpl implements EmrApiDAO {
    
    protected final Log log = LogFactory.getLog(getClass());
+
+   private static final String INSERT_ENCOUNTER_DIAGNOSIS = "insert into encounter_diagnosis (diagnosis_coded, "
+         + "diagnosis_coded_name, diagnosis_non_coded, encounter_id, patient_id, certainty, dx_rank, creator, date_created, "
+         + "voided, voided_by, date_voided, void_reason, uuid) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+   private static final String VOID_OBS = "update Obs set voided = true, voidedBy = :voidedBy, dateVoided = :dateVoided, "
+         + "voidReason = :voidReason where obsId in (:obsIds)";
+
+   private static final int CHUNK_SIZE = 1000;
    
    @Setter
    private DbSessionFactory sessionFactory;
    
    @Override
-   @SuppressWarnings("unchecked")
    public <T> List<T> executeHql(String queryString, Map<String, Object> parameters, Class<T> clazz) {
+      return executeHql(queryString, parameters, clazz, null, null);
+   }
+   
+   @Override
+   @SuppressWarnings("unchecked")
+   public <T> List<T> executeHql(String queryString, Map<String, Object> parameters, Class<T> clazz, Integer firstResult, Integer maxResults) {
       Query query = sessionFactory.getCurrentSession().createQuery(queryString);
+      setParameters(query, parameters);
+      if (firstResult != null) {
+         query.setFirstResult(firstResult);
+      }
+      if (maxResults != null) {
+         query.setMaxResults(maxResults);
+      }
+      return query.list();
+   }
+   
+   @Override
+   public <T> List<T> executeHqlFromResource(String resource, Map<String, Object> parameters, Class<T> clazz) {
+      return executeHqlFromResource(resource, parameters, clazz, null, null);
+   }
+   
+   @Override
+   public <T> List<T> executeHqlFromResource(String resource, Map<String, Object> parameters, Class<T> clazz, Integer firstResult, Integer maxResults) {
+      return executeHql(loadHql(resource), parameters, clazz, firstResult, maxResults);
+   }
+   
+   @Override
+   public void flushAndEvict(Collection<?> entities) {
+      DbSession session = sessionFactory.getCurrentSession();
+      session.flush();
+      for (Object entity : entities) {
+         session.evict(entity);
+      }
+   }
+   
+   @Override
+   public void insertEncounterDiagnoses(final List<Diagnosis> diagnoses) {
+      if (diagnoses.isEmpty()) {
+         return;
+      }
+      for (Diagnosis diagnosis : diagnoses) {
+         // dx_rank is not nullable, so fail before any of the batch is written
+         if (diagnosis.getRank() == null) {
+            throw new IllegalArgumentException("Diagnosis " + diagnosis.getUuid() + " has no rank, which encounter_diagnosis requires");
+         }
+      }
+      sessionFactory.getCurrentSession().doWork(connection -> {
+         try (PreparedStatement statement = connection.prepareStatement(INSERT_ENCOUNTER_DIAGNOSIS)) {
+            for (Diagnosis diagnosis : diagnoses) {
+               CodedOrFreeText value = diagnosis.getDiagnosis();
+               setId(statement, 1, value.getCoded());
+               setId(statement, 2, value.getSpecificName());
+               statement.setString(3, value.getNonCoded());
+               setId(statement, 4, diagnosis.getEncounter());
+               setId(statement, 5, diagnosis.getPatient());
+               statement.setString(6, diagnosis.getCertainty() == null ? null : diagnosis.getCertainty().name());
+               statement.setInt(7, diagnosis.getRank());
+               setId(statement, 8, diagnosis.getCreator());
+               setTimestamp(statement, 9, diagnosis.getDateCreated());
+               statement.setBoolean(10, diagnosis.getVoided());
+               setId(statement, 11, diagnosis.getVoidedBy());
+               setTimestamp(statement, 12, diagnosis.getDateVoided());
+               statement.setString(13, diagnosis.getVoidReason());
+               statement.setString(14, diagnosis.getUuid());
+               statement.addBatch();
+            }
+            statement.executeBatch();
+         }
+      });
+   }
+
+   @Override
+   public void voidObs(Collection<Obs> obs, User voidedBy, Date dateVoided, String voidReason) {
+      Map<String, Object> parameters = new HashMap<String, Object>();
+      parameters.put("voidedBy", voidedBy);
+      parameters.put("dateVoided", dateVoided);
+      parameters.put("voidReason", voidReason);
+      List<Integer> obsIds = new ArrayList<Integer>();
+      for (Obs o : obs) {
+         obsIds.add(o.getObsId());
+      }
+      for (int i = 0; i < obsIds.size(); i += CHUNK_SIZE) {
+         parameters.put("obsIds", obsIds.subList(i, Math.min(i + CHUNK_SIZE, obsIds.size())));
+         executeHqlUpdate(VOID_OBS, parameters);
+      }
+
+      DbSession session = sessionFactory.getCurrentSession();
+      for (Obs o : obs) {
+         if (session.contains(o)) {
+            session.setReadOnly(o, true);
+         }
+         o.setVoided(true);
+         o.setVoidedBy(voidedBy);
+         o.setDateVoided(dateVoided);
+         o.setVoidReason(voidReason);
+      }
+   }
+
+   private void setId(PreparedStatement statement, int index, OpenmrsObject object) throws SQLException {
+      if (object == null || object.getId() == null) {
+         statement.setNull(index, Types.INTEGER);
+      } else {
+         statement.setInt(index, object.getId());
+      }
+   }
+
+   private void setTimestamp(PreparedStatement statement, int index, Date date) throws SQLException {
+      if (date == null) {
+         statement.setNull(index, Types.TIMESTAMP);
+      } else {
+         statement.setTimestamp(index, new Timestamp(date.getTime()));
+      }
+   }
+
+   private void setParameters(Query query, Map<String, Object> parameters) {
       for (String parameter : parameters.keySet()) {
          Object value = parameters.get(parameter);
          if (value instanceof Collection) {
@@ -33,11 +169,9 @@ public class EmrApiDAOImpl implements EmrApiDAO {
             query.setParameter(parameter, value);
          }
       }
-      return query.list();
    }
    
-   @Override
-   public <T> List<T> executeHqlFromResource(String resource, Map<String, Object> parameters, Class<T> clazz) {
+   private String loadHql(String resource) {
       String hql = null;
       try (InputStream is = getClass().getClassLoader().getResourceAsStream(resource)) {
          if (is != null) {
@@ -50,6 +184,6 @@ public class EmrApiDAOImpl implements EmrApiDAO {
       if (hql == null) {
          throw new RuntimeException("No resource found for " + resource);
       }
-      return executeHql(hql, parameters, clazz);
+      return hql;
    }
 }
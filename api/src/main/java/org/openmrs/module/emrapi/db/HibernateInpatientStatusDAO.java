@@ -0,0 +1,11 @@
+package org.openmrs.module.emrapi.db;
+
+import org.openmrs.module.emrapi.adt.InpatientStatus;
+
+public class HibernateInpatientStatusDAO extends HibernateSingleClassDAO<InpatientStatus> {
+
+    public HibernateInpatientStatusDAO() {
+        super(InpatientStatus.class);
+    }
+
+}
@@ -156,6 +156,24 @@ public abstract class ConceptSetDescriptor {
         return obs;
     }
 
+    /**
+     * Loads the names and answers of the given concepts, and the mappings of those answers, so that
+     * {@link #findAnswer(Concept, String)} still works once the session the concepts were loaded in has been closed
+     */
+    protected void loadAnswers(Concept... concepts) {
+        for (Concept concept : concepts) {
+            concept.getNames().size();
+            for (ConceptAnswer conceptAnswer : concept.getAnswers()) {
+                Concept answerConcept = conceptAnswer.getAnswerConcept();
+                if (answerConcept != null) {
+                    for (ConceptMap conceptMap : answerConcept.getConceptMappings()) {
+                        conceptMap.getConceptReferenceTerm().getConceptSource().getName();
+                    }
+                }
+            }
+        }
+    }
+
     protected Concept findAnswer(Concept concept, String codeForAnswer) {
         return findAnswer(concept,EmrApiConstants.EMR_CONCEPT_SOURCE_NAME,codeForAnswer);
     }
@@ -29,8 +29,28 @@ public class CoreDiagnosisService {
 		return DiagnosisUtils.convert(Context.getDiagnosisService().getDiagnoses(patient, fromDate));
 	}
 
+	public List<Diagnosis> getDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit) {
+		return DiagnosisUtils.convert(emrApiDAO.executeHqlFromResource("hql/patient_core_diagnoses.hql",
+				getPatientDiagnosesParameters(patient, fromDate), org.openmrs.Diagnosis.class, startIndex, limit));
+	}
+
 	public 	List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate){
-		return DiagnosisUtils.convert(Context.getDiagnosisService().getUniqueDiagnoses(patient, fromDate));
+		return getUniqueDiagnoses(patient, fromDate, null, null);
+	}
+
+	/**
+	 * The most recent diagnosis of each answer is picked out by the query, rather than by loading them all
+	 */
+	public List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit) {
+		return DiagnosisUtils.convert(emrApiDAO.executeHqlFromResource("hql/patient_unique_core_diagnoses.hql",
+				getPatientDiagnosesParameters(patient, fromDate), org.openmrs.Diagnosis.class, startIndex, limit));
+	}
+
+	private Map<String, Object> getPatientDiagnosesParameters(Patient patient, Date fromDate) {
+		Map<String, Object> parameters = new HashMap<>();
+		parameters.put("patient", patient);
+		parameters.put("fromDate", fromDate);
+		return parameters;
 	}
 
 	public List<Diagnosis> getPrimaryDiagnoses(Encounter encounter){
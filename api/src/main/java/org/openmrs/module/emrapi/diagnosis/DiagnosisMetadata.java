@@ -43,6 +43,8 @@ public class DiagnosisMetadata extends ConceptSetDescriptor {
                 ConceptSetDescriptorField.required("nonCodedDiagnosisConcept", EmrApiConstants.CONCEPT_CODE_NON_CODED_DIAGNOSIS),
                 ConceptSetDescriptorField.required("diagnosisOrderConcept", EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_ORDER),
                 ConceptSetDescriptorField.required("diagnosisCertaintyConcept", EmrApiConstants.CONCEPT_CODE_DIAGNOSIS_CERTAINTY));
+        // the metadata is cached by EmrApiProperties, and used in later sessions
+        loadAnswers(diagnosisOrderConcept, diagnosisCertaintyConcept);
         this.emrConceptSource = emrConceptSource;
     }
 
@@ -0,0 +1,138 @@
+/**
+ * This Source Code Form is subject to the terms of the Mozilla Public License,
+ * v. 2.0. If a copy of the MPL was not distributed with this file, You can
+ * obtain one at http://mozilla.org/MPL/2.0/. OpenMRS is also distributed under
+ * the terms of the Healthcare Disclaimer located at http://openmrs.org/license.
+ *
+ * Copyright (C) OpenMRS Inc. OpenMRS is a registered trademark and the OpenMRS
+ * graphic logo is a trademark of OpenMRS Inc.
+ */
+package org.openmrs.module.emrapi.diagnosis;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The progress of a diagnosis migration running in the background (see
+ * {@link MigrateDiagnosis#startInBackground(DiagnosisMetadata, int)}), updated by its worker threads as they finish
+ * each range of patients.
+ */
+public class DiagnosisMigrationProgress {
+
+	public enum Status {
+		RUNNING, COMPLETED, COMPLETED_WITH_ERRORS
+	}
+
+	private final int totalPatients;
+
+	private final long startTime = System.currentTimeMillis();
+
+	private volatile long endTime;
+
+	private final AtomicInteger processedPatients = new AtomicInteger();
+
+	private final AtomicInteger failedPatients = new AtomicInteger();
+
+	private final AtomicInteger migratedDiagnoses = new AtomicInteger();
+
+	private final AtomicInteger failedDiagnoses = new AtomicInteger();
+
+	private final AtomicInteger activeWorkers;
+
+	DiagnosisMigrationProgress(int totalPatients, int workers) {
+		this.totalPatients = totalPatients;
+		this.activeWorkers = new AtomicInteger(workers);
+		if (workers == 0) {
+			endTime = startTime;
+		}
+	}
+
+	void rangeMigrated(int patients, int diagnoses, int failedDiagnoses) {
+		processedPatients.addAndGet(patients);
+		migratedDiagnoses.addAndGet(diagnoses);
+		this.failedDiagnoses.addAndGet(failedDiagnoses);
+	}
+
+	void rangeFailed(int patients) {
+		processedPatients.addAndGet(patients);
+		failedPatients.addAndGet(patients);
+	}
+
+	void workerFinished() {
+		if (activeWorkers.decrementAndGet() == 0) {
+			endTime = System.currentTimeMillis();
+		}
+	}
+
+	public Status getStatus() {
+		if (isRunning()) {
+			return Status.RUNNING;
+		}
+		return failedPatients.get() > 0 || failedDiagnoses.get() > 0 ? Status.COMPLETED_WITH_ERRORS : Status.COMPLETED;
+	}
+
+	public boolean isRunning() {
+		return endTime == 0;
+	}
+
+	public int getTotalPatients() {
+		return totalPatients;
+	}
+
+	/**
+	 * @return the number of patients whose ranges have been finished, whether they failed or not
+	 */
+	public int getProcessedPatients() {
+		return processedPatients.get();
+	}
+
+	/**
+	 * @return the number of patients whose ranges failed, and so still need migrating by running the migration again
+	 */
+	public int getFailedPatients() {
+		return failedPatients.get();
+	}
+
+	public int getMigratedDiagnoses() {
+		return migratedDiagnoses.get();
+	}
+
+	/**
+	 * @return the number of diagnosis obs groups, in ranges that were otherwise migrated, that could not be interpreted
+	 * as diagnoses and so were left as they are
+	 */
+	public int getFailedDiagnoses() {
+		return failedDiagnoses.get();
+	}
+
+	public Date getStartTime() {
+		return new Date(startTime);
+	}
+
+	public Date getEndTime() {
+		return isRunning() ? null : new Date(endTime);
+	}
+
+	/**
+	 * @return the number of patients processed per second so far
+	 */
+	public double getPatientsPerSecond() {
+		long elapsed = (isRunning() ? System.currentTimeMillis() : endTime) - startTime;
+		return elapsed <= 0 ? 0 : getProcessedPatients() * 1000.0 / elapsed;
+	}
+
+	/**
+	 * @return the estimated number of seconds until the migration is finished at the current rate, or null if nothing
+	 * has been processed yet to estimate from
+	 */
+	public Long getEstimatedSecondsRemaining() {
+		if (!isRunning()) {
+			return 0L;
+		}
+		double patientsPerSecond = getPatientsPerSecond();
+		if (patientsPerSecond <= 0) {
+			return null;
+		}
+		return Math.round((totalPatients - getProcessedPatients()) / patientsPerSecond);
+	}
+}
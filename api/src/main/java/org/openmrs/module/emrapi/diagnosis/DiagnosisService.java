@@ -39,6 +39,17 @@ public interface DiagnosisService extends OpenmrsService {
 	 */
 	List<Diagnosis> getDiagnoses(Patient patient, Date fromDate);
 
+	/**
+	 * Gets a page of the diagnoses since date, sorted in reverse chronological order
+	 *
+	 * @param patient
+	 * @param fromDate
+	 * @param startIndex the index of the first diagnosis to return, or null to start at the first
+	 * @param limit the maximum number of diagnoses to return, or null for all of them
+	 * @return the list of diagnoses
+	 */
+	List<Diagnosis> getDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit);
+
     /**
      * Finds the primary diagnoses for a given encounter
      * @param encounter
@@ -63,6 +74,18 @@ public interface DiagnosisService extends OpenmrsService {
 	 */
 	List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate);
 
+	/**
+	 * Gets a page of the unique diagnoses since date, i.e. the most recent diagnosis of each coded or non-coded answer,
+	 * sorted in reverse chronological order. The duplicates are removed by the database, so only the page is loaded.
+	 *
+	 * @param patient
+	 * @param fromDate
+	 * @param startIndex the index of the first diagnosis to return, or null to start at the first
+	 * @param limit the maximum number of diagnoses to return, or null for all of them
+	 * @return the list of diagnoses
+	 */
+	List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit);
+
 	/**
 	 * @return a Map from Visit to the List of Diagnoses in that visit, given a List of visits
 	 */
@@ -49,6 +49,15 @@ public class DiagnosisServiceImpl extends BaseOpenmrsService implements Diagnosi
 		}
 	}
 
+	public List<Diagnosis> getDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit) {
+		if (useDiagnosesAsObs()) {
+			return obsGroupDiagnosisService.getDiagnoses(patient, fromDate, startIndex, limit);
+		}
+		else {
+			return coreDiagnosisService.getDiagnoses(patient, fromDate, startIndex, limit);
+		}
+	}
+
 	public 	List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate) {
 		if (useDiagnosesAsObs()) {
 			return obsGroupDiagnosisService.getUniqueDiagnoses(patient, fromDate);
@@ -59,6 +68,15 @@ public class DiagnosisServiceImpl extends BaseOpenmrsService implements Diagnosi
 
 	}
 
+	public List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit) {
+		if (useDiagnosesAsObs()) {
+			return obsGroupDiagnosisService.getUniqueDiagnoses(patient, fromDate, startIndex, limit);
+		}
+		else {
+			return coreDiagnosisService.getUniqueDiagnoses(patient, fromDate, startIndex, limit);
+		}
+	}
+
 	public List<Diagnosis> getPrimaryDiagnoses(Encounter encounter) {
 		if (useDiagnosesAsObs()) {
 			return obsGroupDiagnosisService.getPrimaryDiagnoses(encounter);
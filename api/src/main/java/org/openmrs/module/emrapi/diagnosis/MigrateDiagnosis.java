@@ -13,50 +13,59 @@ import org.openmrs.CodedOrFreeText;
 import org.openmrs.ConditionVerificationStatus;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
+import org.openmrs.User;
 import org.openmrs.api.context.Context;
+import org.openmrs.api.context.Daemon;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.emrapi.db.EmrApiDAO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Migrates existing Diagnosis from the obs table to the new encounter_diagnosis table by getting all existing diagnosis
- * using the emrapi DiagnosisService and then saves them using the openmrs api DiagnosisService.
+ * using the emrapi DiagnosisService and then inserting them into encounter_diagnosis in JDBC batches.
+ * <p>
+ * Patients are migrated in ranges, and the diagnoses of each range are inserted in the same transaction as their obs
+ * are voided, so the voided obs are the checkpoint: a migration that is stopped or fails part way can be run again and
+ * only migrates the patients that are left.
  */
 public class MigrateDiagnosis {
 	
-	private static final int BATCH_SIZE = 10;
+	private static final int BATCH_SIZE = 100;
+	
+	public static final int MAX_BACKGROUND_THREADS = 8;
+	
+	static final String OBS_GROUP_VOID_REASON = "Voided this Obs due to its migration to new encounter_diagnosis table";
+	
+	static final String OBS_MEMBER_VOID_REASON = "Migrated parent to the new encounter_diagnosis table";
 	
 	private static final Logger log = LoggerFactory.getLogger(MigrateDiagnosis.class);
 	
+	private static volatile DaemonToken daemonToken;
+	
+	private static DiagnosisMigrationProgress backgroundMigration;
+	
 	/**
-	 * Creates new Diagnosis using the Diagnosis model from the openmrs-core and saves it using the new DiagnosisService
+	 * Migrates all the diagnoses in the current thread and session, one range of patients at a time
 	 * @return true if at least one Diagnosis was migrated
 	 */
 	public Boolean migrate(DiagnosisMetadata diagnosisMetadata) {
-		// Flag that identifies whether at least one Diagnosis was migrated
-		boolean migratedAtleastOneEncounterDiagosis = false;
-
-		ObsGroupDiagnosisService oldDiagnosisService = getDeprecatedDiagnosisService();
-		
-		org.openmrs.api.DiagnosisService newDiagnosisService = Context.getService(org.openmrs.api.DiagnosisService.class);
-		List<Integer> patientsIds = oldDiagnosisService.getAllPatientsWithDiagnosis(diagnosisMetadata);
-		
-		// Process patients in batches
+		User user = Context.getAuthenticatedUser();
+		List<Integer> patientsIds = getPatientIdsToMigrate(diagnosisMetadata);
+		int migrated = 0;
+		List<Integer> failedObsIds = new ArrayList<>();
 		for (int i = 0; i < patientsIds.size(); i += BATCH_SIZE) {
 			int endIndex = Math.min(i + BATCH_SIZE, patientsIds.size());
-			List<Integer> patientBatch = patientsIds.subList(i, endIndex);
-			
-			for (int id : patientBatch) {
-				Patient patient = Context.getPatientService().getPatient(id);
-				List<org.openmrs.Diagnosis> diagnoses = convert(oldDiagnosisService.getDiagnoses(patient, null));
-				
-				for (org.openmrs.Diagnosis diagnosis : diagnoses) {
-					newDiagnosisService.save(diagnosis);
-					migratedAtleastOneEncounterDiagosis = true;
-				}
-			}
+			migrated += migratePatients(patientsIds.subList(i, endIndex), diagnosisMetadata, user, failedObsIds);
 			
 			// Flush and clear session after each batch
 			Context.flushSession();
@@ -64,9 +73,134 @@ public class MigrateDiagnosis {
 			
 			log.info("Processed {} of {} patients", endIndex, patientsIds.size());
 		}
-		return migratedAtleastOneEncounterDiagosis;
+		if (!failedObsIds.isEmpty()) {
+			log.warn("Could not migrate {} diagnosis obs groups that cannot be interpreted as diagnoses", failedObsIds.size());
+		}
+		return migrated > 0;
 	}
-
+	
+	/**
+	 * Starts migrating all the diagnoses in the background, on (at most) the given number of daemon threads. Each thread
+	 * has its own session, and repeatedly takes the next range of patients and migrates it in its own transaction; a
+	 * range that fails is logged and left for the next run, as is any diagnosis obs group that cannot be interpreted as a
+	 * diagnosis.
+	 * 
+	 * @return the progress of the new migration, or of the one that is already running
+	 */
+	public static synchronized DiagnosisMigrationProgress startInBackground(final DiagnosisMetadata diagnosisMetadata,
+	        int threads) {
+		if (backgroundMigration != null && backgroundMigration.isRunning()) {
+			return backgroundMigration;
+		}
+		if (daemonToken == null) {
+			throw new IllegalStateException("The emrapi module has not been started");
+		}
+		List<Integer> patientsIds = getPatientIdsToMigrate(diagnosisMetadata);
+		final Queue<List<Integer>> ranges = new ConcurrentLinkedQueue<>();
+		for (int i = 0; i < patientsIds.size(); i += BATCH_SIZE) {
+			ranges.add(new ArrayList<>(patientsIds.subList(i, Math.min(i + BATCH_SIZE, patientsIds.size()))));
+		}
+		int workers = Math.min(Math.max(1, Math.min(threads, MAX_BACKGROUND_THREADS)), ranges.size());
+		final DiagnosisMigrationProgress progress = new DiagnosisMigrationProgress(patientsIds.size(), workers);
+		final Integer userId = Context.getAuthenticatedUser().getUserId();
+		for (int i = 0; i < workers; i++) {
+			Daemon.runInDaemonThread(() -> new MigrateDiagnosis().migrateRanges(ranges, diagnosisMetadata, userId, progress),
+			    daemonToken);
+		}
+		backgroundMigration = progress;
+		return progress;
+	}
+	
+	/**
+	 * @return the progress of the last migration started in the background, or null if none has been started
+	 */
+	public static synchronized DiagnosisMigrationProgress getBackgroundMigration() {
+		return backgroundMigration;
+	}
+	
+	public static void setDaemonToken(DaemonToken token) {
+		daemonToken = token;
+	}
+	
+	private static List<Integer> getPatientIdsToMigrate(DiagnosisMetadata diagnosisMetadata) {
+		List<Integer> patientsIds = new ArrayList<>(getDeprecatedDiagnosisService().getAllPatientsWithDiagnosis(diagnosisMetadata));
+		Collections.sort(patientsIds);
+		return patientsIds;
+	}
+	
+	private void migrateRanges(Queue<List<Integer>> ranges, DiagnosisMetadata diagnosisMetadata, Integer userId,
+	        DiagnosisMigrationProgress progress) {
+		try {
+			TransactionTemplate transaction = new TransactionTemplate(
+			        Context.getRegisteredComponent("transactionManager", PlatformTransactionManager.class));
+			User user = Context.getUserService().getUser(userId);
+			List<Integer> range;
+			while ((range = ranges.poll()) != null) {
+				final List<Integer> patientIds = range;
+				final List<Integer> failedObsIds = new ArrayList<>();
+				try {
+					Integer migrated = transaction.execute(
+					    status -> migratePatients(patientIds, diagnosisMetadata, user, failedObsIds));
+					progress.rangeMigrated(patientIds.size(), migrated, failedObsIds.size());
+				}
+				catch (RuntimeException e) {
+					log.error("Failed to migrate the diagnoses of patients {} to {}", patientIds.get(0),
+					    patientIds.get(patientIds.size() - 1), e);
+					progress.rangeFailed(patientIds.size());
+				}
+				Context.clearSession();
+			}
+		}
+		finally {
+			progress.workerFinished();
+		}
+	}
+	
+	/**
+	 * Inserts the diagnoses of the given patients into encounter_diagnosis, and voids the obs they came from. Every
+	 * diagnosis obs group is migrated, including those of suppressed concepts; the ones that cannot be interpreted as a
+	 * diagnosis are left as they are and their ids added to failedObsIds.
+	 * @return the number of diagnoses migrated
+	 */
+	private int migratePatients(List<Integer> patientIds, DiagnosisMetadata diagnosisMetadata, User user,
+	        List<Integer> failedObsIds) {
+		List<Diagnosis> emrapiDiagnoses = new ArrayList<>();
+		for (Obs obsGroup : getDeprecatedDiagnosisService().getDiagnosisObsGroupsOfPatients(patientIds, diagnosisMetadata)) {
+			if (obsGroup.getEncounter() == null) {
+				// encounter_diagnosis requires an encounter, so leave these as they are
+				log.warn("Not migrating diagnosis obs {} as it has no encounter", obsGroup.getObsId());
+				continue;
+			}
+			try {
+				emrapiDiagnoses.add(diagnosisMetadata.toDiagnosis(obsGroup));
+			}
+			catch (RuntimeException e) {
+				log.warn("Not migrating diagnosis obs {} as it cannot be interpreted as a diagnosis", obsGroup.getObsId(), e);
+				failedObsIds.add(obsGroup.getObsId());
+			}
+		}
+		if (emrapiDiagnoses.isEmpty()) {
+			return 0;
+		}
+		
+		EmrApiDAO emrApiDAO = getEmrApiDAO();
+		emrApiDAO.insertEncounterDiagnoses(convert(emrapiDiagnoses));
+		
+		List<Obs> obsGroups = new ArrayList<>();
+		List<Obs> obsMembers = new ArrayList<>();
+		for (Diagnosis diagnosis : emrapiDiagnoses) {
+			Obs obs = diagnosis.getExistingObs();
+			obsGroups.add(obs);
+			if (obs.isObsGrouping()) {
+				obsMembers.addAll(obs.getGroupMembers());
+			}
+		}
+		Date dateVoided = new Date();
+		emrApiDAO.voidObs(obsGroups, user, dateVoided, OBS_GROUP_VOID_REASON);
+		emrApiDAO.voidObs(obsMembers, user, dateVoided, OBS_MEMBER_VOID_REASON);
+		return emrapiDiagnoses.size();
+	}
+	
 	/**
 	 * Converts a list of emrapi diagnosis objects to a list of core diagnosis objects
 	 * @param emrapiDiagnoses list of emrapi diagnosis
@@ -79,7 +213,7 @@ public class MigrateDiagnosis {
 			org.openmrs.Diagnosis coreDiagnosis = new org.openmrs.Diagnosis();
 			Obs obs = emrapiDiagnosis.getExistingObs();
 			coreDiagnosis.setEncounter(obs.getEncounter());
-			coreDiagnosis.setPatient((Patient)obs.getPerson());
+			coreDiagnosis.setPatient(new Patient(obs.getPerson().getPersonId()));
 			coreDiagnosis.setDiagnosis(new CodedOrFreeText(emrapiDiagnosis.getDiagnosis().getCodedAnswer(),
 					emrapiDiagnosis.getDiagnosis().getSpecificCodedAnswer(), emrapiDiagnosis.getDiagnosis().getNonCodedAnswer()));
 			coreDiagnosis.setCertainty(emrapiDiagnosis.getCertainty() == Diagnosis.Certainty.CONFIRMED ? ConditionVerificationStatus.CONFIRMED : ConditionVerificationStatus.PROVISIONAL);
@@ -92,23 +226,15 @@ public class MigrateDiagnosis {
 				coreDiagnosis.setDateVoided(obs.getDateVoided());
 				coreDiagnosis.setVoidReason(obs.getVoidReason());
 			}
-			obs.setVoided(true);
-			if (obs.isObsGrouping()) {
-				List<Obs> affectedObsChildren = new ArrayList<>(obs.getGroupMembers());
-				for (Obs child : affectedObsChildren) {
-					child.setVoided(true);
-					child.setVoidReason("Migrated parent to the new encounter_diagnosis table");
-				}
-				
-			}
-			
-			Context.getObsService().saveObs(obs, "Voided this Obs due to its migration to new encounter_diagnosis table");
 			coreDiagnoses.add(coreDiagnosis);
-
 		}
 		return coreDiagnoses;
 	}
 
+	private static EmrApiDAO getEmrApiDAO() {
+		return Context.getRegisteredComponent("emrApiDAOImpl", EmrApiDAO.class);
+	}
+
 	/**
 	 * Gets the old deprecated diagnosis service found in the emrapi module. 
 	 * The one which was used before platform 2.2
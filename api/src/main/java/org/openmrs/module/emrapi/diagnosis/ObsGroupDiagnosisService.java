@@ -4,14 +4,20 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.openmrs.Concept;
 import org.openmrs.Encounter;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
 import org.openmrs.api.EncounterService;
+import org.openmrs.api.GlobalPropertyListener;
 import org.openmrs.api.ObsService;
+import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.concept.ConceptChangeTracker;
 import org.openmrs.module.emrapi.db.EmrApiDAO;
 import org.openmrs.util.OpenmrsUtil;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -19,15 +25,20 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class ObsGroupDiagnosisService {
+public class ObsGroupDiagnosisService implements GlobalPropertyListener {
 
     private static final Log log = LogFactory.getLog(ObsGroupDiagnosisService.class);
 
+    private static final int VISIT_CHUNK_SIZE = 1000;
+
+    private static final int OBS_CHUNK_SIZE = 1000;
+
 	private EmrApiProperties emrApiProperties;
 
 	private ObsService obsService;
@@ -36,6 +47,12 @@ public class ObsGroupDiagnosisService {
 
     private EmrApiDAO emrApiDAO;
 
+    private ConceptChangeTracker conceptChangeTracker = new ConceptChangeTracker();
+
+    private volatile SuppressedDiagnosisConcepts suppressedDiagnosisConcepts;
+
+    private final AtomicLong globalPropertyVersion = new AtomicLong();
+
 	public void setEmrApiProperties(EmrApiProperties emrApiProperties) {
 		this.emrApiProperties = emrApiProperties;
 	}
@@ -52,6 +69,10 @@ public class ObsGroupDiagnosisService {
         this.emrApiDAO = emrApiDAO;
     }
 
+    public void setConceptChangeTracker(ConceptChangeTracker conceptChangeTracker) {
+        this.conceptChangeTracker = conceptChangeTracker;
+    }
+
     public List<Obs> codeNonCodedDiagnosis(Obs nonCodedObs, List<Diagnosis> diagnoses) {
 
         List<Obs> newDiagnoses = null;
@@ -153,8 +174,7 @@ public class ObsGroupDiagnosisService {
     protected List<Diagnosis> getDiagnosesFromObsGroups(List<Obs> diagnosisObsGroups) {
         List<Diagnosis> diagnoses = new ArrayList<>();
         DiagnosisMetadata diagnosisMetadata = emrApiProperties.getDiagnosisMetadata();
-        Collection<Concept> nonDiagnosisConcepts = emrApiProperties.getSuppressedDiagnosisConcepts();
-        Collection<Concept> nonDiagnosisConceptSets = emrApiProperties.getNonDiagnosisConceptSets();
+        SuppressedDiagnosisConcepts suppressed = getSuppressedDiagnosisConcepts();
         for (Obs obs : diagnosisObsGroups) {
             Diagnosis diagnosis;
             try {
@@ -167,30 +187,127 @@ public class ObsGroupDiagnosisService {
                 }
                 continue;
             }
-            Set<Concept> filter = new HashSet<>(nonDiagnosisConcepts);
-            for (Concept conceptSet : nonDiagnosisConceptSets) {
-                filter.addAll(conceptSet.getSetMembers());
-            }
-            if (!filter.contains(diagnosis.getDiagnosis().getCodedAnswer())) {
+            if (!suppressed.contains(diagnosis.getDiagnosis().getCodedAnswer())) {
                 diagnoses.add(diagnosis);
             }
         }
         return diagnoses;
     }
 
+    /**
+     * Cached until either global property changes, or concepts change, see {@link ConceptChangeTracker}
+     */
+    private SuppressedDiagnosisConcepts getSuppressedDiagnosisConcepts() {
+        SuppressedDiagnosisConcepts suppressed = suppressedDiagnosisConcepts;
+        long conceptVersion = conceptChangeTracker.getVersion();
+        long gpVersion = globalPropertyVersion.get();
+        if (suppressed == null || suppressed.conceptVersion != conceptVersion || suppressed.globalPropertyVersion != gpVersion) {
+            suppressed = new SuppressedDiagnosisConcepts(emrApiProperties.getSuppressedDiagnosisConcepts(),
+                    emrApiProperties.getNonDiagnosisConceptSets(), conceptVersion, gpVersion);
+            suppressedDiagnosisConcepts = suppressed;
+        }
+        return suppressed;
+    }
+
+    @Override
+    public boolean supportsPropertyName(String propertyName) {
+        return EmrApiConstants.GP_SUPPRESSED_DIAGNOSIS_CONCEPTS.equals(propertyName)
+                || EmrApiConstants.GP_NON_DIAGNOSIS_CONCEPT_SETS.equals(propertyName);
+    }
+
+    @Override
+    public void globalPropertyChanged(GlobalProperty newValue) {
+        globalPropertiesChanged();
+    }
+
+    @Override
+    public void globalPropertyDeleted(String propertyName) {
+        globalPropertiesChanged();
+    }
+
+    /**
+     * Listeners are called before the change is committed, so the version is bumped again once the transaction
+     * completes, so that anything read by another thread in between is not kept
+     */
+    private void globalPropertiesChanged() {
+        globalPropertyVersion.incrementAndGet();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    globalPropertyVersion.incrementAndGet();
+                }
+            });
+        }
+    }
+
 	public List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate) {
-		List<Diagnosis> diagnoses = getDiagnoses(patient, fromDate);
-		Set<CodedOrFreeTextAnswer> answers = new HashSet<>();
-		Iterator<Diagnosis> it = diagnoses.iterator();
-		while(it.hasNext()) {
-			Diagnosis diagnosis = it.next();
-			if (!answers.add(diagnosis.getDiagnosis())) {
-				 it.remove();
-			}
-		}
-		return diagnoses;
+		return getUniqueDiagnoses(patient, fromDate, null, null);
 	}
 
+    /**
+     * Gets a page of the diagnoses since the given date, in reverse chronological order. Only the ids of the page's
+     * diagnosis obs groups are queried for, and then the groups are loaded together with their members.
+     */
+    public List<Diagnosis> getDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit) {
+        List<Integer> obsGroupIds = emrApiDAO.executeHqlFromResource("hql/patient_diagnosis_obs_group_ids.hql",
+                getPatientDiagnosesParameters(patient, fromDate), Integer.class, startIndex, limit);
+        return getDiagnosesFromObsGroups(getObsGroupsWithMembers(obsGroupIds));
+    }
+
+    /**
+     * Gets a page of the unique diagnoses since the given date, in reverse chronological order. The most recent
+     * diagnosis of each coded or non-coded answer is picked out by the query, rather than by loading them all and
+     * removing the duplicates.
+     */
+    public List<Diagnosis> getUniqueDiagnoses(Patient patient, Date fromDate, Integer startIndex, Integer limit) {
+        List<Integer> obsGroupIds = emrApiDAO.executeHqlFromResource("hql/patient_unique_diagnosis_obs_group_ids.hql",
+                getPatientDiagnosesParameters(patient, fromDate), Integer.class, startIndex, limit);
+        return getDiagnosesFromObsGroups(getObsGroupsWithMembers(obsGroupIds));
+    }
+
+    /**
+     * The members of the non-diagnosis concept sets are excluded by a subquery on the sets, rather than by binding
+     * what may be a very long list of member ids
+     */
+    private Map<String, Object> getPatientDiagnosesParameters(Patient patient, Date fromDate) {
+        DiagnosisMetadata diagnosisMetadata = emrApiProperties.getDiagnosisMetadata();
+        SuppressedDiagnosisConcepts suppressed = getSuppressedDiagnosisConcepts();
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("patient", patient);
+        parameters.put("fromDate", fromDate);
+        parameters.put("diagnosisSetConcept", diagnosisMetadata.getDiagnosisSetConcept());
+        parameters.put("diagnosisAnswerConcepts", Arrays.asList(diagnosisMetadata.getCodedDiagnosisConcept(),
+                diagnosisMetadata.getNonCodedDiagnosisConcept()));
+        parameters.put("suppressedConceptIds", suppressed.suppressedConceptIds.isEmpty() ? null : suppressed.suppressedConceptIds);
+        parameters.put("excludeSuppressedConcepts", !suppressed.suppressedConceptIds.isEmpty());
+        parameters.put("nonDiagnosisConceptSetIds", suppressed.nonDiagnosisConceptSetIds.isEmpty() ? null : suppressed.nonDiagnosisConceptSetIds);
+        parameters.put("excludeNonDiagnosisConceptSets", !suppressed.nonDiagnosisConceptSetIds.isEmpty());
+        return parameters;
+    }
+
+    /**
+     * @return the obs groups with the given ids, in the same order, loaded 1000 at a time together with their members
+     */
+    private List<Obs> getObsGroupsWithMembers(List<Integer> obsGroupIds) {
+        List<Integer> ids = new ArrayList<>(new LinkedHashSet<>(obsGroupIds));
+        Map<Integer, Obs> obsGroupsById = new HashMap<>();
+        Map<String, Object> parameters = new HashMap<>();
+        for (int i = 0; i < ids.size(); i += OBS_CHUNK_SIZE) {
+            parameters.put("obsIds", ids.subList(i, Math.min(i + OBS_CHUNK_SIZE, ids.size())));
+            for (Obs obsGroup : emrApiDAO.executeHqlFromResource("hql/obs_groups_with_members.hql", parameters, Obs.class)) {
+                obsGroupsById.put(obsGroup.getObsId(), obsGroup);
+            }
+        }
+        List<Obs> obsGroups = new ArrayList<>();
+        for (Integer id : ids) {
+            if (obsGroupsById.containsKey(id)) {
+                obsGroups.add(obsGroupsById.get(id));
+            }
+        }
+        return obsGroups;
+    }
+
     public List<Obs> getDiagnoses(Visit visit, DiagnosisMetadata diagnosisMetadata) {
         Map<String, Object> parameters = new HashMap<>();
         parameters.put("visit", visit);
@@ -214,41 +331,132 @@ public class ObsGroupDiagnosisService {
         return emrApiDAO.executeHqlFromResource("hql/visit_confirmed_diagnoses.hql", parameters, Obs.class);
     }
 
+    /**
+     * Gets the diagnosis obs groups of the visit that are both primary and confirmed, with one query that checks the
+     * order and the certainty of each group
+     */
     public List<Obs> getConfirmedPrimaryDiagnoses(Visit visit, DiagnosisMetadata diagnosisMetadata) {
-        List<Obs> confirmedDiagnoses = getConfirmedDiagnoses(visit, diagnosisMetadata);
-        List<Obs> primaryDiagnoses = getPrimaryDiagnoses(visit, diagnosisMetadata);
-        confirmedDiagnoses.retainAll(primaryDiagnoses);
-        return confirmedDiagnoses;
+        Map<String, Object> parameters = getConfirmedPrimaryDiagnosesParameters(diagnosisMetadata);
+        parameters.put("visit", visit);
+        return emrApiDAO.executeHqlFromResource("hql/visit_confirmed_primary_diagnoses.hql", parameters, Obs.class);
     }
 
+    /**
+     * Gets the primary and confirmed diagnosis obs groups of many visits, e.g. a page of visit summaries, querying
+     * 1000 visits at a time. Every visit is in the returned map, with an empty list if it has no such diagnoses.
+     */
+    public Map<Visit, List<Obs>> getConfirmedPrimaryDiagnoses(Collection<Visit> visits, DiagnosisMetadata diagnosisMetadata) {
+        Set<Integer> visitIds = new LinkedHashSet<>();
+        for (Visit visit : visits) {
+            if (visit.getVisitId() != null) {
+                visitIds.add(visit.getVisitId());
+            }
+        }
+
+        Map<Integer, Set<Obs>> diagnosesByVisitId = new HashMap<>();
+        if (!visitIds.isEmpty()) {
+            Map<String, Object> parameters = getConfirmedPrimaryDiagnosesParameters(diagnosisMetadata);
+            List<Integer> allVisitIds = new ArrayList<>(visitIds);
+            for (int i = 0; i < allVisitIds.size(); i += VISIT_CHUNK_SIZE) {
+                parameters.put("visitIds", allVisitIds.subList(i, Math.min(i + VISIT_CHUNK_SIZE, allVisitIds.size())));
+                for (Object[] row : emrApiDAO.executeHqlFromResource("hql/visits_confirmed_primary_diagnoses.hql", parameters, Object[].class)) {
+                    Set<Obs> visitDiagnoses = diagnosesByVisitId.get((Integer) row[0]);
+                    if (visitDiagnoses == null) {
+                        visitDiagnoses = new LinkedHashSet<>();
+                        diagnosesByVisitId.put((Integer) row[0], visitDiagnoses);
+                    }
+                    visitDiagnoses.add((Obs) row[1]);
+                }
+            }
+        }
+
+        Map<Visit, List<Obs>> ret = new HashMap<>();
+        for (Visit visit : visits) {
+            Set<Obs> visitDiagnoses = visit.getVisitId() == null ? null : diagnosesByVisitId.get(visit.getVisitId());
+            ret.put(visit, visitDiagnoses == null ? new ArrayList<>() : new ArrayList<>(visitDiagnoses));
+        }
+        return ret;
+    }
+
+    private Map<String, Object> getConfirmedPrimaryDiagnosesParameters(DiagnosisMetadata diagnosisMetadata) {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("diagnosisOrderConcept", diagnosisMetadata.getDiagnosisOrderConcept());
+        parameters.put("primaryOrderConcept", diagnosisMetadata.getConceptFor(Diagnosis.Order.PRIMARY));
+        parameters.put("diagnosisCertaintyConcept", diagnosisMetadata.getDiagnosisCertaintyConcept());
+        parameters.put("confirmedCertaintyConcept", diagnosisMetadata.getConceptFor(Diagnosis.Certainty.CONFIRMED));
+        return parameters;
+    }
+
+    /**
+     * Gets the ids of the patients with (non-voided) diagnoses that can be migrated to the encounter_diagnosis table.
+     * Diagnosis obs without an encounter cannot be migrated, and so are never voided, so patients who only have those
+     * are left out; otherwise every run of the migration would pick them up again.
+     */
     public List<Integer> getAllPatientsWithDiagnosis(DiagnosisMetadata diagnosisMetadata) {
         Map<String, Object> parameters = new HashMap<>();
         parameters.put("diagnosisSetConcept", diagnosisMetadata.getDiagnosisSetConcept());
         return emrApiDAO.executeHqlFromResource("hql/patients_diagnoses.hql", parameters, Integer.class);
     }
 
-    public Map<Visit, List<org.openmrs.Diagnosis>> getDiagnoses(Collection<Visit> visits) {
-        Map<Visit, List<org.openmrs.Diagnosis>> ret = new HashMap<>();
-        String query =
-                "select o.obsGroup from Obs o " +
-                "where o.voided = false " +
-                "and o.obsGroup.voided = false " +
-                "and o.encounter.visit in :visits " +
-                "and o.concept = :diagnosisOrderConcept " +
-                "group by o.encounter, o.obsGroup " +
-                "order by o.encounter.encounterDatetime desc, o.obsGroup.obsDatetime desc ";
+    /**
+     * Gets the (non-voided) diagnosis obs groups of the given patients, e.g. a range of patients being migrated, with one
+     * query, fetched together with their encounters and members. They are returned as they are, so unlike
+     * {@link #getDiagnosesFromObsGroups(List)} this includes the groups of suppressed concepts, and those that cannot be
+     * interpreted as diagnoses.
+     */
+    public List<Obs> getDiagnosisObsGroupsOfPatients(List<Integer> patientIds, DiagnosisMetadata diagnosisMetadata) {
+        if (patientIds.isEmpty()) {
+            return new ArrayList<>();
+        }
         Map<String, Object> parameters = new HashMap<>();
-        parameters.put("visits", visits);
-        parameters.put("diagnosisOrderConcept", emrApiProperties.getDiagnosisMetadata().getDiagnosisOrderConcept());
-        List<Obs> obsGroups = emrApiDAO.executeHql(query, parameters, Obs.class);
-        List<Diagnosis> diagnoses = getDiagnosesFromObsGroups(obsGroups);
+        parameters.put("diagnosisSetConcept", diagnosisMetadata.getDiagnosisSetConcept());
+        parameters.put("patientIds", patientIds);
+        // fetching the members repeats each group once per member
+        return new ArrayList<>(new LinkedHashSet<>(
+                emrApiDAO.executeHqlFromResource("hql/patients_diagnosis_obs_groups.hql", parameters, Obs.class)));
+    }
+
+    /**
+     * Gets the diagnoses of many visits, e.g. a page of visits, querying 1000 visits at a time. The diagnosis obs
+     * groups are fetched together with their encounters and members, so that interpreting them as diagnoses doesn't
+     * load the members of each group separately.
+     */
+    public Map<Visit, List<org.openmrs.Diagnosis>> getDiagnoses(Collection<Visit> visits) {
+        Set<Integer> visitIds = new LinkedHashSet<>();
         for (Visit visit : visits) {
-            ret.put(visit, new ArrayList<>());
+            if (visit.getVisitId() != null) {
+                visitIds.add(visit.getVisitId());
+            }
         }
-        for (Diagnosis diagnosis : diagnoses) {
-            ret.get(diagnosis.getExistingObs().getEncounter().getVisit()).add(DiagnosisUtils.convert(diagnosis));
+
+        Map<Integer, List<org.openmrs.Diagnosis>> diagnosesByVisitId = new HashMap<>();
+        if (!visitIds.isEmpty()) {
+            Map<String, Object> parameters = new HashMap<>();
+            parameters.put("diagnosisOrderConcept", emrApiProperties.getDiagnosisMetadata().getDiagnosisOrderConcept());
+            List<Integer> allVisitIds = new ArrayList<>(visitIds);
+            for (int i = 0; i < allVisitIds.size(); i += VISIT_CHUNK_SIZE) {
+                parameters.put("visitIds", allVisitIds.subList(i, Math.min(i + VISIT_CHUNK_SIZE, allVisitIds.size())));
+                // fetching the members repeats each group once per member
+                List<Obs> obsGroups = new ArrayList<>(new LinkedHashSet<>(
+                        emrApiDAO.executeHqlFromResource("hql/visits_diagnoses.hql", parameters, Obs.class)));
+                for (Diagnosis diagnosis : getDiagnosesFromObsGroups(obsGroups)) {
+                    Integer visitId = diagnosis.getExistingObs().getEncounter().getVisit().getVisitId();
+                    List<org.openmrs.Diagnosis> visitDiagnoses = diagnosesByVisitId.get(visitId);
+                    if (visitDiagnoses == null) {
+                        visitDiagnoses = new ArrayList<>();
+                        diagnosesByVisitId.put(visitId, visitDiagnoses);
+                    }
+                    visitDiagnoses.add(DiagnosisUtils.convert(diagnosis));
+                }
+            }
         }
-        for (List<org.openmrs.Diagnosis> diagnosisList : ret.values()) {
+
+        Map<Visit, List<org.openmrs.Diagnosis>> ret = new HashMap<>();
+        for (Visit visit : visits) {
+            List<org.openmrs.Diagnosis> diagnosisList = visit.getVisitId() == null ? null : diagnosesByVisitId.get(visit.getVisitId());
+            if (diagnosisList == null) {
+                diagnosisList = new ArrayList<>();
+            }
             diagnosisList.sort((a, b) -> {
                 int ret1 = a.getEncounter().getEncounterDatetime().compareTo(b.getEncounter().getEncounterDatetime()) * -1;
                 if (ret1 == 0) {
@@ -256,6 +464,7 @@ public class ObsGroupDiagnosisService {
                 }
                 return ret1;
             });
+            ret.put(visit, diagnosisList);
         }
         return ret;
     }
@@ -275,4 +484,54 @@ public class ObsGroupDiagnosisService {
             }
         }
     }
+
+    /**
+     * The ids of the concepts that are not to be returned as diagnoses, sorted so that checking a concept needs no
+     * allocation, along with the ids of the suppressed concepts and non-diagnosis concept sets they came from, which
+     * the queries filter by
+     */
+    private static class SuppressedDiagnosisConcepts {
+
+        private final int[] conceptIds;
+
+        private final List<Integer> suppressedConceptIds = new ArrayList<>();
+
+        private final List<Integer> nonDiagnosisConceptSetIds = new ArrayList<>();
+
+        private final long conceptVersion;
+
+        private final long globalPropertyVersion;
+
+        SuppressedDiagnosisConcepts(Collection<Concept> suppressedConcepts, Collection<Concept> nonDiagnosisConceptSets,
+                                    long conceptVersion, long globalPropertyVersion) {
+            Set<Concept> concepts = new HashSet<>(suppressedConcepts);
+            for (Concept conceptSet : nonDiagnosisConceptSets) {
+                concepts.addAll(conceptSet.getSetMembers());
+                if (conceptSet.getConceptId() != null) {
+                    nonDiagnosisConceptSetIds.add(conceptSet.getConceptId());
+                }
+            }
+            for (Concept concept : suppressedConcepts) {
+                if (concept.getConceptId() != null) {
+                    suppressedConceptIds.add(concept.getConceptId());
+                }
+            }
+            int[] ids = new int[concepts.size()];
+            int count = 0;
+            for (Concept concept : concepts) {
+                if (concept.getConceptId() != null) {
+                    ids[count++] = concept.getConceptId();
+                }
+            }
+            this.conceptIds = Arrays.copyOf(ids, count);
+            Arrays.sort(this.conceptIds);
+            this.conceptVersion = conceptVersion;
+            this.globalPropertyVersion = globalPropertyVersion;
+        }
+
+        boolean contains(Concept concept) {
+            return concept != null && concept.getConceptId() != null
+                    && Arrays.binarySearch(conceptIds, concept.getConceptId()) >= 0;
+        }
+    }
 }
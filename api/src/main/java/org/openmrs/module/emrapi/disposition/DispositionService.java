@@ -2,10 +2,13 @@ package org.openmrs.module.emrapi.disposition;
 
 import org.openmrs.EncounterType;
 import org.openmrs.Obs;
+import org.openmrs.Visit;
 import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 public interface DispositionService {
 
@@ -25,13 +28,21 @@ public interface DispositionService {
     boolean dispositionsSupported();
 
     /**
-     * Fetch a copy of the Disposition Descriptor, which describes the concepts necessary (and optional,
-     * like admission location, transfer location, and date of death) for recording a Disposition concept set
+     * Fetch the Disposition Descriptor, which describes the concepts necessary (and optional,
+     * like admission location, transfer location, and date of death) for recording a Disposition concept set. The descriptor is
+     * shared between callers, so it should not be modified
      *
      * @return dispositionDescriptor
      */
     DispositionDescriptor getDispositionDescriptor();
 
+    /**
+     * Discards the resolved Disposition Descriptor, and the resolved concepts of the dispositions, so that they are
+     * resolved again on next use. This happens automatically when concepts or their mappings are changed through
+     * Hibernate; call this after changing them by other means (e.g. directly in the database)
+     */
+    void refreshDispositionDescriptor();
+
     /**
      * Gets all the currently configured dispositions
      *
@@ -94,5 +105,24 @@ public interface DispositionService {
      */
     Disposition getDispositionFromObsGroup(Obs obsGroup);
 
+    /**
+     * Gets the most recent disposition of each of the given visits with a single query (per 1000 visits), rather
+     * than by loading the encounters and obs of each visit. As with {@link VisitDomainWrapper#getMostRecentDisposition()},
+     * this is the disposition of the first top-level disposition obs group of the latest non-voided encounter of the
+     * visit that has one. Visits that have not been saved yet are ignored.
+     *
+     * @param visits
+     * @return the most recent disposition by visit id; visits without a disposition are not in the map
+     */
+    Map<Integer, Disposition> getMostRecentDispositions(Collection<Visit> visits);
+
+    /**
+     * Same as {@link #getMostRecentDispositions(Collection)}, for callers that only have the ids of the visits
+     *
+     * @param visitIds
+     * @return the most recent disposition by visit id; visits without a disposition are not in the map
+     */
+    Map<Integer, Disposition> getMostRecentDispositionsByVisitId(Collection<Integer> visitIds);
+
 
 }
@@ -3,11 +3,15 @@ package org.openmrs.module.emrapi.disposition;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.type.TypeReference;
 import org.openmrs.CareSetting;
+import org.openmrs.Concept;
 import org.openmrs.EncounterType;
 import org.openmrs.Obs;
+import org.openmrs.Visit;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.impl.BaseOpenmrsService;
+import org.openmrs.module.emrapi.concept.ConceptChangeTracker;
 import org.openmrs.module.emrapi.concept.EmrConceptService;
+import org.openmrs.module.emrapi.db.EmrApiDAO;
 import org.openmrs.module.emrapi.descriptor.MissingConceptException;
 import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
 import org.openmrs.util.OpenmrsUtil;
@@ -15,23 +19,46 @@ import org.springframework.core.io.Resource;
 import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class DispositionServiceImpl extends BaseOpenmrsService implements DispositionService  {
 
+    private static final int MOST_RECENT_DISPOSITION_VISIT_CHUNK_SIZE = 1000;
+
     private ConceptService conceptService;
 
     private EmrConceptService emrConceptService;
 
+    private EmrApiDAO emrApiDAO;
+
     private ObjectMapper objectMapper = new ObjectMapper();
 
     private PathMatchingResourcePatternResolver resourceResolver = new PathMatchingResourcePatternResolver();
 
     // can be overridden by Initializer starting with Iniz version 2.8.0
-    private String dispositionConfig = "dispositionConfig.json";
+    private volatile String dispositionConfig = "dispositionConfig.json";
+
+    private volatile LoadedDispositionConfig loadedDispositionConfig;
+
+    private ConceptChangeTracker conceptChangeTracker = new ConceptChangeTracker();
+
+    private volatile DispositionConceptIndex dispositionConceptIndex;
+
+    private volatile ResolvedDispositionDescriptor resolvedDispositionDescriptor;
 
     public DispositionServiceImpl(ConceptService conceptService, EmrConceptService emrConceptService) {
         this.conceptService = conceptService;
@@ -51,107 +78,84 @@ public class DispositionServiceImpl extends BaseOpenmrsService implements Dispos
         return true;
     }
 
+    /**
+     * Cached until concepts change, see {@link ConceptChangeTracker}
+     */
     @Override
     public DispositionDescriptor getDispositionDescriptor() {
         // TODO handle this better--this property is only used to allow use to inject a mock disposition descriptor
         if (dispositionDescriptor != null) {
             return dispositionDescriptor;
         }
-        return new DispositionDescriptor(conceptService);
+        ResolvedDispositionDescriptor resolved = resolvedDispositionDescriptor;
+        long conceptVersion = conceptChangeTracker.getVersion();
+        if (resolved == null || resolved.conceptVersion != conceptVersion) {
+            resolved = new ResolvedDispositionDescriptor(new DispositionDescriptor(conceptService), conceptVersion);
+            resolvedDispositionDescriptor = resolved;
+        }
+        return resolved.descriptor;
     }
 
+    @Override
+    public void refreshDispositionDescriptor() {
+        resolvedDispositionDescriptor = null;
+        dispositionConceptIndex = null;
+    }
+
+    /**
+     * @return the configured dispositions, as an unmodifiable list that is shared between callers
+     */
     @Override
     public List<Disposition> getDispositions() {
-        return getDispositionsFrom(dispositionConfig);
+        return getLoadedDispositionConfig().dispositions;
     }
 
     @Override
     @Transactional(readOnly = true)
     public Disposition getDispositionByUniqueId(String uniqueId) {
-        for (Disposition candidate : getDispositions()) {
-            if (candidate.getUuid().equals(uniqueId)) {
-                return candidate;
-            }
-        }
-        return null;
+        return getLoadedDispositionConfig().dispositionsByUuid.get(uniqueId);
     }
 
     @Override
     public List<Disposition> getDispositionsByType(DispositionType dispositionType) {
-        List<Disposition> dispositions = new ArrayList<Disposition>();
-        for (Disposition candidate : getDispositions()) {
-            if (dispositionType.equals(candidate.getType())) {  // null-safe since type can be null
-                dispositions.add(candidate);
-            }
-        }
-        return dispositions;
+        List<Disposition> dispositions = getLoadedDispositionConfig().dispositionsByType.get(dispositionType);
+        return dispositions == null ? new ArrayList<Disposition>() : new ArrayList<Disposition>(dispositions);
     }
 
     @Override
     public List<Disposition> getValidDispositions(VisitDomainWrapper visitDomainWrapper) {
-        // just return all dispositions if the visit isn't active
-        if (visitDomainWrapper == null || !visitDomainWrapper.isActive()) {
-            return getDispositions();
-        }
-        else {
-            List<Disposition> dispositions = new ArrayList<Disposition>();
-
-            boolean isAdmitted = visitDomainWrapper.isAdmitted();
-
-            for (Disposition candidate : getDispositions()) {
-                List<CareSetting.CareSettingType> careSettingTypes = candidate.getCareSettingTypes();
-
-                if (careSettingTypes == null
-                        || (isAdmitted && careSettingTypes.contains(CareSetting.CareSettingType.INPATIENT))
-                        || (!isAdmitted && careSettingTypes.contains(CareSetting.CareSettingType.OUTPATIENT)) )  {
-                    dispositions.add(candidate);
-                }
-            }
-            return dispositions;
-        }
+        return getValidDispositions(visitDomainWrapper, null);
     }
 
+    /**
+     * The dispositions valid for each care setting and encounter type are worked out once per loaded config, so
+     * this only costs checking whether the visit is admitted, and a map lookup
+     */
     @Override
     public List<Disposition> getValidDispositions(VisitDomainWrapper visitDomainWrapper,
             EncounterType encounterType) {
 
-        List<Disposition> dispositions = getValidDispositions(visitDomainWrapper);
-
-        if (encounterType != null) {
-            String encounterTypeId = encounterType.getEncounterTypeId() == null ? null : encounterType.getEncounterTypeId().toString();
-            String encounterTypeUuid = encounterType.getUuid();
-            String encounterTypeName = encounterType.getName();
-
-            for (Iterator<Disposition> it = dispositions.iterator(); it.hasNext(); ) {
-                Disposition candidate = it.next();
+        LoadedDispositionConfig config = getLoadedDispositionConfig();
+        if (config.dispositions == null) {
+            return null;
+        }
 
-                List<String> encounterTypes = candidate.getEncounterTypes();
-                List<String> excludedEncounterTypes = candidate.getExcludedEncounterTypes();
-                if (encounterTypes != null && !((encounterTypeId != null && encounterTypes.contains(encounterTypeId)) ||
-                        (encounterTypeUuid != null && encounterTypes.contains(encounterTypeUuid)) ||
-                        (encounterTypeName != null && encounterTypes.contains(encounterTypeName)))) {
-                    it.remove();
-                }
-                else if (excludedEncounterTypes != null && ((encounterTypeId != null && excludedEncounterTypes.contains(encounterTypeId)) ||
-                        (encounterTypeUuid != null && excludedEncounterTypes.contains(encounterTypeUuid)) ||
-                        (encounterTypeName != null && excludedEncounterTypes.contains(encounterTypeName)))) {
-                    it.remove();
-                }
-            }
+        // all care settings are valid if the visit isn't active
+        CareSetting.CareSettingType careSettingType = null;
+        if (visitDomainWrapper != null && visitDomainWrapper.isActive()) {
+            careSettingType = visitDomainWrapper.isAdmitted() ? CareSetting.CareSettingType.INPATIENT : CareSetting.CareSettingType.OUTPATIENT;
         }
 
-        return dispositions;
+        return new ArrayList<Disposition>(config.getValidDispositions(careSettingType, encounterType));
     }
 
     @Override
     @Transactional(readOnly = true)
     public Disposition getDispositionFromObs(Obs obs)  {
-        for (Disposition candidate : getDispositions()) {
-            if (emrConceptService.getConcept(candidate.getConceptCode()).equals(obs.getValueCoded())) {
-                return candidate;
-            }
+        if (obs.getValueCoded() == null) {
+            return null;
         }
-        return null;
+        return getDispositionConceptIndex().getDisposition(obs.getValueCoded());
     }
 
     @Override
@@ -166,23 +170,102 @@ public class DispositionServiceImpl extends BaseOpenmrsService implements Dispos
     }
 
     @Override
-    public void setDispositionConfig(String dispositionConfig) {
-        this.dispositionConfig = dispositionConfig;
+    @Transactional(readOnly = true)
+    public Map<Integer, Disposition> getMostRecentDispositions(Collection<Visit> visits) {
+        List<Integer> visitIds = new ArrayList<Integer>();
+        for (Visit visit : visits) {
+            if (visit.getVisitId() != null) {
+                visitIds.add(visit.getVisitId());
+            }
+        }
+        return getMostRecentDispositionsByVisitId(visitIds);
     }
 
-    private List<Disposition> getDispositionsFrom(String configFile)  {
+    @Override
+    @Transactional(readOnly = true)
+    public Map<Integer, Disposition> getMostRecentDispositionsByVisitId(Collection<Integer> visitIds) {
+        Map<Integer, Disposition> mostRecentDispositions = new HashMap<Integer, Disposition>();
+        if (visitIds == null || visitIds.isEmpty() || !dispositionsSupported()) {
+            return mostRecentDispositions;
+        }
+        DispositionDescriptor descriptor = getDispositionDescriptor();
+        DispositionConceptIndex index = getDispositionConceptIndex();
+
+        Map<String, Object> parameters = new HashMap<String, Object>();
+        parameters.put("dispositionSetConcept", descriptor.getDispositionSetConcept());
+        parameters.put("dispositionConcept", descriptor.getDispositionConcept());
+
+        List<Integer> allVisitIds = new ArrayList<Integer>(new LinkedHashSet<Integer>(visitIds));
+        Set<Integer> visitsFound = new HashSet<Integer>();
+        for (int i = 0; i < allVisitIds.size(); i += MOST_RECENT_DISPOSITION_VISIT_CHUNK_SIZE) {
+            parameters.put("visitIds", allVisitIds.subList(i, Math.min(i + MOST_RECENT_DISPOSITION_VISIT_CHUNK_SIZE, allVisitIds.size())));
+            for (Object[] row : emrApiDAO.executeHqlFromResource("hql/visit_latest_dispositions.hql", parameters, Object[].class)) {
+                Integer visitId = (Integer) row[0];
+                // rows are ordered most recent first within each visit, and only the first one counts, even if it
+                // has no disposition in it (which is what getting it from the obs group would return)
+                if (visitsFound.add(visitId) && row[1] != null) {
+                    Disposition disposition = index.getDisposition((Integer) row[1]);
+                    if (disposition != null) {
+                        mostRecentDispositions.put(visitId, disposition);
+                    }
+                }
+            }
+        }
+        return mostRecentDispositions;
+    }
 
-        try {
+    public void setEmrApiDAO(EmrApiDAO emrApiDAO) {
+        this.emrApiDAO = emrApiDAO;
+    }
 
-            String path;
+    public void setConceptChangeTracker(ConceptChangeTracker conceptChangeTracker) {
+        this.conceptChangeTracker = conceptChangeTracker;
+    }
 
-            if (configFile.indexOf("file:") == -1) {
-                path  = "classpath*:/" + configFile;
-            }
-            else {
-                path = "file:" + OpenmrsUtil.getApplicationDataDirectory() + "/" + configFile.replace("file:","");
+    @Override
+    public void setDispositionConfig(String dispositionConfig) {
+        this.dispositionConfig = dispositionConfig;
+        this.loadedDispositionConfig = null;
+    }
+
+    /**
+     * The disposition config is parsed once, and then only re-parsed if the config is changed via
+     * {@link #setDispositionConfig(String)} or, for a config in the application data directory, if the modification
+     * time of the file changes
+     */
+    private LoadedDispositionConfig getLoadedDispositionConfig() {
+        String configFile = dispositionConfig;
+        LoadedDispositionConfig loaded = loadedDispositionConfig;
+        if (loaded == null || !loaded.isCurrent(configFile)) {
+            synchronized (this) {
+                loaded = loadedDispositionConfig;
+                if (loaded == null || !loaded.isCurrent(configFile)) {
+                    loaded = loadDispositionConfig(configFile);
+                    loadedDispositionConfig = loaded;
+                }
             }
+        }
+        return loaded;
+    }
+
+    private LoadedDispositionConfig loadDispositionConfig(String configFile) {
+        File file = null;
+        String path;
+        if (configFile.indexOf("file:") == -1) {
+            path = "classpath*:/" + configFile;
+        }
+        else {
+            file = new File(OpenmrsUtil.getApplicationDataDirectory(), configFile.replace("file:", ""));
+            path = "file:" + file.getPath();
+        }
+        // read the modification time before the file, so that a change while reading it causes it to be read again
+        long lastModified = file == null ? 0 : file.lastModified();
+        return new LoadedDispositionConfig(configFile, file, lastModified, getDispositionsFrom(path, configFile));
+    }
+
+    private List<Disposition> getDispositionsFrom(String path, String configFile)  {
 
+        try {
             Resource[] dispositionDefinitions = resourceResolver.getResources(path);
             for (Resource dispositionDefinition : dispositionDefinitions) {
                 return objectMapper.readValue(dispositionDefinition.getInputStream(), new TypeReference<List<Disposition>>() {});
@@ -195,10 +278,214 @@ public class DispositionServiceImpl extends BaseOpenmrsService implements Dispos
 
     }
 
+    /**
+     * Cached per loaded config until concepts change, see {@link ConceptChangeTracker}
+     */
+    private DispositionConceptIndex getDispositionConceptIndex() {
+        LoadedDispositionConfig config = getLoadedDispositionConfig();
+        DispositionConceptIndex index = dispositionConceptIndex;
+        if (index == null || index.config != config || index.conceptVersion != conceptChangeTracker.getVersion()) {
+            index = new DispositionConceptIndex(config, conceptChangeTracker.getVersion());
+            if (config.dispositions != null) {
+                for (Disposition disposition : config.dispositions) {
+                    index.add(emrConceptService.getConcept(disposition.getConceptCode()), disposition);
+                }
+            }
+            dispositionConceptIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * The parsed dispositions of a disposition config, with indexes; never modified once built
+     */
+    private static class LoadedDispositionConfig {
+
+        private final String configFile;
+
+        private final File file;
+
+        private final long lastModified;
+
+        private final List<Disposition> dispositions;
+
+        private final Map<String, Disposition> dispositionsByUuid = new HashMap<String, Disposition>();
+
+        private final Map<DispositionType, List<Disposition>> dispositionsByType = new EnumMap<DispositionType, List<Disposition>>(DispositionType.class);
+
+        private final ConcurrentMap<ValidDispositionsKey, List<Disposition>> validDispositions = new ConcurrentHashMap<ValidDispositionsKey, List<Disposition>>();
+
+        LoadedDispositionConfig(String configFile, File file, long lastModified, List<Disposition> dispositions) {
+            this.configFile = configFile;
+            this.file = file;
+            this.lastModified = lastModified;
+            this.dispositions = dispositions == null ? null : Collections.unmodifiableList(dispositions);
+            if (dispositions != null) {
+                for (Disposition disposition : dispositions) {
+                    if (!dispositionsByUuid.containsKey(disposition.getUuid())) {
+                        dispositionsByUuid.put(disposition.getUuid(), disposition);
+                    }
+                    if (disposition.getType() != null) {
+                        List<Disposition> ofType = dispositionsByType.get(disposition.getType());
+                        if (ofType == null) {
+                            ofType = new ArrayList<Disposition>();
+                            dispositionsByType.put(disposition.getType(), ofType);
+                        }
+                        ofType.add(disposition);
+                    }
+                }
+            }
+        }
+
+        boolean isCurrent(String configFile) {
+            return this.configFile.equals(configFile) && (file == null || file.lastModified() == lastModified);
+        }
+
+        /**
+         * @param careSettingType null if dispositions for any care setting are valid
+         * @param encounterType null if dispositions for any encounter type are valid
+         * @return the valid dispositions, in config order, computed the first time they are asked for
+         */
+        List<Disposition> getValidDispositions(CareSetting.CareSettingType careSettingType, EncounterType encounterType) {
+            ValidDispositionsKey key = new ValidDispositionsKey(careSettingType, encounterType);
+            List<Disposition> valid = validDispositions.get(key);
+            if (valid == null) {
+                valid = new ArrayList<Disposition>();
+                for (Disposition candidate : dispositions) {
+                    if (isValidForCareSetting(candidate, careSettingType) && isValidForEncounterType(candidate, key)) {
+                        valid.add(candidate);
+                    }
+                }
+                valid = Collections.unmodifiableList(valid);
+                validDispositions.putIfAbsent(key, valid);
+            }
+            return valid;
+        }
+
+        private boolean isValidForCareSetting(Disposition candidate, CareSetting.CareSettingType careSettingType) {
+            List<CareSetting.CareSettingType> careSettingTypes = candidate.getCareSettingTypes();
+            return careSettingType == null || careSettingTypes == null || careSettingTypes.contains(careSettingType);
+        }
+
+        private boolean isValidForEncounterType(Disposition candidate, ValidDispositionsKey key) {
+            if (!key.hasEncounterType) {
+                return true;
+            }
+            List<String> encounterTypes = candidate.getEncounterTypes();
+            List<String> excludedEncounterTypes = candidate.getExcludedEncounterTypes();
+            if (encounterTypes != null && !key.matchesAnyEncounterType(encounterTypes)) {
+                return false;
+            }
+            return excludedEncounterTypes == null || !key.matchesAnyEncounterType(excludedEncounterTypes);
+        }
+    }
+
+    /**
+     * Identifies a care setting and an encounter type, by every property a disposition config may refer to it by, so
+     * that renaming an encounter type gives a new key
+     */
+    private static class ValidDispositionsKey {
+
+        private final CareSetting.CareSettingType careSettingType;
+
+        private final boolean hasEncounterType;
+
+        private final String encounterTypeId;
+
+        private final String encounterTypeUuid;
+
+        private final String encounterTypeName;
+
+        ValidDispositionsKey(CareSetting.CareSettingType careSettingType, EncounterType encounterType) {
+            this.careSettingType = careSettingType;
+            this.hasEncounterType = encounterType != null;
+            this.encounterTypeId = encounterType == null || encounterType.getEncounterTypeId() == null ? null : encounterType.getEncounterTypeId().toString();
+            this.encounterTypeUuid = encounterType == null ? null : encounterType.getUuid();
+            this.encounterTypeName = encounterType == null ? null : encounterType.getName();
+        }
+
+        boolean matchesAnyEncounterType(List<String> encounterTypes) {
+            return (encounterTypeId != null && encounterTypes.contains(encounterTypeId)) ||
+                    (encounterTypeUuid != null && encounterTypes.contains(encounterTypeUuid)) ||
+                    (encounterTypeName != null && encounterTypes.contains(encounterTypeName));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            ValidDispositionsKey that = (ValidDispositionsKey) o;
+            return careSettingType == that.careSettingType && hasEncounterType == that.hasEncounterType
+                    && OpenmrsUtil.nullSafeEquals(encounterTypeId, that.encounterTypeId)
+                    && OpenmrsUtil.nullSafeEquals(encounterTypeUuid, that.encounterTypeUuid)
+                    && OpenmrsUtil.nullSafeEquals(encounterTypeName, that.encounterTypeName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { careSettingType, hasEncounterType, encounterTypeId, encounterTypeUuid, encounterTypeName });
+        }
+    }
+
     // TODO handle this better--this property is only used to allow use to inject a mock disposition descriptor
     private DispositionDescriptor dispositionDescriptor;
 
     protected void setDispositionDescriptor(DispositionDescriptor dispositionDescriptor) {
         this.dispositionDescriptor = dispositionDescriptor;
     }
+
+    /**
+     * The dispositions of a loaded config, keyed by their resolved concept; where several dispositions share a
+     * concept, the first one in the config wins
+     */
+    private static class DispositionConceptIndex {
+
+        private final LoadedDispositionConfig config;
+
+        private final long conceptVersion;
+
+        private final Map<Integer, Disposition> dispositionsByConceptId = new HashMap<Integer, Disposition>();
+
+        // concepts that have not been saved yet have no id
+        private final Map<String, Disposition> dispositionsByConceptUuid = new HashMap<String, Disposition>();
+
+        DispositionConceptIndex(LoadedDispositionConfig config, long conceptVersion) {
+            this.config = config;
+            this.conceptVersion = conceptVersion;
+        }
+
+        void add(Concept concept, Disposition disposition) {
+            if (concept != null) {
+                if (concept.getConceptId() != null && !dispositionsByConceptId.containsKey(concept.getConceptId())) {
+                    dispositionsByConceptId.put(concept.getConceptId(), disposition);
+                }
+                if (!dispositionsByConceptUuid.containsKey(concept.getUuid())) {
+                    dispositionsByConceptUuid.put(concept.getUuid(), disposition);
+                }
+            }
+        }
+
+        Disposition getDisposition(Concept concept) {
+            if (concept.getConceptId() != null) {
+                return dispositionsByConceptId.get(concept.getConceptId());
+            }
+            return dispositionsByConceptUuid.get(concept.getUuid());
+        }
+
+        Disposition getDisposition(Integer conceptId) {
+            return dispositionsByConceptId.get(conceptId);
+        }
+    }
+
+    private static class ResolvedDispositionDescriptor {
+
+        private final DispositionDescriptor descriptor;
+
+        private final long conceptVersion;
+
+        ResolvedDispositionDescriptor(DispositionDescriptor descriptor, long conceptVersion) {
+            this.descriptor = descriptor;
+            this.conceptVersion = conceptVersion;
+        }
+    }
 }
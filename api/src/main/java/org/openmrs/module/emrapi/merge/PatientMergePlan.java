@@ -0,0 +1,54 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.merge;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import org.openmrs.Patient;
+import org.openmrs.Visit;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The visit merges that {@link org.openmrs.module.emrapi.adt.AdtService#mergePatients(Patient, Patient)} would perform,
+ * in the order it would perform them
+ */
+@Data
+public class PatientMergePlan {
+
+    private Patient preferred;
+    private Patient notPreferred;
+    private List<VisitMerge> visitMerges = new ArrayList<>();
+
+    public PatientMergePlan(Patient preferred, Patient notPreferred) {
+        this.preferred = preferred;
+        this.notPreferred = notPreferred;
+    }
+
+    /**
+     * Represents merging the notPreferred visit into the preferred visit, after which the preferred visit spans the
+     * given start and stop datetimes
+     */
+    @Data
+    @AllArgsConstructor
+    public static class VisitMerge {
+        private Visit preferred;
+        private Visit notPreferred;
+        private Date startDatetime;
+        private Date stopDatetime;
+    }
+}
@@ -88,6 +88,10 @@ public class VisitDomainWrapper implements DomainWrapper {
 
     private Visit visit;
 
+    private Disposition mostRecentDisposition;
+
+    private boolean mostRecentDispositionLoaded = false;
+
     public VisitDomainWrapper(){
     }
 
@@ -280,7 +284,20 @@ public class VisitDomainWrapper implements DomainWrapper {
     // also, if encounter has multiple disposition (is this possible?) it just returns the first one it finds
     public Disposition getMostRecentDisposition() {
 
+        if (mostRecentDispositionLoaded) {
+            return mostRecentDisposition;
+        }
+
         if (dispositionService.dispositionsSupported()) {   // prevents against stace trace if dispositions are supported
+
+            // a saved visit can be looked up with a single query, rather than by loading all of its encounters and obs.
+            // The query reads what is in the database, so disposition obs that have been added to the visit's (saved)
+            // encounters are only seen once the session has been flushed; it is not flushed by a read-only transaction.
+            if (isSavedWithSavedEncounters()) {
+                return dispositionService.getMostRecentDispositionsByVisitId(
+                        Collections.singleton(visit.getVisitId())).get(visit.getVisitId());
+            }
+
             DispositionDescriptor dispositionDescriptor = dispositionService.getDispositionDescriptor();
 
             for (Encounter encounter : getSortedEncounters(SortOrder.MOST_RECENT_FIRST)) {
@@ -295,6 +312,31 @@ public class VisitDomainWrapper implements DomainWrapper {
         return null;
     }
 
+    /**
+     * Sets the most recent disposition of this visit, when it has already been looked up along with those of other
+     * visits (see {@link DispositionService#getMostRecentDispositions(java.util.Collection)}), so that
+     * {@link #getMostRecentDisposition()} returns it rather than looking it up. It is kept for the life of this wrapper,
+     * so it is only meant for short-lived wrappers, such as those built for a single list or batch of visits
+     *
+     * @param mostRecentDisposition the most recent disposition, or null if the visit has none
+     */
+    public void setMostRecentDisposition(Disposition mostRecentDisposition) {
+        this.mostRecentDisposition = mostRecentDisposition;
+        this.mostRecentDispositionLoaded = true;
+    }
+
+    private boolean isSavedWithSavedEncounters() {
+        if (visit.getVisitId() == null || visit.getEncounters() == null) {
+            return false;
+        }
+        for (Encounter encounter : visit.getEncounters()) {
+            if (encounter.getEncounterId() == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Finds the most recent encounter in the visit with a disposition of a specific type, and retrieves
      * all diagnoses stored on that encounter. Can be used to prepopulate an admission, transfer, or discharge note;
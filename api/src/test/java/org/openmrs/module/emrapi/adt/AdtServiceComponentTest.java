@@ -26,10 +26,14 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.openmrs.Encounter;
 import org.openmrs.EncounterRole;
+import org.openmrs.EncounterType;
 import org.openmrs.Location;
 import org.openmrs.LocationTag;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
+import org.openmrs.PersonAttribute;
+import org.openmrs.PersonAttributeType;
+import org.openmrs.Privilege;
 import org.openmrs.Provider;
 import org.openmrs.Visit;
 import org.openmrs.api.AdministrationService;
@@ -42,6 +46,7 @@ import org.openmrs.api.context.Context;
 import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.concept.EmrConceptService;
+import org.openmrs.module.emrapi.disposition.Disposition;
 import org.openmrs.module.emrapi.disposition.DispositionService;
 import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
 import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
@@ -50,6 +55,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -73,6 +79,7 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.openmrs.module.emrapi.TestUtils.hasProviders;
 import static org.openmrs.module.emrapi.adt.AdtAction.Type.ADMISSION;
 import static org.openmrs.module.emrapi.adt.AdtAction.Type.DISCHARGE;
+import static org.openmrs.module.emrapi.adt.AdtAction.Type.TRANSFER;
 
 public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
 
@@ -419,6 +426,32 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
     }
 
 
+    @Test
+    public void test_shouldCloseActiveVisitsInBatches() throws Exception {
+
+        ContextSensitiveMetadataTestUtils.setupDispositionDescriptor(conceptService, dispositionService);
+        ContextSensitiveMetadataTestUtils.setupAdmissionDecisionConcept(conceptService, emrApiProperties);
+        ContextSensitiveMetadataTestUtils.setupSupportsVisitLocationTag(locationService);
+
+        Location location = locationService.getLocation(1);
+        location.addTag(emrApiProperties.getSupportsVisitsLocationTag());
+        locationService.saveLocation(location);
+
+        List<Integer> candidates = service.getInactiveVisitCandidateIds(Collections.singletonList(location), new Date());
+        assertThat(candidates.contains(1), is(true));
+        assertThat(candidates.contains(6), is(false));  // voided
+
+        service.closeInactiveVisits(1);
+
+        // only visits that have a location that is tagged "Visit Location" will be closed
+        assertThat(visitService.getVisit(1).getStopDatetime(), notNullValue());
+        assertThat(visitService.getVisit(2).getStopDatetime(), nullValue());
+        assertThat(visitService.getVisit(3).getStopDatetime(), nullValue());
+        assertThat(visitService.getVisit(4).getStopDatetime(), nullValue());
+        assertThat(visitService.getVisit(5).getStopDatetime(), nullValue());
+        assertThat(visitService.getVisit(6).getStopDatetime(), nullValue());
+    }
+
     @Test
     public void test_shouldNotCloseVisitIfMostRecentDispositionKeepsVisitOpen() throws Exception {
 
@@ -472,6 +505,11 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
         activeVisit = service.getActiveVisit(patient, location);
         assertNotNull(activeVisit);
 
+        // the set-based mode should also leave it open
+        service.closeInactiveVisits(10);
+        activeVisit = service.getActiveVisit(patient, location);
+        assertNotNull(activeVisit);
+
         administrationService.setGlobalProperty(EmrApiConstants.GP_INPATIENT_VISIT_EXPIRE_HOURS, "15");
         service.closeInactiveVisits();
         activeVisit = service.getActiveVisit(patient, location);
@@ -483,6 +521,56 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
         assertNull(activeVisit);
     }
 
+    @Test
+    public void test_shouldGetMostRecentDispositionsOfManyVisitsAtOnce() throws Exception {
+
+        ContextSensitiveMetadataTestUtils.setupDispositionDescriptor(conceptService, dispositionService);
+
+        Patient patient = patientService.getPatient(7);
+        Location location = locationService.getLocation(2);
+
+        Visit visitWithDispositions = new Visit();
+        visitWithDispositions.setStartDatetime(DateUtils.addHours(new Date(), -14));
+        visitWithDispositions.setPatient(patient);
+        visitWithDispositions.setLocation(location);
+        visitWithDispositions.setVisitType(emrApiProperties.getAtFacilityVisitType());
+        visitWithDispositions.addEncounter(saveEncounterWithDisposition(patient, DateUtils.addHours(new Date(), -14), "Admit to hospital"));
+        visitWithDispositions.addEncounter(saveEncounterWithDisposition(patient, DateUtils.addHours(new Date(), -2), "Discharged"));
+        visitService.saveVisit(visitWithDispositions);
+
+        Visit visitWithoutDisposition = new Visit();
+        visitWithoutDisposition.setStartDatetime(DateUtils.addHours(new Date(), -1));
+        visitWithoutDisposition.setPatient(patient);
+        visitWithoutDisposition.setLocation(location);
+        visitWithoutDisposition.setVisitType(emrApiProperties.getAtFacilityVisitType());
+        visitService.saveVisit(visitWithoutDisposition);
+
+        Map<Integer, Disposition> mostRecentDispositions = dispositionService.getMostRecentDispositions(
+                Arrays.asList(visitWithDispositions, visitWithoutDisposition));
+
+        assertThat(mostRecentDispositions.size(), is(1));
+        assertThat(mostRecentDispositions.get(visitWithDispositions.getVisitId()).getUuid(), is("12129630-b698-11e2-9e96-0800200c9a66"));
+        assertThat(service.wrap(visitWithDispositions).getMostRecentDisposition().getUuid(), is("12129630-b698-11e2-9e96-0800200c9a66"));
+        assertNull(service.wrap(visitWithoutDisposition).getMostRecentDisposition());
+    }
+
+    private Encounter saveEncounterWithDisposition(Patient patient, Date encounterDatetime, String dispositionCode) {
+        Encounter encounter = new Encounter();
+        encounter.setPatient(patient);
+        encounter.setEncounterType(encounterService.getEncounterType(1));
+        encounter.setEncounterDatetime(encounterDatetime);
+
+        Obs dispositionObsGroup = new Obs();
+        dispositionObsGroup.setConcept(dispositionService.getDispositionDescriptor().getDispositionSetConcept());
+        Obs dispositionObs = new Obs();
+        dispositionObs.setConcept(dispositionService.getDispositionDescriptor().getDispositionConcept());
+        dispositionObs.setValueCoded(emrConceptService.getConcept(EmrApiConstants.EMR_CONCEPT_SOURCE_NAME + ":" + dispositionCode));
+        dispositionObsGroup.addGroupMember(dispositionObs);
+
+        encounter.addObs(dispositionObsGroup);
+        return encounterService.saveEncounter(encounter);
+    }
+
     @Test
     public void test_shouldNotCloseVisitOpenedInDifferentLocation() throws Exception {
         executeDataSet("visitLocationDataSetup.xml");
@@ -491,6 +579,150 @@ public class AdtServiceComponentTest extends BaseModuleContextSensitiveTest {
         assertNull(visitService.getVisit(1015).getStopDatetime());
     }
 
+    @Test
+    public void test_getActiveVisitsShouldExcludeTestPatientsAndSupportPaging() throws Exception {
+        Location location = locationService.getLocation(1);
+        Visit visit = visitService.getVisit(1);
+
+        PersonAttributeType testPatientAttributeType = createTestPatientAttributeType();
+
+        List<Integer> allVisitIds = service.getActiveVisitIds(location, null, null);
+        assertTrue(allVisitIds.contains(visit.getVisitId()));
+        assertThat(service.getCountOfActiveVisits(location), is((long) allVisitIds.size()));
+        assertThat(service.getActiveVisits(location).size(), is(allVisitIds.size()));
+        assertThat(service.getActiveVisitIds(location, 0, 1), is(allVisitIds.subList(0, 1)));
+        assertThat(service.getActiveVisits(location, 0, 1).get(0).getVisitId(), is(allVisitIds.get(0)));
+
+        Patient patient = visit.getPatient();
+        patient.addAttribute(new PersonAttribute(testPatientAttributeType, "true"));
+        patientService.savePatient(patient);
+
+        List<Integer> realVisitIds = service.getActiveVisitIds(location, null, null);
+        assertFalse(realVisitIds.contains(visit.getVisitId()));
+        assertThat(service.getCountOfActiveVisits(location), is((long) realVisitIds.size()));
+    }
+
+    @Test
+    public void test_getInpatientVisitsShouldFilterByWardOfLatestAdtEncounter() throws Exception {
+        createTestPatientAttributeType();
+        ContextSensitiveMetadataTestUtils.setupSupportsVisitLocationTag(locationService);
+
+        Location visitLocation = locationService.getLocation(2);
+        visitLocation.addTag(emrApiProperties.getSupportsVisitsLocationTag());
+        locationService.saveLocation(visitLocation);
+
+        LocationTag supportsAdmission = new LocationTag();
+        supportsAdmission.setName(EmrApiConstants.LOCATION_TAG_SUPPORTS_ADMISSION);
+        locationService.saveLocationTag(supportsAdmission);
+
+        Location firstWard = new Location();
+        firstWard.setName("First Ward in Xanadu");
+        firstWard.setParentLocation(visitLocation);
+        firstWard.addTag(supportsAdmission);
+        locationService.saveLocation(firstWard);
+
+        Location secondWard = new Location();
+        secondWard.setName("Second Ward in Xanadu");
+        secondWard.setParentLocation(visitLocation);
+        secondWard.addTag(supportsAdmission);
+        locationService.saveLocation(secondWard);
+
+        Patient patient = patientService.getPatient(7);
+        Visit visit = new Visit();
+        visit.setStartDatetime(DateUtils.addHours(new Date(), -1));
+        visit.setPatient(patient);
+        visit.setLocation(visitLocation);
+        visit.setVisitType(emrApiProperties.getAtFacilityVisitType());
+        visitService.saveVisit(visit);
+
+        Map<EncounterRole, Set<Provider>> providers = new HashMap<EncounterRole, Set<Provider>>();
+        providers.put(encounterService.getEncounterRole(1), Collections.singleton(Context.getProviderService().getProvider(1)));
+
+        assertThat(service.getInpatientVisits(visitLocation, null).size(), is(0));
+
+        AdtAction admission = new AdtAction(visit, firstWard, providers, ADMISSION);
+        admission.setActionDatetime(DateUtils.addMinutes(new Date(), -2));
+        service.createAdtEncounterFor(admission);
+
+        assertThat(service.getInpatientVisits(visitLocation, null).size(), is(1));
+        assertThat(service.getInpatientVisits(visitLocation, firstWard).size(), is(1));
+        assertThat(service.getInpatientVisits(visitLocation, secondWard).size(), is(0));
+
+        AdtAction transfer = new AdtAction(visit, secondWard, providers, TRANSFER);
+        transfer.setActionDatetime(DateUtils.addMinutes(new Date(), -1));
+        service.createAdtEncounterFor(transfer);
+
+        assertThat(service.getInpatientVisits(visitLocation, firstWard).size(), is(0));
+        assertThat(service.getInpatientVisits(visitLocation, secondWard).get(0).getVisit(), is(visit));
+
+        AdtAction discharge = new AdtAction(visit, secondWard, providers, DISCHARGE);
+        service.createAdtEncounterFor(discharge);
+
+        assertThat(service.getInpatientVisits(visitLocation, null).size(), is(0));
+        assertThat(service.getInpatientVisits(visitLocation, secondWard).size(), is(0));
+    }
+
+    @Test
+    public void test_shouldGetPatientEncounterAndVisitSummariesFromQueries() throws Exception {
+        Patient patient = patientService.getPatient(7);
+        List<Encounter> encounters = encounterService.getEncountersByPatient(patient);
+        int visitCount = visitService.getVisitsByPatient(patient, true, false).size();
+
+        assertThat(service.getCountOfEncounters(patient), is(encounters.size()));
+        assertThat(service.getCountOfVisits(patient), is(visitCount));
+        long lastEncounterTime = encounters.get(encounters.size() - 1).getEncounterDatetime().getTime();
+        assertThat(service.getLastEncounter(patient).getEncounterDatetime().getTime(), is(lastEncounterTime));
+
+        Patient patientWithoutEncounters = new Patient();
+        assertNull(service.getLastEncounter(patientWithoutEncounters));
+        assertThat(service.getCountOfEncounters(patientWithoutEncounters), is(0));
+
+        List<Integer> patientIds = Arrays.asList(7, 999);
+        Map<Integer, Integer> encounterCounts = service.getCountsOfEncounters(patientIds);
+        assertThat(encounterCounts.get(7), is(encounters.size()));
+        assertThat(encounterCounts.get(999), is(0));
+        assertThat(service.getCountsOfVisits(patientIds).get(7), is(visitCount));
+        Map<Integer, Encounter> lastEncounters = service.getLastEncounters(patientIds);
+        assertThat(lastEncounters.get(7), is(service.getLastEncounter(patient)));
+        assertFalse(lastEncounters.containsKey(999));
+    }
+
+    @Test
+    public void test_shouldLeaveOutEncountersTheUserCannotViewFromPatientEncounterSummaries() throws Exception {
+        Patient patient = patientService.getPatient(7);
+        EncounterType hiddenType = service.getLastEncounter(patient).getEncounterType();
+        int hiddenCount = 0;
+        for (Encounter encounter : encounterService.getEncountersByPatient(patient)) {
+            if (encounter.getEncounterType().equals(hiddenType)) {
+                hiddenCount++;
+            }
+        }
+        int encounterCount = service.getCountOfEncounters(patient);
+        Privilege viewPrivilege = Context.getUserService().savePrivilege(new Privilege("View Hidden Encounters", "Test"));
+        hiddenType.setViewPrivilege(viewPrivilege);
+        encounterService.saveEncounterType(hiddenType);
+
+        Context.becomeUser("butch");
+        try {
+            assertThat(service.getCountOfEncounters(patient), is(encounterCount - hiddenCount));
+            assertThat(service.getCountsOfEncounters(Arrays.asList(7)).get(7), is(encounterCount - hiddenCount));
+            Encounter lastEncounter = service.getLastEncounter(patient);
+            assertTrue(lastEncounter == null || !lastEncounter.getEncounterType().equals(hiddenType));
+            assertThat(service.getLastEncounters(Arrays.asList(7)).get(7), is(lastEncounter));
+        }
+        finally {
+            Context.becomeUser("admin");
+        }
+    }
+
+    private PersonAttributeType createTestPatientAttributeType() {
+        PersonAttributeType testPatientAttributeType = new PersonAttributeType();
+        testPatientAttributeType.setUuid(EmrApiConstants.TEST_PATIENT_ATTRIBUTE_UUID);
+        testPatientAttributeType.setName("Test Patient");
+        testPatientAttributeType.setFormat("java.lang.Boolean");
+        return Context.getPersonService().savePersonAttributeType(testPatientAttributeType);
+    }
+
     /**
      * I'm sure there's a standard matcher for this, but sometimes we run into bugs comparing a Date to a java.sql.Timestamp
      * @param expected
@@ -1,6 +1,7 @@
 package org.openmrs.module.emrapi.adt;
 
 import org.apache.commons.lang.time.DateUtils;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.openmrs.Concept;
@@ -11,6 +12,7 @@ import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
 import org.openmrs.api.ConceptService;
+import org.openmrs.api.context.Context;
 import org.openmrs.contrib.testdata.TestDataManager;
 import org.openmrs.contrib.testdata.builder.ObsBuilder;
 import org.openmrs.module.emrapi.EmrApiProperties;
@@ -21,7 +23,10 @@ import org.openmrs.module.emrapi.disposition.DispositionType;
 import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
 import org.openmrs.test.jupiter.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
@@ -49,6 +54,9 @@ public class AdtServiceImplTest extends BaseModuleContextSensitiveTest {
     @Autowired
     private EmrApiProperties emrApiProperties;
 
+    @Autowired
+    private InpatientStatusTracker inpatientStatusTracker;
+
     @Autowired
     TestDataManager testDataManager;
 
@@ -96,6 +104,12 @@ public class AdtServiceImplTest extends BaseModuleContextSensitiveTest {
         admissionCriteria = new InpatientAdmissionSearchCriteria();
     }
 
+    @AfterEach
+    public void clearInpatientStatusTracker() {
+        // the tracker outlives the test, so a rebuild in one test must not make the next one read the statuses
+        inpatientStatusTracker.clear();
+    }
+
     private Encounter createEncounter(EncounterType encounterType, Location location, Date date) {
         return testDataManager.encounter().patient(patient).visit(visit).encounterType(encounterType).encounterDatetime(date).location(location).save();
     }
@@ -144,9 +158,26 @@ public class AdtServiceImplTest extends BaseModuleContextSensitiveTest {
     private List<InpatientRequest> assertNumRequests(InpatientRequestSearchCriteria criteria, int expected) {
         List<InpatientRequest> requests = adtService.getInpatientRequests(criteria);
         assertThat(requests.size(), equalTo(expected));
+        assertSinglePassQueryReturnsSameRequests(criteria, requests);
         return requests;
     }
 
+    private void assertSinglePassQueryReturnsSameRequests(InpatientRequestSearchCriteria criteria, List<InpatientRequest> expected) {
+        criteria.setSinglePassQuery(true);
+        List<InpatientRequest> actual = adtService.getInpatientRequests(criteria);
+        criteria.setSinglePassQuery(false);
+        assertThat(actual.size(), equalTo(expected.size()));
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.get(i).getVisit(), equalTo(expected.get(i).getVisit()));
+            assertThat(actual.get(i).getPatient(), equalTo(expected.get(i).getPatient()));
+            assertThat(actual.get(i).getDispositionEncounter(), equalTo(expected.get(i).getDispositionEncounter()));
+            assertThat(actual.get(i).getDispositionObsGroup(), equalTo(expected.get(i).getDispositionObsGroup()));
+            assertThat(actual.get(i).getDisposition(), equalTo(expected.get(i).getDisposition()));
+            assertThat(actual.get(i).getDispositionType(), equalTo(expected.get(i).getDispositionType()));
+            assertThat(actual.get(i).getDispositionLocation(), equalTo(expected.get(i).getDispositionLocation()));
+        }
+    }
+
     private List<InpatientAdmission> assertNumAdmissions(InpatientAdmissionSearchCriteria criteria, int expected) {
         List<InpatientAdmission> admissions = adtService.getInpatientAdmissions(criteria);
         assertThat(admissions.size(), equalTo(expected));
@@ -472,6 +503,28 @@ public class AdtServiceImplTest extends BaseModuleContextSensitiveTest {
         assertNumRequests(requestCriteria, 0);
     }
 
+    @Test
+    public void shouldGetSameRequestsWithSinglePassQueryAcrossMultipleVisits() {
+        createAdmissionRequest(DateUtils.addHours(visitDate, 2));
+        createAdmissionEncounter(DateUtils.addHours(visitDate, 3));
+        createTransferRequest(DateUtils.addHours(visitDate, 4));
+        Patient otherPatient = testDataManager.randomPatient().birthdate("2010-01-01").save();
+        Visit otherVisit = testDataManager.visit().patient(otherPatient).visitType(emrApiProperties.getAtFacilityVisitType()).location(visitLocation).started("2020-10-30").save();
+        patient = otherPatient;
+        visit = otherVisit;
+        createAdmissionRequest(DateUtils.addHours(visitDate, 2));
+        createAdmissionDeniedEncounter(DateUtils.addHours(visitDate, 3));
+        createAdmissionRequest(DateUtils.addHours(visitDate, 4));
+        assertNumRequests(requestCriteria, 2);
+        requestCriteria.addDispositionType(DispositionType.TRANSFER);
+        assertNumRequests(requestCriteria, 1);
+        requestCriteria.setDispositionTypes(null);
+        requestCriteria.addDispositionLocation(admissionLocation);
+        assertNumRequests(requestCriteria, 1);
+        requestCriteria.addPatientId(otherPatient.getPatientId());
+        assertNumRequests(requestCriteria, 1);
+    }
+
     //*********** INPATIENT ADMISSION TESTS *****************
 
     @Test
@@ -618,4 +671,258 @@ public class AdtServiceImplTest extends BaseModuleContextSensitiveTest {
         assertNull(l.get(0).getCurrentInpatientRequest());
     }
 
+    @Test
+    public void shouldPageAdmissionsAndReturnTotalCount() {
+        createAdmissionEncounter(DateUtils.addHours(visitDate, 2));
+        Visit dischargedVisit = createAdmittedVisit(admissionLocation);
+        testDataManager.encounter().patient(dischargedVisit.getPatient()).visit(dischargedVisit)
+                .encounterType(emrApiProperties.getExitFromInpatientEncounterType())
+                .encounterDatetime(DateUtils.addHours(visitDate, 4)).location(admissionLocation).save();
+        Visit transferredVisit = createAdmittedVisit(transferLocation);
+        Visit thirdVisit = createAdmittedVisit(admissionLocation);
+
+        admissionCriteria.setLimit(2);
+        admissionCriteria.setStartIndex(0);
+        InpatientAdmissionSearchResult result = adtService.getInpatientAdmissionSearchResult(admissionCriteria);
+        assertThat(result.getTotalCount(), equalTo(3L));
+        assertThat(result.getAdmissions().size(), equalTo(2));
+        assertThat(result.getAdmissions().get(0).getVisit(), equalTo(visit));
+        assertThat(result.getAdmissions().get(1).getVisit(), equalTo(transferredVisit));
+
+        admissionCriteria.setStartIndex(2);
+        result = adtService.getInpatientAdmissionSearchResult(admissionCriteria);
+        assertThat(result.getTotalCount(), equalTo(3L));
+        assertThat(result.getAdmissions().size(), equalTo(1));
+        assertThat(result.getAdmissions().get(0).getVisit(), equalTo(thirdVisit));
+
+        // a start index without a limit still reports the total count
+        admissionCriteria.setLimit(null);
+        admissionCriteria.setStartIndex(1);
+        result = adtService.getInpatientAdmissionSearchResult(admissionCriteria);
+        assertThat(result.getTotalCount(), equalTo(3L));
+        assertThat(result.getAdmissions().size(), equalTo(2));
+        assertThat(result.getAdmissions().get(0).getVisit(), equalTo(transferredVisit));
+
+        admissionCriteria.setLimit(2);
+        admissionCriteria.setStartIndex(0);
+        admissionCriteria.addCurrentInpatientLocation(admissionLocation);
+        result = adtService.getInpatientAdmissionSearchResult(admissionCriteria);
+        assertThat(result.getTotalCount(), equalTo(2L));
+        assertThat(result.getAdmissions().get(0).getVisit(), equalTo(visit));
+        assertThat(result.getAdmissions().get(1).getVisit(), equalTo(thirdVisit));
+
+        admissionCriteria.setCurrentInpatientLocations(null);
+        admissionCriteria.setIncludeDischarged(true);
+        result = adtService.getInpatientAdmissionSearchResult(admissionCriteria);
+        assertThat(result.getTotalCount(), equalTo(4L));
+        assertThat(result.getAdmissions().get(1).getVisit(), equalTo(dischargedVisit));
+
+        admissionCriteria.setCurrentInpatientLocations(new ArrayList<>());
+        result = adtService.getInpatientAdmissionSearchResult(admissionCriteria);
+        assertThat(result.getTotalCount(), equalTo(0L));
+        assertThat(result.getAdmissions().size(), equalTo(0));
+    }
+
+    //*********** INPATIENT STATUS TESTS *****************
+
+    @Test
+    public void shouldUpdateInpatientStatusOfVisit() {
+        assertNull(adtService.updateInpatientStatus(visit));
+        createAdmissionRequest(DateUtils.addHours(visitDate, 1));
+        InpatientStatus status = adtService.updateInpatientStatus(visit);
+        assertThat(status.isAdmitted(), equalTo(false));
+        assertThat(status.getPendingRequestType(), equalTo(DispositionType.ADMIT));
+        assertThat(status.getPendingRequestLocation(), equalTo(admissionLocation));
+
+        Encounter admission = createAdmissionEncounter(DateUtils.addHours(visitDate, 2));
+        status = adtService.updateInpatientStatus(visit);
+        assertThat(status.isAdmitted(), equalTo(true));
+        assertThat(status.getCurrentLocation(), equalTo(admissionLocation));
+        assertThat(status.getAdmissionDatetime().getTime(), equalTo(admission.getEncounterDatetime().getTime()));
+        assertNull(status.getTransferDatetime());
+        assertNull(status.getPendingRequestType());
+
+        Encounter transfer = createTransferEncounter(DateUtils.addHours(visitDate, 3));
+        status = adtService.updateInpatientStatus(visit);
+        assertThat(status.getCurrentLocation(), equalTo(transferLocation));
+        assertThat(status.getTransferDatetime().getTime(), equalTo(transfer.getEncounterDatetime().getTime()));
+        assertThat(adtService.getInpatientStatuses(transferLocation).size(), equalTo(1));
+        assertThat(adtService.getInpatientStatuses(admissionLocation).size(), equalTo(0));
+
+        createDischarge(DateUtils.addHours(visitDate, 4), transferLocation);
+        status = adtService.updateInpatientStatus(visit);
+        assertThat(status.isAdmitted(), equalTo(false));
+        assertNull(status.getCurrentLocation());
+        assertThat(adtService.getInpatientStatuses(transferLocation).size(), equalTo(0));
+
+        testDataManager.getVisitService().endVisit(visit, DateUtils.addHours(visitDate, 5));
+        assertNull(adtService.updateInpatientStatus(visit));
+        assertThat(adtService.getInpatientStatuses(null).size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldRebuildInpatientStatuses() {
+        assertThat(rebuildInpatientStatuses(), equalTo(0));
+        createAdmissionEncounter(DateUtils.addHours(visitDate, 2));
+        Visit transferredVisit = createAdmittedVisit(transferLocation);
+        assertThat(rebuildInpatientStatuses(), equalTo(2));
+        assertThat(rebuildInpatientStatuses(), equalTo(0));
+        List<InpatientStatus> statuses = adtService.getInpatientStatuses(transferLocation);
+        assertThat(statuses.size(), equalTo(1));
+        assertThat(statuses.get(0).getVisit(), equalTo(transferredVisit));
+
+        transferredVisit = testDataManager.getVisitService().getVisit(transferredVisit.getVisitId());
+        testDataManager.getVisitService().endVisit(transferredVisit, DateUtils.addHours(visitDate, 5));
+        assertThat(rebuildInpatientStatuses(), equalTo(1));
+        statuses = adtService.getInpatientStatuses(null);
+        assertThat(statuses.size(), equalTo(1));
+        assertThat(statuses.get(0).getVisit(), equalTo(visit));
+        assertThat(statuses.get(0).getCurrentLocation(), equalTo(admissionLocation));
+    }
+
+    @Test
+    public void shouldUpdateInpatientStatusesOfVisitsChangedInCommittedTransactions() {
+        Encounter admission = createAdmissionEncounter(DateUtils.addHours(visitDate, 2));
+        commitTransaction();
+        List<InpatientStatus> statuses = adtService.getInpatientStatuses(admissionLocation);
+        assertThat(statuses.size(), equalTo(1));
+        assertThat(statuses.get(0).getVisit(), equalTo(visit));
+
+        // moving the admission to another visit changes the status of the visit it was moved from as well
+        Patient otherPatient = testDataManager.randomPatient().birthdate("2010-01-01").save();
+        Visit otherVisit = testDataManager.visit().patient(otherPatient).visitType(emrApiProperties.getAtFacilityVisitType()).location(visitLocation).started("2020-10-30").save();
+        commitTransaction();
+        admission.setPatient(otherPatient);
+        admission.setVisit(otherVisit);
+        commitTransaction();
+        statuses = adtService.getInpatientStatuses(null);
+        assertThat(statuses.size(), equalTo(1));
+        assertThat(statuses.get(0).getVisit(), equalTo(otherVisit));
+        assertThat(statuses.get(0).getCurrentLocation(), equalTo(admissionLocation));
+    }
+
+    @Test
+    public void shouldNotUpdateInpatientStatusesForEncountersThatAreNotAdtChanges() {
+        createEncounter(emrApiProperties.getVisitNoteEncounterType(), preAdmissionLocation, DateUtils.addHours(visitDate, 1));
+        commitTransaction();
+        assertThat(adtService.getInpatientStatuses(null).size(), equalTo(0));
+
+        createAdmissionRequest(DateUtils.addHours(visitDate, 2));
+        commitTransaction();
+        List<InpatientStatus> statuses = adtService.getInpatientStatuses(null);
+        assertThat(statuses.size(), equalTo(1));
+        assertThat(statuses.get(0).getPendingRequestType(), equalTo(DispositionType.ADMIT));
+    }
+
+    @Test
+    public void shouldGetInpatientListsFromInpatientStatusesOnceRebuilt() {
+        Visit admittedVisit = createAdmittedVisit(transferLocation);
+        createAdmissionRequest(DateUtils.addHours(visitDate, 1));
+        rebuildInpatientStatuses();
+
+        requestCriteria.addDispositionType(DispositionType.ADMIT);
+        requests = assertNumRequests(requestCriteria, 1);
+        assertThat(requests.get(0).getVisit(), equalTo(visit));
+        List<Visit> awaitingAdmission = adtService.getVisitsAwaitingAdmission(null, null, null);
+        assertThat(awaitingAdmission.size(), equalTo(1));
+        assertThat(awaitingAdmission.get(0), equalTo(visit));
+        admissionCriteria.addCurrentInpatientLocation(transferLocation);
+        List<InpatientAdmission> admissions = assertNumAdmissions(admissionCriteria, 1);
+        assertThat(admissions.get(0).getVisit(), equalTo(admittedVisit));
+
+        // the statuses are updated along with the admission, so the lists change with them
+        createAdmissionEncounter(DateUtils.addHours(visitDate, 2));
+        commitTransaction();
+        assertNumRequests(requestCriteria, 0);
+        assertThat(adtService.getVisitsAwaitingAdmission(null, null, null).size(), equalTo(0));
+        admissionCriteria.setCurrentInpatientLocations(Arrays.asList(admissionLocation, transferLocation));
+        assertNumAdmissions(admissionCriteria, 2);
+    }
+
+    /**
+     * Flushes the test data so the rebuild sees it, and reloads the visit and patient of the test, which the rebuild
+     * evicts from the session
+     */
+    private int rebuildInpatientStatuses() {
+        Context.flushSession();
+        int changed = adtService.rebuildInpatientStatuses();
+        visit = testDataManager.getVisitService().getVisit(visit.getVisitId());
+        patient = testDataManager.getPatientService().getPatient(patient.getPatientId());
+        return changed;
+    }
+
+    /**
+     * Runs what happens just before the current transaction commits, without actually committing it
+     */
+    private void commitTransaction() {
+        for (TransactionSynchronization synchronization : TransactionSynchronizationManager.getSynchronizations()) {
+            synchronization.beforeCommit(false);
+        }
+    }
+
+    @Test
+    public void shouldCreateRetrospectiveVisitsInBatchAndReportPerRowResults() {
+        Date earlier = DateUtils.addDays(visitDate, -100);
+        Date later = DateUtils.addDays(visitDate, 10);
+        List<RetrospectiveVisitRequest> rows = Arrays.asList(
+                new RetrospectiveVisitRequest(patient, preAdmissionLocation, earlier, DateUtils.addDays(earlier, 1)),
+                new RetrospectiveVisitRequest(patient, admissionLocation, DateUtils.addHours(earlier, 12), DateUtils.addDays(earlier, 2)),
+                new RetrospectiveVisitRequest(patient, visitLocation, later, DateUtils.addDays(later, 1)),
+                new RetrospectiveVisitRequest(patient, otherVisitLocation, later, DateUtils.addDays(later, 1)),
+                new RetrospectiveVisitRequest(patient, visitLocation, DateUtils.addDays(earlier, -5), DateUtils.addDays(earlier, -6)));
+
+        List<RetrospectiveVisitResult> results = adtService.createRetrospectiveVisits(rows);
+        assertThat(results.size(), equalTo(5));
+
+        assertNotNull(results.get(0).getVisit().getVisitId());
+        assertThat(results.get(0).getVisit().getLocation(), equalTo(visitLocation));
+        assertNull(results.get(0).getErrorCode());
+
+        // overlaps the visit created by the first row
+        assertNull(results.get(1).getVisit());
+        assertThat(results.get(1).getErrorCode(), equalTo("emrapi.retrospectiveVisit.patientAlreadyHasVisit"));
+
+        // overlaps the existing, open visit
+        assertNull(results.get(2).getVisit());
+        assertThat(results.get(2).getErrorCode(), equalTo("emrapi.retrospectiveVisit.patientAlreadyHasVisit"));
+
+        // the same dates at another visit location do not overlap
+        assertNotNull(results.get(3).getVisit().getVisitId());
+        assertThat(results.get(3).getVisit().getLocation(), equalTo(otherVisitLocation));
+
+        assertNull(results.get(4).getVisit());
+        assertThat(results.get(4).getErrorCode(), equalTo("emrapi.retrospectiveVisit.endDateBeforeStartDateMessage"));
+
+        assertThat(testDataManager.getVisitService().getVisitsByPatient(patient).size(), equalTo(3));
+    }
+
+    @Test
+    public void shouldReportVisitsThatFailValidationWithoutLosingTheRestOfTheBatch() {
+        Date beforeBirth = DateUtils.addYears(patient.getBirthdate(), -1);
+        Date earlier = DateUtils.addDays(visitDate, -100);
+        List<RetrospectiveVisitRequest> rows = Arrays.asList(
+                new RetrospectiveVisitRequest(patient, visitLocation, beforeBirth, DateUtils.addDays(beforeBirth, 1)),
+                new RetrospectiveVisitRequest(patient, visitLocation, earlier, DateUtils.addDays(earlier, 1)));
+
+        List<RetrospectiveVisitResult> results = adtService.createRetrospectiveVisits(rows);
+
+        assertNull(results.get(0).getVisit());
+        assertNotNull(results.get(0).getErrorCode());
+        assertNotNull(results.get(1).getVisit().getVisitId());
+        assertNull(results.get(1).getErrorCode());
+        assertThat(testDataManager.getVisitService().getVisitsByPatient(patient).size(), equalTo(2));
+    }
+
+    private Visit createAdmittedVisit(Location inpatientLocation) {
+        Patient p = testDataManager.randomPatient().birthdate("2010-01-01").save();
+        Visit v = testDataManager.visit().patient(p).visitType(emrApiProperties.getAtFacilityVisitType()).location(visitLocation).started("2020-10-30").save();
+        testDataManager.encounter().patient(p).visit(v).encounterType(emrApiProperties.getAdmissionEncounterType())
+                .encounterDatetime(DateUtils.addHours(visitDate, 2)).location(admissionLocation).save();
+        if (!inpatientLocation.equals(admissionLocation)) {
+            testDataManager.encounter().patient(p).visit(v).encounterType(emrApiProperties.getTransferWithinHospitalEncounterType())
+                    .encounterDatetime(DateUtils.addHours(visitDate, 3)).location(inpatientLocation).save();
+        }
+        return v;
+    }
+
 }
@@ -49,9 +49,11 @@ import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.TestUtils;
 import org.openmrs.module.emrapi.adt.exception.ExistingVisitDuringTimePeriodException;
+import org.openmrs.module.emrapi.db.EmrApiDAO;
 import org.openmrs.module.emrapi.disposition.DispositionService;
 import org.openmrs.module.emrapi.domainwrapper.DomainWrapperFactory;
 import org.openmrs.module.emrapi.merge.PatientMergeAction;
+import org.openmrs.module.emrapi.merge.PatientMergePlan;
 import org.openmrs.module.emrapi.merge.VisitMergeAction;
 import org.openmrs.module.emrapi.patient.PatientDomainWrapper;
 import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
@@ -68,6 +70,11 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.hamcrest.collection.IsIterableContainingInAnyOrder.containsInAnyOrder;
@@ -110,6 +117,7 @@ public class AdtServiceTest {
     private ProviderService mockProviderService;
     private PatientService mockPatientService;
     private DispositionService mockDispositionService;
+    private EmrApiDAO mockEmrApiDAO;
     private DomainWrapperFactory mockDomainWrapperFactory;
     private EmrApiProperties emrApiProperties;
 
@@ -154,6 +162,7 @@ public class AdtServiceTest {
         mockLocationService = mock(LocationService.class);
         mockPatientService = mock(PatientService.class);
         mockDispositionService = mock(DispositionService.class);
+        mockEmrApiDAO = mock(EmrApiDAO.class);
 
         mockDomainWrapperFactory = new MockDomainWrapperFactory();
 
@@ -209,6 +218,8 @@ public class AdtServiceTest {
         service.setProviderService(mockProviderService);
         service.setEmrApiProperties(emrApiProperties);
         service.setDomainWrapperFactory(mockDomainWrapperFactory);
+        service.setDispositionService(mockDispositionService);
+        service.setEmrApiDAO(mockEmrApiDAO);
         this.service = service;
     }
 
@@ -481,6 +492,46 @@ public class AdtServiceTest {
         }));
     }
 
+    @Test
+    public void test_checkInPatient_shouldCreateOneVisitForParallelCheckInsOfTheSamePatient() throws Exception {
+        final Patient patient = new Patient();
+        final List<Visit> savedVisits = Collections.synchronizedList(new ArrayList<Visit>());
+
+        // behave like the database: visits saved by one check-in are found by the next
+        when(mockVisitService.getVisitsByPatient(patient)).thenAnswer(invocation -> {
+            synchronized (savedVisits) {
+                return new ArrayList<Visit>(savedVisits);
+            }
+        });
+        when(mockVisitService.saveVisit(any(Visit.class))).thenAnswer(invocation -> {
+            Thread.sleep(20); // widen the window for a race
+            Visit visit = (Visit) invocation.getArguments()[0];
+            savedVisits.add(visit);
+            return visit;
+        });
+
+        int numberOfThreads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        try {
+            List<Future<Encounter>> checkIns = new ArrayList<Future<Encounter>>();
+            for (int i = 0; i < numberOfThreads; i++) {
+                checkIns.add(executor.submit(() -> {
+                    start.await();
+                    return service.checkInPatient(patient, outpatientDepartment, providerForCurrentUser, null, null, false);
+                }));
+            }
+            start.countDown();
+            for (Future<Encounter> checkIn : checkIns) {
+                assertThat(checkIn.get(10, TimeUnit.SECONDS).getVisit(), is(savedVisits.get(0)));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertThat(savedVisits.size(), is(1));
+    }
+
     @SuppressWarnings({"unchecked"})
     @Test
     public void shouldGetAllVisitSummariesOfAllActiveVisit() throws Exception {
@@ -497,11 +548,23 @@ public class AdtServiceTest {
         expectedLocations.add(outpatientDepartment);
         expectedLocations.add(inpatientDepartment);
 
-        when(mockVisitService.getVisits(
-                isNull(), isNull(), anyCollection(), isNull(),
-                isNull(), isNull(), isNull(), isNull(),
-                isNull(), eq(false), eq(false)
-        )).thenReturn(Arrays.asList(visit1, visit2));
+        visit1.setVisitId(1);
+        visit2.setVisitId(2);
+        mirebalaisHospital.setLocationId(1);
+        outpatientDepartment.setLocationId(2);
+        inpatientDepartment.setLocationId(3);
+
+        Set<Integer> expectedLocationIds = new HashSet<Integer>();
+        for (Location expectedLocation : expectedLocations) {
+            expectedLocationIds.add(expectedLocation.getLocationId());
+        }
+
+        EmrApiDAO mockEmrApiDAO = mock(EmrApiDAO.class);
+        when(mockEmrApiDAO.executeHqlFromResource(eq("hql/active_visit_ids.hql"),
+                argThat(parameters -> expectedLocationIds.equals(parameters.get("locationIds"))),
+                eq(Integer.class), isNull(), isNull())).thenReturn(Arrays.asList(2, 1));
+        when(mockEmrApiDAO.executeHql(anyString(), anyMap(), eq(Visit.class))).thenReturn(Arrays.asList(visit1, visit2));
+        service.setEmrApiDAO(mockEmrApiDAO);
 
         List<Visit> activeVisitSummaries = service.getActiveVisits(mirebalaisHospital).stream()
                 .map(VisitDomainWrapper::getVisit).collect(Collectors.toList());
@@ -786,6 +849,68 @@ public class AdtServiceTest {
         verify(mockPatientService).mergePatients(preferred, notPreferred);
     }
 
+    @Test
+    public void testPatientMergePlanDoesNotChangeVisits() throws Exception {
+        Patient preferred = new Patient();
+        Patient notPreferred = new Patient();
+
+        Date now = new Date();
+        Date twelveDaysAgo = DateUtils.addDays(now, -12);
+        Date elevenDaysAgo = DateUtils.addDays(now, -11);
+        Date tenDaysAgo = DateUtils.addDays(now, -10);
+        Date nineDaysAgo = DateUtils.addDays(now, -9);
+        Date eightDaysAgo = DateUtils.addDays(now, -8);
+        Date sevenDaysAgo = DateUtils.addDays(now, -7);
+        Date fourDaysAgo = DateUtils.addDays(now, -4);
+        Date twoDaysAgo = DateUtils.addDays(now, -2);
+
+        Visit nonPreferredVisit = buildVisit(notPreferred, null, mirebalaisHospital, elevenDaysAgo, eightDaysAgo);
+        Visit otherNonPreferredVisit = buildVisit(notPreferred, null, mirebalaisHospital, tenDaysAgo, nineDaysAgo);
+        Visit firstPreferredVisit = buildVisit(preferred, null, mirebalaisHospital, twelveDaysAgo, tenDaysAgo);
+        Visit secondPreferredVisit = buildVisit(preferred, null, mirebalaisHospital, nineDaysAgo, sevenDaysAgo);
+        Visit separatePreferredVisit = buildVisit(preferred, null, mirebalaisHospital, fourDaysAgo, twoDaysAgo);
+
+        when(mockVisitService.getVisitsByPatient(notPreferred, true, false)).thenReturn(Arrays.asList(nonPreferredVisit, otherNonPreferredVisit));
+        when(mockVisitService.getVisitsByPatient(preferred, true, false)).thenReturn(Arrays.asList(separatePreferredVisit, secondPreferredVisit, firstPreferredVisit));
+
+        PatientMergePlan plan = service.getPatientMergePlan(preferred, notPreferred);
+
+        assertThat(plan.getVisitMerges().size(), is(3));
+        assertThat(plan.getVisitMerges().get(0).getPreferred(), is(firstPreferredVisit));
+        assertThat(plan.getVisitMerges().get(0).getNotPreferred(), is(nonPreferredVisit));
+        assertThat(plan.getVisitMerges().get(1).getPreferred(), is(firstPreferredVisit));
+        assertThat(plan.getVisitMerges().get(1).getNotPreferred(), is(otherNonPreferredVisit));
+        assertThat(plan.getVisitMerges().get(2).getPreferred(), is(firstPreferredVisit));
+        assertThat(plan.getVisitMerges().get(2).getNotPreferred(), is(secondPreferredVisit));
+        assertThat(plan.getVisitMerges().get(2).getStartDatetime(), is(twelveDaysAgo));
+        assertThat(plan.getVisitMerges().get(2).getStopDatetime(), is(sevenDaysAgo));
+
+        assertThat(firstPreferredVisit.getStopDatetime(), is(tenDaysAgo));
+        verify(mockVisitService, never()).saveVisit(any(Visit.class));
+        verify(mockVisitService, never()).voidVisit(any(Visit.class), anyString());
+    }
+
+    @Test
+    public void testMergePatientsSavesMergedEncountersOfTheOtherPatient() throws Exception {
+        Patient preferred = new Patient();
+        Patient notPreferred = new Patient();
+
+        Date now = new Date();
+        Visit winning = buildVisit(preferred, null, mirebalaisHospital, DateUtils.addDays(now, -10), DateUtils.addDays(now, -8));
+        Visit losing = buildVisit(notPreferred, null, mirebalaisHospital, DateUtils.addDays(now, -9), DateUtils.addDays(now, -7));
+        Encounter encounter = buildEncounter(notPreferred, DateUtils.addDays(now, -9));
+        losing.addEncounter(encounter);
+
+        when(mockVisitService.getVisitsByPatient(preferred, true, false)).thenReturn(Arrays.asList(winning));
+        when(mockVisitService.getVisitsByPatient(notPreferred, true, false)).thenReturn(Arrays.asList(losing));
+
+        service.mergePatients(preferred, notPreferred);
+
+        assertThat(encounter.getVisit(), is(winning));
+        assertThat(encounter.getPatient(), is(preferred));
+        verify(mockEncounterService).saveEncounter(encounter);
+    }
+
     @Test
     public void itShouldNotCopyUnknownAttributeWhenMergingAnUnknownPatientIntoAPermanentOne() throws SerializationException {
         Patient preferred = createPatientWithIdAs(10);
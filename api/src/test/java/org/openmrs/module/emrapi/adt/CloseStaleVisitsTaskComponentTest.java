@@ -0,0 +1,174 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.Location;
+import org.openmrs.User;
+import org.openmrs.api.AdministrationService;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.VisitService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emrapi.EmrApiConstants;
+import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.disposition.DispositionService;
+import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
+import org.openmrs.test.jupiter.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class CloseStaleVisitsTaskComponentTest extends BaseModuleContextSensitiveTest {
+
+    @Autowired
+    private EmrApiProperties emrApiProperties;
+
+    @Autowired
+    LocationService locationService;
+
+    @Autowired
+    VisitService visitService;
+
+    @Autowired
+    ConceptService conceptService;
+
+    @Autowired
+    DispositionService dispositionService;
+
+    @Autowired
+    @Qualifier("adminService")
+    AdministrationService administrationService;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        executeDataSet("baseTestDataset.xml");
+        administrationService.setGlobalProperty(EmrApiConstants.GP_INPATIENT_VISIT_EXPIRE_HOURS, "");
+        dispositionService.setDispositionConfig("testDispositionConfig.json");
+
+        ContextSensitiveMetadataTestUtils.setupDispositionDescriptor(conceptService, dispositionService);
+        ContextSensitiveMetadataTestUtils.setupAdmissionDecisionConcept(conceptService, emrApiProperties);
+        ContextSensitiveMetadataTestUtils.setupSupportsVisitLocationTag(locationService);
+
+        Location location = locationService.getLocation(1);
+        location.addTag(emrApiProperties.getSupportsVisitsLocationTag());
+        locationService.saveLocation(location);
+    }
+
+    @Test
+    public void shouldCloseStaleVisitsAndClearCheckpointWhenAllShardsComplete() throws Exception {
+        CloseStaleVisitsRun run = new CloseStaleVisitsTask().closeStaleVisits(1, 1, 10);
+
+        assertThat(visitService.getVisit(1).getStopDatetime(), notNullValue());
+        assertThat(visitService.getVisit(2).getStopDatetime(), nullValue());
+        assertThat(run.isFinished(), is(true));
+        assertThat(run.getShards().size(), is(1));
+        assertThat(run.getShards().get(0).getKey(), is("1:0-9"));
+        assertThat(run.getVisitsClosed() > 0, is(true));
+        assertThat(run.getFailures(), is(0));
+        assertThat(run.getResumedShards(), is(0));
+        assertThat(StringUtils.isEmpty(administrationService.getGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS)), is(true));
+    }
+
+    @Test
+    public void shouldSkipShardsCompletedByARecentRunThatWasInterrupted() throws Exception {
+        long oneHourAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1);
+        administrationService.setGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS, "run-1|" + oneHourAgo + "|1:0-9");
+
+        CloseStaleVisitsRun run = new CloseStaleVisitsTask().closeStaleVisits(1, 1, 10);
+
+        assertThat(visitService.getVisit(1).getStopDatetime(), nullValue());
+        assertThat(run.getRunId(), is("run-1"));
+        assertThat(run.getShards().size(), is(0));
+        assertThat(run.getResumedShards(), is(1));
+        assertThat(run.getVisitsScanned(), is(0));
+        assertThat(StringUtils.isEmpty(administrationService.getGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS)), is(true));
+    }
+
+    @Test
+    public void shouldDiscardTheCheckpointOfARunThatStartedTooLongAgo() throws Exception {
+        long tooLongAgo = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(CloseStaleVisitsTask.CHECKPOINT_MAX_AGE_HOURS + 1);
+        administrationService.setGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS, "run-1|" + tooLongAgo + "|1:0-9");
+
+        CloseStaleVisitsRun run = new CloseStaleVisitsTask().closeStaleVisits(1, 1, 10);
+
+        assertThat(visitService.getVisit(1).getStopDatetime(), notNullValue());
+        assertThat(run.getRunId(), not("run-1"));
+        assertThat(run.getResumedShards(), is(0));
+    }
+
+    @Test
+    public void shouldDiscardTheCheckpointOfAFinishedRunEvenIfShardsFailed() throws Exception {
+        CloseStaleVisitsRun run = new CloseStaleVisitsTask() {
+            @Override
+            void processShard(CloseStaleVisitsShard shard, int batchSize) {
+                shard.start();
+                shard.getFailures().addAndGet(shard.getVisitIds().size());
+                shard.finish();
+            }
+        }.closeStaleVisits(1, 1, 10);
+
+        assertThat(run.getFailures() > 0, is(true));
+        assertThat(StringUtils.isEmpty(administrationService.getGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS)), is(true));
+    }
+
+    @Test
+    public void shouldProcessShardsConcurrentlyInTheirOwnSessionsAsTheCallingUser() throws Exception {
+        final Thread callingThread = Thread.currentThread();
+        final User callingUser = Context.getAuthenticatedUser();
+        final Set<String> processedShards = Collections.synchronizedSet(new HashSet<String>());
+        final List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+
+        // the shards' visits are only in this test's transaction, which other threads can't see, so the shards are
+        // not actually processed
+        CloseStaleVisitsRun run = new CloseStaleVisitsTask() {
+            @Override
+            void processShard(CloseStaleVisitsShard shard, int batchSize) {
+                shard.start();
+                if (Thread.currentThread() == callingThread) {
+                    problems.add(shard.getKey() + " processed in the calling thread");
+                }
+                if (!Context.isSessionOpen() || !callingUser.equals(Context.getAuthenticatedUser())) {
+                    problems.add(shard.getKey() + " processed without the calling user's session");
+                }
+                processedShards.add(shard.getKey());
+                shard.finish();
+            }
+        }.closeStaleVisits(1, 2, 1);
+
+        assertThat(problems, is(empty()));
+        assertThat(run.getShards().isEmpty(), is(false));
+        assertThat(processedShards.size(), is(run.getShards().size()));
+        assertThat(run.getCompletedShards(), is(run.getShards().size()));
+        assertThat(run.isFinished(), is(true));
+        assertThat(StringUtils.isEmpty(administrationService.getGlobalProperty(EmrApiConstants.GP_CLOSE_STALE_VISITS_COMPLETED_SHARDS)), is(true));
+    }
+
+}
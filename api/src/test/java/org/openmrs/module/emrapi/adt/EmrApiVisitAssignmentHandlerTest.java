@@ -51,6 +51,8 @@ import static org.mockito.ArgumentMatchers.isNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class EmrApiVisitAssignmentHandlerTest extends BaseModuleContextSensitiveTest {
@@ -135,8 +137,8 @@ public class EmrApiVisitAssignmentHandlerTest extends BaseModuleContextSensitive
         suitable.setStartDatetime(DateUtils.addDays(new Date(), -1));
         suitable.setLocation(location);
 
-        when(visitService.getVisits( isNull(), anyCollection(), isNull(), isNull(),
-                isNull(), any(Date.class), isNull(), isNull(),
+        when(visitService.getVisits( isNull(), anyCollection(), anyCollection(), isNull(),
+                isNull(), any(Date.class), any(Date.class), isNull(),
                 isNull(), eq(true), eq(false))).thenReturn(Arrays.asList(suitable, notSuitable));
 
         Date encounterDatetime = new Date();
@@ -253,9 +255,9 @@ public class EmrApiVisitAssignmentHandlerTest extends BaseModuleContextSensitive
         suitable.setLocation(location);
 
         // TODO this doesn't test that the query works correctly!
-        when(visitService.getVisits( isNull(), anyCollection(), isNull(), isNull(),
-                        isNull(), any(Date.class), isNull(), isNull(),
-                        isNull(), eq(true), eq(false))).thenReturn(Collections.singletonList(suitable));
+        when(visitService.getVisits( isNull(), anyCollection(), anyCollection(), isNull(),
+                isNull(), any(Date.class), any(Date.class), isNull(),
+                isNull(), eq(true), eq(false))).thenReturn(Collections.singletonList(suitable));
 
         Encounter encounter = new Encounter();
         encounter.setPatient(patient);
@@ -298,8 +300,8 @@ public class EmrApiVisitAssignmentHandlerTest extends BaseModuleContextSensitive
         suitable.setLocation(location);
 
         // TODO this doesn't test that the query works correctly!
-        when(visitService.getVisits( isNull(), anyCollection(), isNull(), isNull(),
-                isNull(), any(Date.class), isNull(), isNull(),
+        when(visitService.getVisits( isNull(), anyCollection(), anyCollection(), isNull(),
+                isNull(), any(Date.class), any(Date.class), isNull(),
                 isNull(), eq(true), eq(false))).thenReturn(Collections.singletonList(suitable));
 
         Encounter encounter = new Encounter();
@@ -315,4 +317,70 @@ public class EmrApiVisitAssignmentHandlerTest extends BaseModuleContextSensitive
         Assert.assertThat(encounter.getEncounterDatetime(), is(suitable.getStopDatetime()));
     }
 
+    @Test
+    public void testQueryingOnlyVisitsOverlappingTheEncounterDayOnceForEncountersInTheSameTransaction() throws Exception {
+        Patient patient = new Patient(1);
+        Location parentLocation = new Location(1);
+        Location location = new Location(2);
+        location.setParentLocation(parentLocation);
+
+        Visit suitable = new Visit(1);
+        suitable.setPatient(patient);
+        suitable.setStartDatetime(new DateTime().withTimeAtStartOfDay().minusDays(1).plusHours(8).toDate());  // start time = 08:00 yesterday
+        suitable.setLocation(parentLocation);
+
+        when(visitService.getVisits( isNull(), anyCollection(), anyCollection(), isNull(),
+                isNull(), any(Date.class), any(Date.class), isNull(),
+                isNull(), eq(true), eq(false))).thenReturn(Collections.singletonList(suitable));
+        when(visitService.getVisit(1)).thenReturn(suitable);
+
+        Date startOfDay = new DateTime().withTimeAtStartOfDay().minusDays(1).toDate();
+        for (int hour = 10; hour < 12; hour++) {
+            Encounter encounter = new Encounter();
+            encounter.setPatient(patient);
+            encounter.setLocation(location);
+            encounter.setEncounterDatetime(new DateTime(startOfDay).plusHours(hour).toDate());
+            handler.beforeCreateEncounter(encounter);
+            Assert.assertThat(encounter.getVisit(), is(suitable));
+        }
+
+        verify(visitService, times(1)).getVisits(isNull(), eq(Collections.singletonList(patient)),
+                eq(Arrays.asList(location, parentLocation)), isNull(), isNull(),
+                eq(new DateTime(startOfDay).withTime(23, 59, 59, 999).toDate()), eq(startOfDay), isNull(), isNull(),
+                eq(true), eq(false));
+        verify(visitService, times(1)).getVisit(1);
+        verify(adminService, times(1)).getGlobalProperty(EmrApiConstants.GP_DISABLE_VISIT_ASSIGMENT_HANDLER);
+        verify(emrApiProperties, times(1)).getVisitAssignmentHandlerAdjustEncounterTimeOfDayIfNecessary();
+    }
+
+    @Test
+    public void testQueryingVisitCandidatesAgainAfterAVisitOfThePatientIsSaved() throws Exception {
+        Patient patient = new Patient(1);
+        Location location = new Location(1);
+
+        Visit suitable = new Visit(1);
+        suitable.setPatient(patient);
+        suitable.setStartDatetime(new DateTime().withTimeAtStartOfDay().minusDays(1).plusHours(8).toDate());  // start time = 08:00 yesterday
+        suitable.setLocation(location);
+
+        when(visitService.getVisits( isNull(), anyCollection(), anyCollection(), isNull(),
+                isNull(), any(Date.class), any(Date.class), isNull(),
+                isNull(), eq(true), eq(false))).thenReturn(Collections.singletonList(suitable));
+
+        Date startOfDay = new DateTime().withTimeAtStartOfDay().minusDays(1).toDate();
+        for (int hour = 10; hour < 12; hour++) {
+            Encounter encounter = new Encounter();
+            encounter.setPatient(patient);
+            encounter.setLocation(location);
+            encounter.setEncounterDatetime(new DateTime(startOfDay).plusHours(hour).toDate());
+            handler.beforeCreateEncounter(encounter);
+            Assert.assertThat(encounter.getVisit(), is(suitable));
+            VisitAssignmentCache.visitChanged(suitable);
+        }
+
+        verify(visitService, times(2)).getVisits(isNull(), eq(Collections.singletonList(patient)),
+                eq(Collections.singletonList(location)), isNull(), isNull(), any(Date.class), eq(startOfDay), isNull(),
+                isNull(), eq(true), eq(false));
+    }
+
 }
@@ -4,6 +4,7 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.openmrs.EncounterType;
+import org.openmrs.GlobalProperty;
 import org.openmrs.VisitType;
 import org.openmrs.api.AdministrationService;
 import org.openmrs.api.EncounterService;
@@ -11,6 +12,8 @@ import org.openmrs.api.VisitService;
 import org.openmrs.module.emrapi.EmrApiConstants;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class EncounterTypeToVisitTypeMapperTest  {
@@ -161,5 +164,32 @@ public class EncounterTypeToVisitTypeMapperTest  {
 		Assertions.assertNotNull(visitType);
 		Assertions.assertEquals("759799ab-c9a5-435e-b671-77773ada74e4",visitType.getUuid());
 	}
+
+	@Test
+	public void testMappingIsLoadedFromGlobalPropertyOnFirstUseAndVisitTypesAreResolvedOnEveryCall(){
+		when(adminService.getGlobalProperty(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP)).thenReturn("1:2,default:1");
+		
+		Assertions.assertEquals(2, encounterTypetoVisitTypeMapper.getVisitTypeForEncounterType(encounterService.getEncounterType(1)).getId().longValue());
+		Assertions.assertEquals(1, encounterTypetoVisitTypeMapper.getVisitTypeForEncounterType(encounterService.getEncounterType(2)).getId().longValue());
+		Assertions.assertEquals(2, encounterTypetoVisitTypeMapper.getVisitTypeForEncounterType(encounterService.getEncounterType(1)).getId().longValue());
+		
+		verify(adminService, times(1)).getGlobalProperty(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP);
+		verify(visitService, times(1)).getVisitType(1);
+		verify(visitService, times(2)).getVisitType(2);
+	}
+	
+	@Test
+	public void testMappingIsRebuiltWhenGlobalPropertyChanges(){
+		encounterTypetoVisitTypeMapper.setMappingString("default:1");
+		EncounterType e = encounterService.getEncounterType(2);
+		Assertions.assertEquals(1, encounterTypetoVisitTypeMapper.getVisitTypeForEncounterType(e).getId().longValue());
+		
+		Assertions.assertTrue(encounterTypetoVisitTypeMapper.supportsPropertyName(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP));
+		encounterTypetoVisitTypeMapper.globalPropertyChanged(new GlobalProperty(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP, "default:1,07000be2-26b6-4cce-8b40-866d8435b613:2"));
+		Assertions.assertEquals(2, encounterTypetoVisitTypeMapper.getVisitTypeForEncounterType(e).getId().longValue());
+		
+		encounterTypetoVisitTypeMapper.globalPropertyDeleted(EmrApiConstants.GP_VISIT_ASSIGNMENT_HANDLER_ENCOUNTER_TYPE_TO_VISIT_TYPE_MAP);
+		Assertions.assertNull(encounterTypetoVisitTypeMapper.getVisitTypeForEncounterType(e));
+	}
 	
 }
@@ -0,0 +1,55 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class InpatientStatusTrackerTest {
+
+    private final InpatientStatusTracker tracker = new InpatientStatusTracker();
+
+    @Test
+    public void shouldNotBeUpToDateUntilRebuilt() {
+        assertThat(tracker.isUpToDate(), is(false));
+        tracker.rebuildCompleted();
+        assertThat(tracker.isUpToDate(), is(true));
+    }
+
+    @Test
+    public void shouldNotBeUpToDateWhileVisitsAreStale() {
+        tracker.rebuildCompleted();
+        tracker.markStale(Arrays.asList(1, 2));
+        tracker.markStale(Arrays.asList(2, 3));
+        assertThat(tracker.isUpToDate(), is(false));
+        assertThat(tracker.getStaleVisitCount(), is(3));
+    }
+
+    @Test
+    public void shouldForgetStaleVisitsAndTheRebuildWhenCleared() {
+        tracker.rebuildCompleted();
+        tracker.markStale(Arrays.asList(1, 2));
+        tracker.clear();
+        assertThat(tracker.getStaleVisitCount(), is(0));
+        assertThat(tracker.isUpToDate(), is(false));
+        tracker.rebuildCompleted();
+        assertThat(tracker.isUpToDate(), is(true));
+    }
+
+}
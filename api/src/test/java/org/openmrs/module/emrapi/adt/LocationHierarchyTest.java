@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class LocationHierarchyTest {
+
+    private static final String VISIT_LOCATION = "Visit Location";
+
+    private LocationHierarchy hierarchy;
+
+    @Before
+    public void setup() {
+        // 1 Hospital (visit location) -> 2 Outpatient -> 4 Room; 1 -> 3 Inpatient; 5 Clinic (visit location, retired); 6 Orphan
+        hierarchy = new LocationHierarchy.Builder(VISIT_LOCATION)
+                .addLocation(1, null, "Hospital", false)
+                .addLocation(2, 1, "Outpatient", false)
+                .addLocation(3, 1, "Inpatient", false)
+                .addLocation(4, 2, "Room", false)
+                .addLocation(5, null, "Clinic", true)
+                .addLocation(6, null, "Orphan", false)
+                .addTag(1, VISIT_LOCATION)
+                .addTag(3, "Admission Location")
+                .addTag(5, VISIT_LOCATION)
+                .build();
+    }
+
+    @Test
+    public void shouldIndexSelfAndDescendants() {
+        assertThat(hierarchy.getSelfAndDescendantIds(1), containsInAnyOrder(1, 2, 3, 4));
+        assertThat(hierarchy.getSelfAndDescendantIds(2), containsInAnyOrder(2, 4));
+        assertThat(hierarchy.getSelfAndDescendantIds(4), containsInAnyOrder(4));
+        assertThat(hierarchy.getSelfAndDescendantIds(99), empty());
+    }
+
+    @Test
+    public void shouldIndexNearestLocationThatSupportsVisits() {
+        assertThat(hierarchy.getLocationThatSupportsVisitsId(1), is(1));
+        assertThat(hierarchy.getLocationThatSupportsVisitsId(4), is(1));
+        assertThat(hierarchy.getLocationThatSupportsVisitsId(6), nullValue());
+        assertThat(hierarchy.contains(6), is(true));
+        assertThat(hierarchy.contains(99), is(false));
+    }
+
+    @Test
+    public void shouldIndexTagsAndNonRetiredVisitLocations() {
+        assertThat(hierarchy.hasTag(3, "Admission Location"), is(true));
+        assertThat(hierarchy.hasTag(2, "Admission Location"), is(false));
+        assertThat(hierarchy.getLocationIdsThatSupportVisits(), is(Arrays.asList(1)));
+    }
+
+    @Test
+    public void shouldNotLoopForeverOnCyclicHierarchy() {
+        LocationHierarchy cyclic = new LocationHierarchy.Builder(VISIT_LOCATION)
+                .addLocation(1, 2, "A", false)
+                .addLocation(2, 1, "B", false)
+                .build();
+        assertThat(cyclic.getSelfAndDescendantIds(1), containsInAnyOrder(1, 2));
+        assertThat(cyclic.getLocationThatSupportsVisitsId(1), nullValue());
+    }
+
+}
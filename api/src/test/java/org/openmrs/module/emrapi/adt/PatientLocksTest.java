@@ -0,0 +1,104 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.adt;
+
+import org.junit.Test;
+import org.openmrs.Patient;
+import org.openmrs.api.APIException;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PatientLocksTest {
+
+    @Test
+    public void shouldRunWorkForDifferentPatientsInParallel() throws Exception {
+        final PatientLocks patientLocks = new PatientLocks();
+        final Patient first = new Patient();
+        Patient second = new Patient();
+        while (patientLocks.getLock(second) == patientLocks.getLock(first)) {
+            second = new Patient();
+        }
+        final Patient other = second;
+
+        final CountDownLatch bothInside = new CountDownLatch(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<Boolean> firstResult = executor.submit(() -> patientLocks.runLocked(first, () -> awaitOther(bothInside)));
+            Future<Boolean> secondResult = executor.submit(() -> patientLocks.runLocked(other, () -> awaitOther(bothInside)));
+            assertTrue(firstResult.get(10, TimeUnit.SECONDS));
+            assertTrue(secondResult.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldTimeOutWhileAnotherThreadHoldsTheLockForTheSamePatient() throws Exception {
+        final PatientLocks patientLocks = new PatientLocks(1, 50);
+        final Patient patient = new Patient();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(() -> patientLocks.runLocked(patient, () -> {
+                locked.countDown();
+                try {
+                    return release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }));
+            assertTrue(locked.await(10, TimeUnit.SECONDS));
+            try {
+                patientLocks.runLocked(patient, () -> true);
+                fail("expected the lock to time out");
+            } catch (APIException e) {
+                // expected
+            }
+            release.countDown();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldBeReentrantAndReleaseTheLockAfterwards() {
+        PatientLocks patientLocks = new PatientLocks();
+        final Patient patient = new Patient();
+        boolean result = patientLocks.runLocked(patient, () -> patientLocks.runLocked(patient, () -> true));
+        assertTrue(result);
+        assertThat(patientLocks.getLock(patient).isLocked(), is(false));
+    }
+
+    private boolean awaitOther(CountDownLatch bothInside) {
+        bothInside.countDown();
+        try {
+            return bothInside.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+}
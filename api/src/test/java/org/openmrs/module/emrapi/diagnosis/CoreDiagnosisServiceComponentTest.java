@@ -0,0 +1,110 @@
+package org.openmrs.module.emrapi.diagnosis;
+
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openmrs.CodedOrFreeText;
+import org.openmrs.Concept;
+import org.openmrs.ConditionVerificationStatus;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.PatientService;
+import org.openmrs.test.jupiter.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class CoreDiagnosisServiceComponentTest extends BaseModuleContextSensitiveTest {
+
+	private static final String DIAGNOSIS_DATASET = "DiagnosisDataset.xml";
+
+	@Autowired
+	CoreDiagnosisService coreDiagnosisService;
+
+	@Autowired
+	org.openmrs.api.DiagnosisService diagnosisService;
+
+	@Autowired
+	ConceptService conceptService;
+
+	@Autowired
+	EncounterService encounterService;
+
+	@Autowired
+	PatientService patientService;
+
+	private Patient patient;
+
+	private Encounter encounter;
+
+	private Concept malaria;
+
+	private Concept fever;
+
+	@BeforeEach
+	public void setUp() throws Exception {
+		executeDataSet(DIAGNOSIS_DATASET);
+		patient = patientService.getPatient(7);
+		encounter = encounterService.getEncounter(1);
+		malaria = conceptService.getConcept(116128);
+		fever = conceptService.getConcept(5497);
+	}
+
+	@Test
+	public void getUniqueDiagnoses_shouldReturnAPageOfTheMostRecentDiagnosisOfEachAnswer() {
+		saveDiagnosis(new CodedOrFreeText(malaria, null, null), "2020-01-01");
+		saveDiagnosis(new CodedOrFreeText(malaria, null, null), "2020-02-01");
+		saveDiagnosis(new CodedOrFreeText(null, null, "Headache"), "2020-01-15");
+		saveDiagnosis(new CodedOrFreeText(fever, null, null), "2019-06-01");
+
+		List<Diagnosis> diagnoses = coreDiagnosisService.getUniqueDiagnoses(patient, null);
+		assertThat(diagnoses.size(), is(3));
+		assertThat(diagnoses.get(0).getDiagnosis().getCodedAnswer(), is(malaria));
+		assertThat(diagnoses.get(0).getCertainty(), is(Diagnosis.Certainty.CONFIRMED));
+		assertThat(diagnoses.get(1).getDiagnosis().getNonCodedAnswer(), is("Headache"));
+		assertThat(diagnoses.get(2).getDiagnosis().getCodedAnswer(), is(fever));
+
+		List<Diagnosis> page = coreDiagnosisService.getUniqueDiagnoses(patient, null, 1, 1);
+		assertThat(page.size(), is(1));
+		assertThat(page.get(0).getDiagnosis().getNonCodedAnswer(), is("Headache"));
+
+		// the most recent diagnosis of each answer is picked from those since the date only
+		diagnoses = coreDiagnosisService.getUniqueDiagnoses(patient, parseYmd("2020-01-10"));
+		assertThat(diagnoses.size(), is(2));
+		assertThat(diagnoses.get(0).getDiagnosis().getCodedAnswer(), is(malaria));
+		assertThat(diagnoses.get(1).getDiagnosis().getCodedAnswer(), nullValue());
+	}
+
+	@Test
+	public void getUniqueDiagnoses_shouldIgnoreVoidedDiagnoses() {
+		saveDiagnosis(new CodedOrFreeText(malaria, null, null), "2020-01-01");
+		org.openmrs.Diagnosis voided = saveDiagnosis(new CodedOrFreeText(malaria, null, null), "2020-02-01");
+		diagnosisService.voidDiagnosis(voided, "test");
+
+		List<Diagnosis> diagnoses = coreDiagnosisService.getUniqueDiagnoses(patient, parseYmd("2020-01-10"));
+		assertThat(diagnoses.size(), is(0));
+		assertThat(coreDiagnosisService.getUniqueDiagnoses(patient, null).size(), is(1));
+	}
+
+	private org.openmrs.Diagnosis saveDiagnosis(CodedOrFreeText answer, String dateCreated) {
+		org.openmrs.Diagnosis diagnosis = new org.openmrs.Diagnosis();
+		diagnosis.setPatient(patient);
+		diagnosis.setEncounter(encounter);
+		diagnosis.setDiagnosis(answer);
+		diagnosis.setCertainty(ConditionVerificationStatus.CONFIRMED);
+		diagnosis.setRank(1);
+		diagnosis.setDateCreated(parseYmd(dateCreated));
+		return diagnosisService.save(diagnosis);
+	}
+
+	private Date parseYmd(String ymd) {
+		return DateTime.parse(ymd).toDate();
+	}
+}
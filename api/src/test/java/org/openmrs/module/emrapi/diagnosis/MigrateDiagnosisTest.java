@@ -2,18 +2,22 @@ package org.openmrs.module.emrapi.diagnosis;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.openmrs.Concept;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
 import org.openmrs.api.context.Context;
+import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
 import org.openmrs.module.emrapi.test.builder.ObsBuilder;
 import org.openmrs.test.jupiter.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
+import java.util.Date;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -59,6 +63,16 @@ public class MigrateDiagnosisTest extends BaseModuleContextSensitiveTest {
 		assertEquals(2, patientIds.size());
 	}
 
+	@Test
+	public void getAllPatientsWithDiagnosis_shouldNotReturnPatientsWhoseOnlyDiagnosesHaveNoEncounter() {
+		Patient patient = patientService.getPatient(8);
+		new OldDiagnosisBuilder(diagnosisMetadata).buildDiagnosis(patient, "2013-09-10", Diagnosis.Order.PRIMARY,
+				Diagnosis.Certainty.CONFIRMED, "non-coded pain", null).save();
+		
+		assertFalse(obsGroupDiagnosisService.getAllPatientsWithDiagnosis(diagnosisMetadata).contains(8));
+		assertFalse(new MigrateDiagnosis().migrate(diagnosisMetadata));
+	}
+	
 	@Test
 	public void migrate_shouldVoidEmrapiDiagnosisAndCreateAnewCoreDiagnosis() {
 		Patient patient = patientService.getPatient(7);
@@ -111,6 +125,52 @@ public class MigrateDiagnosisTest extends BaseModuleContextSensitiveTest {
 		assertEquals(1, diagnosisService.getDiagnoses(patient, null).size());
 	}
 	
+	@Test
+	public void migrate_shouldOnlyMigrateDiagnosesLeftByAnEarlierMigration() {
+		Patient patient = patientService.getPatient(7);
+		OldDiagnosisBuilder oldDiagnosisBuilder = new OldDiagnosisBuilder(diagnosisMetadata);
+		oldDiagnosisBuilder.buildDiagnosis(patient, "2013-09-10", Diagnosis.Order.SECONDARY,
+				Diagnosis.Certainty.CONFIRMED, "non-coded pain", encounterService.getEncounter(1)).save();
+		assertTrue(new MigrateDiagnosis().migrate(diagnosisMetadata));
+		assertEquals(1, diagnosisService.getDiagnoses(patient, null).size());
+		
+		oldDiagnosisBuilder.buildDiagnosis(patient, "2013-08-10", Diagnosis.Order.PRIMARY,
+				Diagnosis.Certainty.PRESUMED, "non-coded disease", encounterService.getEncounter(1)).save();
+		assertTrue(new MigrateDiagnosis().migrate(diagnosisMetadata));
+		assertEquals(2, diagnosisService.getDiagnoses(patient, null).size());
+		
+		assertFalse(new MigrateDiagnosis().migrate(diagnosisMetadata));
+		assertEquals(2, diagnosisService.getDiagnoses(patient, null).size());
+	}
+	
+	@Test
+	public void migrate_shouldMigrateDiagnosesOfSuppressedConcepts() {
+		Patient patient = patientService.getPatient(7);
+		Concept malaria = conceptService.getConcept(116128);
+		Context.getAdministrationService().saveGlobalProperty(
+				new GlobalProperty(EmrApiConstants.GP_SUPPRESSED_DIAGNOSIS_CONCEPTS, malaria.getUuid()));
+		Obs obs = new OldDiagnosisBuilder(diagnosisMetadata).buildDiagnosis(patient, "2013-09-10", Diagnosis.Order.PRIMARY,
+				Diagnosis.Certainty.CONFIRMED, malaria, encounterService.getEncounter(1)).save().get();
+		
+		assertTrue(new MigrateDiagnosis().migrate(diagnosisMetadata));
+		
+		assertEquals(1, diagnosisService.getDiagnoses(patient, null).size());
+		assertTrue(obs.getVoided());
+	}
+	
+	@Test
+	public void migrate_shouldLeaveDiagnosisObsGroupsThatCannotBeInterpretedAsDiagnoses() {
+		Patient patient = patientService.getPatient(7);
+		Obs obs = new ObsBuilder().setPerson(patient).setEncounter(encounterService.getEncounter(1))
+				.setObsDatetime(new Date()).setConcept(diagnosisMetadata.getDiagnosisSetConcept())
+				.addMember(conceptService.getConcept(3), "Some Value").save().get();
+		
+		assertFalse(new MigrateDiagnosis().migrate(diagnosisMetadata));
+		
+		assertEquals(0, diagnosisService.getDiagnoses(patient, null).size());
+		assertFalse(obs.getVoided());
+	}
+	
 	@Test
 	public void migrate_shouldReturnFalseIfNoDiagnosisWasMigrated() {
 		Patient patient = patientService.getPatient(7);
@@ -7,20 +7,26 @@ import org.junit.jupiter.api.Test;
 import org.openmrs.Concept;
 import org.openmrs.ConditionVerificationStatus;
 import org.openmrs.Encounter;
+import org.openmrs.GlobalProperty;
 import org.openmrs.Obs;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
+import org.openmrs.api.AdministrationService;
 import org.openmrs.api.ConceptService;
 import org.openmrs.api.EncounterService;
 import org.openmrs.api.PatientService;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
 import org.openmrs.contrib.testdata.TestDataManager;
+import org.openmrs.module.emrapi.EmrApiConstants;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
+import org.openmrs.module.emrapi.test.QueryCounter;
 import org.openmrs.module.emrapi.test.builder.ObsBuilder;
 import org.openmrs.test.jupiter.BaseModuleContextSensitiveTest;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
@@ -30,6 +36,9 @@ import java.util.Set;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.notNullValue;
 
@@ -54,6 +63,12 @@ public class ObsGroupDiagnosisServiceComponentTest extends BaseModuleContextSens
 	@Autowired
 	TestDataManager testDataManager;
 
+	@Autowired
+	DbSessionFactory dbSessionFactory;
+
+	@Autowired
+	AdministrationService administrationService;
+
 	DiagnosisMetadata dmd;
 
 
@@ -186,6 +201,43 @@ public class ObsGroupDiagnosisServiceComponentTest extends BaseModuleContextSens
         assertThat(diagnoses.get(0).getExistingObs(), is(mostRecentObs));
 	}
 
+	@Test
+	public void getUniqueDiagnoses_shouldReturnAPageOfTheMostRecentDiagnosisOfEachAnswer() {
+		Patient patient = patientService.getPatient(2);
+		Concept malaria = conceptService.getConcept(11);
+		Obs oldestObs = buildDiagnosis(patient, "2013-06-10", Diagnosis.Order.PRIMARY, Diagnosis.Certainty.PRESUMED, "non-coded headache").save().get();
+		Obs olderPainObs = buildDiagnosis(patient, "2013-07-10", Diagnosis.Order.PRIMARY, Diagnosis.Certainty.PRESUMED, "non-coded pain").save().get();
+		Obs malariaObs = buildDiagnosis(patient, "2013-08-10", Diagnosis.Order.PRIMARY, Diagnosis.Certainty.PRESUMED, malaria).save().get();
+		Obs mostRecentObs = buildDiagnosis(patient, "2013-09-10", Diagnosis.Order.PRIMARY, Diagnosis.Certainty.PRESUMED, "non-coded pain").save().get();
+
+		assertThat(diagnosisService.getUniqueDiagnoses(patient, parseYmd("2013-01-01"), null, null),
+				contains(hasObs(mostRecentObs), hasObs(malariaObs), hasObs(oldestObs)));
+		assertThat(diagnosisService.getUniqueDiagnoses(patient, parseYmd("2013-01-01"), 1, 1), contains(hasObs(malariaObs)));
+		assertThat(diagnosisService.getDiagnoses(patient, parseYmd("2013-01-01"), 1, 2),
+				contains(hasObs(malariaObs), hasObs(olderPainObs)));
+	}
+
+	@Test
+	public void getConfirmedPrimaryDiagnoses_shouldReturnOnlyDiagnosesThatAreBothConfirmedAndPrimary() {
+		Patient patient = patientService.getPatient(2);
+		Concept malaria = conceptService.getConcept(11);
+		String date = "2013-08-10";
+		Visit visit = testDataManager.visit().patient(patient).started(date).stopped(parseYmd(date)).visitType(1).save();
+		Visit visitWithoutDiagnoses = testDataManager.visit().patient(patient).started("2013-08-11").visitType(1).save();
+		Encounter encounter = testDataManager.encounter().visit(visit).patient(patient).encounterDatetime(date).encounterType(1).save();
+		Obs confirmedPrimary = buildDiagnosis(patient, date, Diagnosis.Order.PRIMARY, Diagnosis.Certainty.CONFIRMED, malaria).save().get();
+		encounter.addObs(confirmedPrimary);
+		encounter.addObs(buildDiagnosis(patient, date, Diagnosis.Order.PRIMARY, Diagnosis.Certainty.PRESUMED, "Headache").save().get());
+		encounter.addObs(buildDiagnosis(patient, date, Diagnosis.Order.SECONDARY, Diagnosis.Certainty.CONFIRMED, "Pain").save().get());
+		encounterService.saveEncounter(encounter);
+
+		assertThat(diagnosisService.getConfirmedPrimaryDiagnoses(visit, dmd), contains(confirmedPrimary));
+
+		Map<Visit, List<Obs>> diagnoses = diagnosisService.getConfirmedPrimaryDiagnoses(Arrays.asList(visit, visitWithoutDiagnoses), dmd);
+		assertThat(diagnoses.get(visit), contains(confirmedPrimary));
+		assertThat(diagnoses.get(visitWithoutDiagnoses), is(empty()));
+	}
+
 	@Test
 	public void getDiagnoses_shouldReturnDiagnosesMappedToCoreDiagnosesByVisit() {
 		Patient patient = patientService.getPatient(2);
@@ -213,6 +265,81 @@ public class ObsGroupDiagnosisServiceComponentTest extends BaseModuleContextSens
 		assertThat(diagnoses.get(1).getRank(), is(2));
 	}
 
+	@Test
+	public void shouldNotQueryForDiagnosisMetadataForEachDiagnosisUntilConceptsChange() {
+		Patient patient = patientService.getPatient(2);
+		String date = "2013-08-10";
+		Visit visit = testDataManager.visit().patient(patient).started(date).visitType(1).save();
+		Encounter encounter = testDataManager.encounter().visit(visit).patient(patient).encounterDatetime(date).encounterType(1).save();
+		for (int i = 0; i < 20; i++) {
+			encounter.addObs(buildDiagnosis(patient, date, Diagnosis.Order.SECONDARY, Diagnosis.Certainty.PRESUMED, "Diagnosis " + i).save().get());
+		}
+		encounterService.saveEncounter(encounter);
+		List<Diagnosis> diagnoses = diagnosisService.getDiagnoses(patient, parseYmd(date));
+		assertThat(diagnoses.size(), is(20));
+
+		try (QueryCounter queryCounter = new QueryCounter(dbSessionFactory)) {
+			DiagnosisMetadata diagnosisMetadata = emrApiProperties.getDiagnosisMetadata();
+
+			// e.g. saving an encounter checks each of its diagnoses against the ones already on the encounter
+			queryCounter.reset();
+			for (Diagnosis diagnosis : diagnoses) {
+				assertThat(diagnosisService.hasDiagnosis(encounter, diagnosis), is(true));
+				assertThat(emrApiProperties.getDiagnosisMetadata(), sameInstance(diagnosisMetadata));
+			}
+			assertThat(queryCounter.getCount(), is(0L));
+
+			// changing a concept makes it be resolved again
+			conceptService.saveConcept(diagnosisMetadata.getDiagnosisSetConcept());
+			dbSessionFactory.getCurrentSession().flush();
+			assertThat(emrApiProperties.getDiagnosisMetadata(), not(sameInstance(diagnosisMetadata)));
+		}
+	}
+
+	@Test
+	public void getDiagnoses_shouldExcludeSuppressedDiagnosesAndPickUpChangesToTheGlobalProperty() {
+		Patient patient = patientService.getPatient(2);
+		Concept malaria = conceptService.getConcept(11);
+		buildDiagnosis(patient, "2013-08-10", Diagnosis.Order.PRIMARY, Diagnosis.Certainty.CONFIRMED, malaria).save();
+		buildDiagnosis(patient, "2013-08-10", Diagnosis.Order.SECONDARY, Diagnosis.Certainty.PRESUMED, "Headache").save();
+		assertThat(diagnosisService.getDiagnoses(patient, parseYmd("2013-08-10")).size(), is(2));
+
+		// the module activator registers the service as a listener, but it isn't started in tests
+		GlobalProperty suppressed = administrationService.saveGlobalProperty(
+				new GlobalProperty(EmrApiConstants.GP_SUPPRESSED_DIAGNOSIS_CONCEPTS, malaria.getUuid()));
+		diagnosisService.globalPropertyChanged(suppressed);
+
+		List<Diagnosis> diagnoses = diagnosisService.getDiagnoses(patient, parseYmd("2013-08-10"));
+		assertThat(diagnoses.size(), is(1));
+		assertThat(diagnoses.get(0).getDiagnosis().getNonCodedAnswer(), is("Headache"));
+	}
+
+	@Test
+	public void getDiagnoses_shouldNotLoadTheMembersOfEachDiagnosisSeparately() {
+		Patient patient = patientService.getPatient(2);
+		String date = "2013-08-10";
+		Visit visit1 = testDataManager.visit().patient(patient).started(date).stopped(parseYmd(date)).visitType(1).save();
+		Visit visit2 = testDataManager.visit().patient(patient).started("2013-08-11").visitType(1).save();
+		for (Visit visit : Arrays.asList(visit1, visit2)) {
+			Encounter encounter = testDataManager.encounter().visit(visit).patient(patient).encounterDatetime(visit.getStartDatetime()).encounterType(1).save();
+			for (int i = 0; i < 20; i++) {
+				encounter.addObs(buildDiagnosis(patient, date, Diagnosis.Order.SECONDARY, Diagnosis.Certainty.PRESUMED, "Diagnosis " + i).save().get());
+			}
+			encounterService.saveEncounter(encounter);
+		}
+		diagnosisService.getDiagnoses(Arrays.asList(visit1, visit2));
+		dbSessionFactory.getCurrentSession().flush();
+		dbSessionFactory.getCurrentSession().clear();
+
+		try (QueryCounter queryCounter = new QueryCounter(dbSessionFactory)) {
+			Map<Visit, List<org.openmrs.Diagnosis>> diagnoses = diagnosisService.getDiagnoses(Arrays.asList(visit1, visit2));
+			assertThat(diagnoses.get(visit1).size(), is(20));
+			assertThat(diagnoses.get(visit2).size(), is(20));
+			// loading the members of each of the 40 obs groups separately would take at least 40 queries
+			assertThat(queryCounter.getCount(), lessThan(20L));
+		}
+	}
+
 	public static Matcher<Diagnosis> hasObs(final Obs obs) {
 		return new FeatureMatcher<Diagnosis, Obs>(is(obs), "obs", "obs") {
 			@Override
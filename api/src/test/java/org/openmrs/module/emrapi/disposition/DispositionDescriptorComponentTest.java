@@ -2,14 +2,58 @@ package org.openmrs.module.emrapi.disposition;
 
 
 import org.junit.jupiter.api.Test;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
+import org.openmrs.module.emrapi.test.QueryCounter;
 import org.openmrs.test.jupiter.BaseModuleContextSensitiveTest;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
 
 public class DispositionDescriptorComponentTest extends BaseModuleContextSensitiveTest {
 
+    @Autowired
+    private ConceptService conceptService;
+
+    @Autowired
+    private DispositionService dispositionService;
+
+    @Autowired
+    private DbSessionFactory dbSessionFactory;
+
     @Test
     public void setupNewDispositionDescriptor() {
         new DispositionDescriptor();
 
     }
 
+    @Test
+    public void shouldOnlyQueryForDispositionDescriptorConceptsUntilConceptsChange() {
+        ContextSensitiveMetadataTestUtils.setupDispositionDescriptor(conceptService, dispositionService);
+        try (QueryCounter queryCounter = new QueryCounter(dbSessionFactory)) {
+            // resolving the descriptor looks up each of its concepts by mapping
+            dispositionService.refreshDispositionDescriptor();
+            queryCounter.reset();
+            DispositionDescriptor descriptor = dispositionService.getDispositionDescriptor();
+            assertThat(queryCounter.getCount(), greaterThan(0L));
+
+            // e.g. rendering a visit with many dispositions asks for the descriptor once per obs
+            queryCounter.reset();
+            for (int i = 0; i < 20; i++) {
+                assertThat(dispositionService.getDispositionDescriptor(), sameInstance(descriptor));
+            }
+            assertThat(queryCounter.getCount(), equalTo(0L));
+
+            // changing a concept makes it be resolved again
+            conceptService.saveConcept(descriptor.getDispositionConcept());
+            dbSessionFactory.getCurrentSession().flush();
+            assertThat(dispositionService.getDispositionDescriptor(), not(sameInstance(descriptor)));
+        }
+    }
+
 }
@@ -9,6 +9,7 @@ import org.openmrs.EncounterType;
 import org.openmrs.Obs;
 import org.openmrs.api.ConceptService;
 import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.concept.ConceptChangeTracker;
 import org.openmrs.module.emrapi.concept.EmrConceptService;
 import org.openmrs.module.emrapi.test.MockMetadataTestUtil;
 import org.openmrs.module.emrapi.visit.VisitDomainWrapper;
@@ -22,6 +23,8 @@ import java.util.Map;
 
 import static java.util.Arrays.asList;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.notNullValue;
@@ -31,6 +34,8 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class DispositionServiceTest {
@@ -139,6 +144,17 @@ public class DispositionServiceTest {
         assertThat(encounterType.getExcludedEncounterTypes(), contains("COVID-19"));
     }
 
+    @Test
+    public void shouldParseDispositionConfigOnceUntilConfigChanges() throws IOException {
+        List<Disposition> dispositions = dispositionService.getDispositions();
+        assertThat(dispositionService.getDispositions(), sameInstance(dispositions));
+        assertThat(dispositionService.getDispositionByUniqueId("d2d89630-b698-11e2-9e96-0800200c9a66"), sameInstance(dispositions.get(0)));
+
+        dispositionService.setDispositionConfig("specifiedDispositionConfig.json");
+        assertThat(dispositionService.getDispositions(), not(sameInstance(dispositions)));
+        assertEquals(7, dispositionService.getDispositions().size());
+    }
+
     @Test
     public void shouldGetDispositionByType() throws Exception {
 
@@ -257,6 +273,31 @@ public class DispositionServiceTest {
         assertThat(dispositions.get(3).getUuid(), is("38c15c7f-0718-4fd9-8dc5-2027e267faac"));
     }
 
+    @Test
+    public void shouldGetSameValidDispositionsForEncounterTypeOnRepeatedCallsUntilItIsRenamed() throws Exception {
+        dispositionService.setDispositionConfig("specifiedDispositionConfig.json");
+
+        VisitDomainWrapper visitDomainWrapper = mock(VisitDomainWrapper.class);
+        when(visitDomainWrapper.isActive()).thenReturn(true);
+        when(visitDomainWrapper.isAdmitted()).thenReturn(false);
+
+        EncounterType encounterType = new EncounterType(1);
+        encounterType.setName("COVID-19");
+
+        List<Disposition> dispositions = dispositionService.getValidDispositions(visitDomainWrapper, encounterType);
+        assertThat(dispositions.size(), is(4));
+        assertThat(dispositions.get(3).getUuid(), is("38c15c7f-0718-4fd9-8dc5-2027e267faac"));
+
+        // callers get their own copy of the list
+        dispositions.clear();
+        assertThat(dispositionService.getValidDispositions(visitDomainWrapper, encounterType).size(), is(4));
+
+        encounterType.setName("Consult");
+        dispositions = dispositionService.getValidDispositions(visitDomainWrapper, encounterType);
+        assertThat(dispositions.size(), is(4));
+        assertThat(dispositions.get(3).getUuid(), is("9e5558bb-9960-4585-af66-225350b1e7cf"));
+    }
+
     @Test
     public void shouldGetDispositionByObs()  throws IOException {
 
@@ -271,6 +312,29 @@ public class DispositionServiceTest {
         assertThat(disposition, is(getDeathDisposition()));
     }
 
+    @Test
+    public void shouldResolveDispositionConceptsOnceUntilConceptsChange() throws IOException {
+        ConceptChangeTracker conceptChangeTracker = new ConceptChangeTracker();
+        dispositionService.setConceptChangeTracker(conceptChangeTracker);
+
+        Concept deathDispositionConcept = new Concept(1001);
+        Obs dispositionObs = new Obs();
+        dispositionObs.setValueCoded(deathDispositionConcept);
+        when(emrConceptService.getConcept("org.openmrs.module.emrapi:Death")).thenReturn(deathDispositionConcept);
+
+        assertThat(dispositionService.getDispositionFromObs(dispositionObs), is(getDeathDisposition()));
+        assertThat(dispositionService.getDispositionFromObs(dispositionObs), is(getDeathDisposition()));
+        verify(emrConceptService, times(1)).getConcept("org.openmrs.module.emrapi:Death");
+
+        dispositionObs.setValueCoded(new Concept(1002));
+        assertNull(dispositionService.getDispositionFromObs(dispositionObs));
+
+        conceptChangeTracker.conceptsChanged();
+        dispositionObs.setValueCoded(deathDispositionConcept);
+        assertThat(dispositionService.getDispositionFromObs(dispositionObs), is(getDeathDisposition()));
+        verify(emrConceptService, times(2)).getConcept("org.openmrs.module.emrapi:Death");
+    }
+
     @Test
     public void shouldGetDispositionByObsGroup() throws IOException {
 
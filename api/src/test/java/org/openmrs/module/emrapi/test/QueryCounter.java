@@ -0,0 +1,57 @@
+/*
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.test;
+
+import org.hibernate.stat.Statistics;
+import org.openmrs.api.db.hibernate.DbSessionFactory;
+
+/**
+ * Counts the SQL statements prepared by Hibernate, for tests that check that something is not looked up again, or not
+ * looked up once per row. Statistics are switched on when this is created, and restored to how they were when it is
+ * closed, so use it in a try-with-resources block.
+ */
+public class QueryCounter implements AutoCloseable {
+
+    private final Statistics statistics;
+
+    private final boolean statisticsEnabled;
+
+    public QueryCounter(DbSessionFactory dbSessionFactory) {
+        statistics = dbSessionFactory.getHibernateSessionFactory().getStatistics();
+        statisticsEnabled = statistics.isStatisticsEnabled();
+        statistics.setStatisticsEnabled(true);
+        statistics.clear();
+    }
+
+    /**
+     * Starts counting again from zero
+     */
+    public void reset() {
+        statistics.clear();
+    }
+
+    /**
+     * @return the number of statements prepared since this was created or last reset
+     */
+    public long getCount() {
+        return statistics.getPrepareStatementCount();
+    }
+
+    @Override
+    public void close() {
+        statistics.setStatisticsEnabled(statisticsEnabled);
+    }
+
+}
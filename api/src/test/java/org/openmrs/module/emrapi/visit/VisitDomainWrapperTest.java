@@ -44,8 +44,11 @@ import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static uk.co.it.modular.hamcrest.date.DateMatchers.within;
@@ -672,6 +675,38 @@ public class VisitDomainWrapperTest {
         verify(dispositionService).getDispositionFromObsGroup(mostRecentDispositionGroup);
     }
 
+    @Test
+    public void shouldLookUpTheMostRecentDispositionOfASavedVisitEachTime() throws Exception {
+        Encounter encounter = new Encounter(1);
+        encounter.setEncounterDatetime(new DateTime(2012, 12, 12, 12, 12).toDate());
+        when(visit.getVisitId()).thenReturn(1);
+        when(visit.getEncounters()).thenReturn(Collections.singleton(encounter));
+
+        Disposition disposition = new Disposition();
+        Disposition laterDisposition = new Disposition();
+        when(dispositionService.getMostRecentDispositionsByVisitId(Collections.singleton(1)))
+                .thenReturn(Collections.singletonMap(1, disposition))
+                .thenReturn(Collections.singletonMap(1, laterDisposition));
+
+        assertThat(visitDomainWrapper.getMostRecentDisposition(), is(disposition));
+        assertThat(visitDomainWrapper.getMostRecentDisposition(), is(laterDisposition));
+        verify(dispositionService, times(2)).getMostRecentDispositionsByVisitId(Collections.singleton(1));
+    }
+
+    @Test
+    public void shouldNotLookUpTheMostRecentDispositionOnceItHasBeenSet() throws Exception {
+        Encounter encounter = new Encounter(1);
+        encounter.setEncounterDatetime(new DateTime(2012, 12, 12, 12, 12).toDate());
+        when(visit.getVisitId()).thenReturn(1);
+        when(visit.getEncounters()).thenReturn(Collections.singleton(encounter));
+
+        Disposition disposition = new Disposition();
+        visitDomainWrapper.setMostRecentDisposition(disposition);
+
+        assertThat(visitDomainWrapper.getMostRecentDisposition(), is(disposition));
+        verify(dispositionService, never()).getMostRecentDispositionsByVisitId(anyCollection());
+    }
+
     @Test
     public void shouldReturnAllPrimaryDiagnosesFromVisit() {
 
@@ -24,14 +24,21 @@ public class DiagnosisController extends BaseRestController {
 	@RequestMapping(method = RequestMethod.GET, value = "/patientdiagnoses")
 	@ResponseBody
 	public List<Diagnosis> getDiagnosesList(@RequestParam("patient") Patient patient,
-											@RequestParam(value = "fromDate", required = false) Date fromDate) {
-		return diagnosisService.getDiagnoses(patient, fromDate);
+											@RequestParam(value = "fromDate", required = false) Date fromDate,
+											@RequestParam(value = "startIndex", required = false) Integer startIndex,
+											@RequestParam(value = "limit", required = false) Integer limit) {
+		if (startIndex == null && limit == null) {
+			return diagnosisService.getDiagnoses(patient, fromDate);
+		}
+		return diagnosisService.getDiagnoses(patient, fromDate, startIndex, limit);
 	}
 
 	@RequestMapping(method = RequestMethod.GET, value = "/patientuniquediagnoses")
 	@ResponseBody
 	public List<Diagnosis> getUniqueDiagnosesList(@RequestParam("patient") Patient patient,
-			                                      @RequestParam(value = "fromDate", required = false) Date fromDate) {
-		return diagnosisService.getUniqueDiagnoses(patient, fromDate);
+			                                      @RequestParam(value = "fromDate", required = false) Date fromDate,
+			                                      @RequestParam(value = "startIndex", required = false) Integer startIndex,
+			                                      @RequestParam(value = "limit", required = false) Integer limit) {
+		return diagnosisService.getUniqueDiagnoses(patient, fromDate, startIndex, limit);
 	}
 }
@@ -4,14 +4,14 @@ import org.openmrs.Location;
 import org.openmrs.Patient;
 import org.openmrs.Visit;
 import org.openmrs.module.emrapi.adt.AdtService;
-import org.openmrs.module.emrapi.adt.InpatientAdmission;
 import org.openmrs.module.emrapi.adt.InpatientAdmissionSearchCriteria;
+import org.openmrs.module.emrapi.adt.InpatientAdmissionSearchResult;
 import org.openmrs.module.emrapi.rest.converter.InpatientAdmissionConverter;
 import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.module.webservices.rest.web.RequestContext;
 import org.openmrs.module.webservices.rest.web.RestUtil;
 import org.openmrs.module.webservices.rest.web.representation.Representation;
-import org.openmrs.module.webservices.rest.web.resource.impl.NeedsPaging;
+import org.openmrs.module.webservices.rest.web.resource.impl.AlreadyPaged;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -54,7 +54,19 @@ public class InpatientAdmissionController {
         if(visits != null) {
             criteria.setVisitIds(visits.stream().map(Visit::getId).collect(Collectors.toList()));
         }
-        List<InpatientAdmission> requests = adtService.getInpatientAdmissions(criteria);
-        return new NeedsPaging<>(requests, context).toSimpleObject(new InpatientAdmissionConverter());
+
+        Integer startIndex = context.getStartIndex() == null ? 0 : context.getStartIndex();
+        Integer limit = context.getLimit();
+        criteria.setStartIndex(startIndex);
+        criteria.setLimit(limit);
+
+        InpatientAdmissionSearchResult result = adtService.getInpatientAdmissionSearchResult(criteria);
+
+        boolean hasMoreResults = false;
+        if (limit != null) {
+            hasMoreResults = startIndex + result.getAdmissions().size() < result.getTotalCount();
+        }
+        return new AlreadyPaged<>(context, result.getAdmissions(), hasMoreResults, result.getTotalCount())
+                .toSimpleObject(new InpatientAdmissionConverter());
     }
 }
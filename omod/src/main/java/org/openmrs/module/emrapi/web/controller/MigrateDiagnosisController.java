@@ -6,12 +6,16 @@ import javax.servlet.http.HttpSession;
 import org.openmrs.module.ModuleUtil;
 import org.openmrs.module.emrapi.EmrApiProperties;
 import org.openmrs.module.emrapi.diagnosis.DiagnosisMetadata;
+import org.openmrs.module.emrapi.diagnosis.DiagnosisMigrationProgress;
+import org.openmrs.module.webservices.rest.SimpleObject;
 import org.openmrs.util.OpenmrsConstants;
 import org.openmrs.web.WebConstants;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Controller;
+import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
 
 import org.openmrs.module.emrapi.diagnosis.MigrateDiagnosis;
 
@@ -22,7 +26,8 @@ public class MigrateDiagnosisController {
 	EmrApiProperties emrApiProps;
 	
 	@RequestMapping(value = "module/emrapi/encounterDiagnosisMigrationDashboard.form", method = RequestMethod.GET)
-	public String getEncounterDiagnosisMigrationView() {
+	public String getEncounterDiagnosisMigrationView(Model model) {
+		model.addAttribute("migrationProgress", MigrateDiagnosis.getBackgroundMigration());
 		return "module/emrapi/encounterDiagnosisMigrationDashboard";
 	}
 	
@@ -31,8 +36,10 @@ public class MigrateDiagnosisController {
 	public String doEncounterDiagnosisMigration(HttpSession session, HttpServletRequest request) {
 		DiagnosisMetadata diagnosisMetadata = emrApiProps.getDiagnosisMetadata();
 		if (ModuleUtil.compareVersion(OpenmrsConstants.OPENMRS_VERSION, "2.2.0") >= 0) {
-			if (new MigrateDiagnosis().migrate(diagnosisMetadata)) {
-				session.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "emrapi.migrateDiagnosis.success.name");
+			DiagnosisMigrationProgress progress = MigrateDiagnosis.startInBackground(diagnosisMetadata,
+			    MigrateDiagnosis.MAX_BACKGROUND_THREADS);
+			if (progress.getTotalPatients() > 0) {
+				session.setAttribute(WebConstants.OPENMRS_MSG_ATTR, "emrapi.migrateDiagnosis.started.message");
 			} else {
 				session.setAttribute(WebConstants.OPENMRS_ERROR_ATTR, "emrapi.migrateDiagnosis.migration.error.message");
 			}
@@ -42,4 +49,28 @@ public class MigrateDiagnosisController {
 		return "redirect:encounterDiagnosisMigrationDashboard.form";
 	}
 	
+	/**
+	 * Gets the progress of the last migration started in the background, with its throughput and estimated time
+	 * remaining, or an empty object if none has been started since the server started
+	 */
+	@RequestMapping(value = "/rest/**/emrapi/diagnosisMigration", method = RequestMethod.GET)
+	@ResponseBody
+	public SimpleObject getEncounterDiagnosisMigrationProgress() {
+		SimpleObject ret = new SimpleObject();
+		DiagnosisMigrationProgress progress = MigrateDiagnosis.getBackgroundMigration();
+		if (progress != null) {
+			ret.add("status", progress.getStatus().name());
+			ret.add("totalPatients", progress.getTotalPatients());
+			ret.add("processedPatients", progress.getProcessedPatients());
+			ret.add("failedPatients", progress.getFailedPatients());
+			ret.add("migratedDiagnoses", progress.getMigratedDiagnoses());
+			ret.add("failedDiagnoses", progress.getFailedDiagnoses());
+			ret.add("startTime", progress.getStartTime());
+			ret.add("endTime", progress.getEndTime());
+			ret.add("patientsPerSecond", progress.getPatientsPerSecond());
+			ret.add("estimatedSecondsRemaining", progress.getEstimatedSecondsRemaining());
+		}
+		return ret;
+	}
+	
 }
@@ -0,0 +1,113 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.web.controller;
+
+import org.openmrs.Location;
+import org.openmrs.Patient;
+import org.openmrs.api.LocationService;
+import org.openmrs.api.PatientService;
+import org.openmrs.api.context.Context;
+import org.openmrs.module.emrapi.adt.AdtService;
+import org.openmrs.module.emrapi.adt.RetrospectiveVisitRequest;
+import org.openmrs.module.emrapi.adt.RetrospectiveVisitResult;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.module.webservices.rest.web.ConversionUtil;
+import org.openmrs.module.webservices.rest.web.v1_0.controller.BaseRestController;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates many retrospective visits in one request, e.g. when back-filling paper records. The body is a list of
+ * objects with patient and location uuids and startDatetime and (optional) stopDatetime; the response has one result
+ * per row, in the same order, with either the uuid of the created visit or the reason it was not created.
+ */
+@Controller
+public class RetrospectiveVisitController extends BaseRestController {
+
+    @Autowired
+    private AdtService adtService;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private LocationService locationService;
+
+    @RequestMapping(method = RequestMethod.POST, value = "/rest/**/emrapi/retrospectiveVisits")
+    @ResponseBody
+    public SimpleObject createRetrospectiveVisits(@RequestBody List<Map<String, Object>> rows) {
+        // the same patients and locations tend to appear on many rows, so only look each one up once
+        Map<String, Patient> patients = new HashMap<String, Patient>();
+        Map<String, Location> locations = new HashMap<String, Location>();
+
+        List<RetrospectiveVisitRequest> requests = new ArrayList<RetrospectiveVisitRequest>();
+        for (Map<String, Object> row : rows) {
+            RetrospectiveVisitRequest request = new RetrospectiveVisitRequest();
+            String patientUuid = toUuid(row.get("patient"));
+            if (patientUuid != null) {
+                if (!patients.containsKey(patientUuid)) {
+                    patients.put(patientUuid, patientService.getPatientByUuid(patientUuid));
+                }
+                request.setPatient(patients.get(patientUuid));
+            }
+            String locationUuid = toUuid(row.get("location"));
+            if (locationUuid != null) {
+                if (!locations.containsKey(locationUuid)) {
+                    locations.put(locationUuid, locationService.getLocationByUuid(locationUuid));
+                }
+                request.setLocation(locations.get(locationUuid));
+            }
+            request.setStartDatetime(toDate(row.get("startDatetime")));
+            request.setStopDatetime(toDate(row.get("stopDatetime")));
+            requests.add(request);
+        }
+
+        List<SimpleObject> results = new ArrayList<SimpleObject>();
+        for (RetrospectiveVisitResult result : adtService.createRetrospectiveVisits(requests)) {
+            SimpleObject o = new SimpleObject();
+            o.add("created", result.isCreated());
+            o.add("visit", result.isCreated() ? result.getVisit().getUuid() : null);
+            o.add("error", result.getErrorCode());
+            o.add("message", result.getErrorCode() == null ? null : Context.getMessageSourceService().getMessage(result.getErrorCode()));
+            results.add(o);
+        }
+        return new SimpleObject().add("results", results);
+    }
+
+    /**
+     * @return the uuid, given either as a string or as an object with a uuid property, or null for anything else, in
+     * which case the row is reported as missing its patient or location
+     */
+    private String toUuid(Object value) {
+        if (value instanceof Map) {
+            value = ((Map<?, ?>) value).get("uuid");
+        }
+        return value instanceof String ? (String) value : null;
+    }
+
+    private Date toDate(Object value) {
+        return value == null ? null : (Date) ConversionUtil.convert(value, Date.class);
+    }
+}
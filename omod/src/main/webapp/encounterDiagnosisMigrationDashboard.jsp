@@ -25,4 +25,19 @@
 	
 </fieldset>
 
+<c:if test="${not empty migrationProgress}">
+	<br>
+	<fieldset>
+		<legend><spring:message code="emrapi.migrateDiagnosis.progress.name"/></legend>
+		<table>
+			<tr><td><spring:message code="emrapi.migrateDiagnosis.progress.status"/></td><td>${migrationProgress.status}</td></tr>
+			<tr><td><spring:message code="emrapi.migrateDiagnosis.progress.patients"/></td><td>${migrationProgress.processedPatients} / ${migrationProgress.totalPatients}</td></tr>
+			<tr><td><spring:message code="emrapi.migrateDiagnosis.progress.failedPatients"/></td><td>${migrationProgress.failedPatients}</td></tr>
+			<tr><td><spring:message code="emrapi.migrateDiagnosis.progress.diagnoses"/></td><td>${migrationProgress.migratedDiagnoses}</td></tr>
+			<tr><td><spring:message code="emrapi.migrateDiagnosis.progress.patientsPerSecond"/></td><td><fmt:formatNumber value="${migrationProgress.patientsPerSecond}" maxFractionDigits="1"/></td></tr>
+			<tr><td><spring:message code="emrapi.migrateDiagnosis.progress.secondsRemaining"/></td><td>${migrationProgress.estimatedSecondsRemaining}</td></tr>
+		</table>
+	</fieldset>
+</c:if>
+
 <%@ include file="/WEB-INF/template/footer.jsp"%>
\ No newline at end of file
@@ -0,0 +1,91 @@
+package org.openmrs.module.emrapi.web.controller;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.CodedOrFreeText;
+import org.openmrs.ConditionVerificationStatus;
+import org.openmrs.Encounter;
+import org.openmrs.Patient;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.PatientService;
+import org.openmrs.module.emrapi.diagnosis.Diagnosis;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.text.SimpleDateFormat;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class DiagnosisControllerTest extends BaseModuleWebContextSensitiveTest {
+
+    @Autowired
+    private ObjectFactory<DiagnosisController> controllerFactory;
+
+    @Autowired
+    private org.openmrs.api.DiagnosisService coreDiagnosisService;
+
+    @Autowired
+    private ConceptService conceptService;
+
+    @Autowired
+    private EncounterService encounterService;
+
+    @Autowired
+    private PatientService patientService;
+
+    private Patient patient;
+
+    @Before
+    public void setUp() throws Exception {
+        patient = patientService.getPatient(7);
+        Encounter encounter = encounterService.getEncounter(3);
+        saveDiagnosis(encounter, new CodedOrFreeText(conceptService.getConcept(5497), null, null), "2020-01-01");
+        saveDiagnosis(encounter, new CodedOrFreeText(null, null, "Headache"), "2020-02-01");
+        saveDiagnosis(encounter, new CodedOrFreeText(conceptService.getConcept(5497), null, null), "2020-03-01");
+    }
+
+    @Test
+    public void getDiagnosesList_shouldReturnAllDiagnosesWithoutPagingParameters() {
+        List<Diagnosis> diagnoses = controllerFactory.getObject().getDiagnosesList(patient, null, null, null);
+        assertEquals(3, diagnoses.size());
+    }
+
+    @Test
+    public void getDiagnosesList_shouldReturnAPageOfTheMostRecentDiagnoses() {
+        DiagnosisController controller = controllerFactory.getObject();
+
+        List<Diagnosis> diagnoses = controller.getDiagnosesList(patient, null, null, 2);
+        assertEquals(2, diagnoses.size());
+        assertEquals(conceptService.getConcept(5497), diagnoses.get(0).getDiagnosis().getCodedAnswer());
+        assertEquals("Headache", diagnoses.get(1).getDiagnosis().getNonCodedAnswer());
+
+        diagnoses = controller.getDiagnosesList(patient, null, 2, null);
+        assertEquals(1, diagnoses.size());
+        assertEquals(conceptService.getConcept(5497), diagnoses.get(0).getDiagnosis().getCodedAnswer());
+    }
+
+    @Test
+    public void getUniqueDiagnosesList_shouldReturnAPageOfTheMostRecentDiagnosisOfEachAnswer() {
+        DiagnosisController controller = controllerFactory.getObject();
+
+        assertEquals(2, controller.getUniqueDiagnosesList(patient, null, null, null).size());
+
+        List<Diagnosis> diagnoses = controller.getUniqueDiagnosesList(patient, null, 1, 1);
+        assertEquals(1, diagnoses.size());
+        assertEquals("Headache", diagnoses.get(0).getDiagnosis().getNonCodedAnswer());
+    }
+
+    private void saveDiagnosis(Encounter encounter, CodedOrFreeText answer, String dateCreated) throws Exception {
+        org.openmrs.Diagnosis diagnosis = new org.openmrs.Diagnosis();
+        diagnosis.setPatient(patient);
+        diagnosis.setEncounter(encounter);
+        diagnosis.setDiagnosis(answer);
+        diagnosis.setCertainty(ConditionVerificationStatus.CONFIRMED);
+        diagnosis.setRank(1);
+        diagnosis.setDateCreated(new SimpleDateFormat("yyyy-MM-dd").parse(dateCreated));
+        coreDiagnosisService.save(diagnosis);
+    }
+}
@@ -0,0 +1,106 @@
+package org.openmrs.module.emrapi.web.controller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import org.openmrs.Obs;
+import org.openmrs.Patient;
+import org.openmrs.api.ConceptService;
+import org.openmrs.api.EncounterService;
+import org.openmrs.api.PatientService;
+import org.openmrs.module.DaemonToken;
+import org.openmrs.module.ModuleFactory;
+import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.diagnosis.Diagnosis;
+import org.openmrs.module.emrapi.diagnosis.DiagnosisMetadata;
+import org.openmrs.module.emrapi.diagnosis.DiagnosisMigrationProgress;
+import org.openmrs.module.emrapi.diagnosis.MigrateDiagnosis;
+import org.openmrs.module.emrapi.diagnosis.OldDiagnosisBuilder;
+import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.web.WebConstants;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpSession;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+
+public class MigrateDiagnosisControllerTest extends BaseModuleWebContextSensitiveTest {
+
+    @Autowired
+    private ObjectFactory<MigrateDiagnosisController> controllerFactory;
+
+    @Autowired
+    private ConceptService conceptService;
+
+    @Autowired
+    private EncounterService encounterService;
+
+    @Autowired
+    private PatientService patientService;
+
+    @Autowired
+    private EmrApiProperties emrApiProperties;
+
+    private MockedStatic<ModuleFactory> moduleFactory;
+
+    @Before
+    public void setUp() {
+        DiagnosisMetadata diagnosisMetadata = ContextSensitiveMetadataTestUtils.setupDiagnosisMetadata(conceptService, emrApiProperties);
+        Patient patient = patientService.getPatient(7);
+        new OldDiagnosisBuilder(diagnosisMetadata).buildDiagnosis(patient, "2013-09-10", Diagnosis.Order.PRIMARY,
+                Diagnosis.Certainty.CONFIRMED, "non-coded pain", encounterService.getEncounter(3)).save();
+
+        // the module is not started in tests, so there is no real daemon token
+        MigrateDiagnosis.setDaemonToken(new DaemonToken("emrapi"));
+        moduleFactory = Mockito.mockStatic(ModuleFactory.class, Mockito.CALLS_REAL_METHODS);
+        moduleFactory.when(() -> ModuleFactory.isTokenValid(any(DaemonToken.class))).thenReturn(true);
+    }
+
+    @After
+    public void tearDown() {
+        moduleFactory.close();
+        MigrateDiagnosis.setDaemonToken(null);
+    }
+
+    /**
+     * The workers run on daemon threads in their own transactions, which cannot see the diagnoses saved by this test's
+     * transaction, so this checks that a background migration runs to completion over all the patients found and
+     * reports its progress, rather than what it migrates (see MigrateDiagnosisTest for that)
+     */
+    @Test
+    public void shouldRunTheMigrationInTheBackgroundAndReportItsProgress() throws Exception {
+        MockHttpSession session = new MockHttpSession();
+        MigrateDiagnosisController controller = controllerFactory.getObject();
+
+        String view = controller.doEncounterDiagnosisMigration(session, new MockHttpServletRequest());
+        assertEquals("redirect:encounterDiagnosisMigrationDashboard.form", view);
+        assertEquals("emrapi.migrateDiagnosis.started.message", session.getAttribute(WebConstants.OPENMRS_MSG_ATTR));
+
+        DiagnosisMigrationProgress progress = MigrateDiagnosis.getBackgroundMigration();
+        assertEquals(1, progress.getTotalPatients());
+        long timeout = System.currentTimeMillis() + 30000;
+        while (progress.isRunning() && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertFalse(progress.isRunning());
+
+        SimpleObject response = controller.getEncounterDiagnosisMigrationProgress();
+        assertEquals(DiagnosisMigrationProgress.Status.COMPLETED.name(), response.get("status"));
+        assertEquals(1, response.get("totalPatients"));
+        assertEquals(1, response.get("processedPatients"));
+        assertEquals(0, response.get("failedPatients"));
+        assertNotNull(response.get("endTime"));
+        assertEquals(0L, response.get("estimatedSecondsRemaining"));
+        assertTrue((Double) response.get("patientsPerSecond") >= 0);
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * The contents of this file are subject to the OpenMRS Public License
+ * Version 1.0 (the "License"); you may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ * http://license.openmrs.org
+ *
+ * Software distributed under the License is distributed on an "AS IS"
+ * basis, WITHOUT WARRANTY OF ANY KIND, either express or implied. See the
+ * License for the specific language governing rights and limitations
+ * under the License.
+ *
+ * Copyright (C) OpenMRS, LLC.  All Rights Reserved.
+ */
+
+package org.openmrs.module.emrapi.web.controller;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openmrs.Location;
+import org.openmrs.api.LocationService;
+import org.openmrs.module.emrapi.EmrApiProperties;
+import org.openmrs.module.emrapi.test.ContextSensitiveMetadataTestUtils;
+import org.openmrs.module.webservices.rest.SimpleObject;
+import org.openmrs.web.test.BaseModuleWebContextSensitiveTest;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class RetrospectiveVisitControllerTest extends BaseModuleWebContextSensitiveTest {
+
+    private static final String PATIENT_UUID = "da7f524f-27ce-4bb2-86d6-6d1d05312bd5";
+
+    private static final String LOCATION_UUID = "8d6c993e-c2cc-11de-8d13-0010c6dffd0f";
+
+    @Autowired
+    private ObjectFactory<RetrospectiveVisitController> controllerFactory;
+
+    @Autowired
+    private LocationService locationService;
+
+    @Autowired
+    private EmrApiProperties emrApiProperties;
+
+    @Before
+    public void setUp() {
+        ContextSensitiveMetadataTestUtils.setupSupportsVisitLocationTag(locationService);
+        Location location = locationService.getLocationByUuid(LOCATION_UUID);
+        location.addTag(emrApiProperties.getSupportsVisitsLocationTag());
+        locationService.saveLocation(location);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void shouldCreateTheValidRowsAndReportTheOthers() {
+        Map<String, Object> patientAsObject = new HashMap<String, Object>();
+        patientAsObject.put("uuid", PATIENT_UUID);
+
+        List<Map<String, Object>> rows = Arrays.asList(
+                row(PATIENT_UUID, LOCATION_UUID, "2000-01-01T08:00:00.000+0000", "2000-01-01T17:00:00.000+0000"),
+                row(patientAsObject, LOCATION_UUID, "2000-02-01T08:00:00.000+0000", "2000-02-01T17:00:00.000+0000"),
+                row(2, LOCATION_UUID, "2000-03-01T08:00:00.000+0000", null),
+                row(PATIENT_UUID, 1, "2000-04-01T08:00:00.000+0000", null));
+
+        SimpleObject response = controllerFactory.getObject().createRetrospectiveVisits(rows);
+        List<SimpleObject> results = (List<SimpleObject>) response.get("results");
+
+        assertEquals(4, results.size());
+        assertEquals(true, results.get(0).get("created"));
+        assertNotNull(results.get(0).get("visit"));
+        assertEquals(true, results.get(1).get("created"));
+        for (SimpleObject result : results.subList(2, 4)) {
+            assertEquals(false, result.get("created"));
+            assertNull(result.get("visit"));
+            assertEquals("emrapi.retrospectiveVisit.patientLocationAndStartDateRequired", result.get("error"));
+            assertNotNull(result.get("message"));
+        }
+    }
+
+    private Map<String, Object> row(Object patient, Object location, String startDatetime, String stopDatetime) {
+        Map<String, Object> row = new HashMap<String, Object>();
+        row.put("patient", patient);
+        row.put("location", location);
+        row.put("startDatetime", startDatetime);
+        row.put("stopDatetime", stopDatetime);
+        return row;
+    }
+}